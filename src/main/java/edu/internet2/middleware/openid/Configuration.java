@@ -23,9 +23,11 @@ import edu.internet2.middleware.openid.extensions.MessageExtensionBuilderFactory
 import edu.internet2.middleware.openid.extensions.MessageExtensionMarshallerFactory;
 import edu.internet2.middleware.openid.extensions.MessageExtensionUnmarshallerFactory;
 import edu.internet2.middleware.openid.message.MessageBuilderFactory;
+import edu.internet2.middleware.openid.message.encoding.ParameterNameTable;
 import edu.internet2.middleware.openid.message.io.MessageMarshallerFactory;
 import edu.internet2.middleware.openid.message.io.MessageUnmarshallerFactory;
 import edu.internet2.middleware.openid.message.validation.MessageValidatorFactory;
+import edu.internet2.middleware.openid.security.MacCache;
 
 /**
  * Class for loading library configuration files and retrieving the configured components.
@@ -53,6 +55,12 @@ public class Configuration {
     /** Message Extension Unmarshallers. */
     private static MessageExtensionUnmarshallerFactory extensionUnmarshallers = new MessageExtensionUnmarshallerFactory();
 
+    /** Well-known message parameter names. */
+    private static ParameterNameTable parameterNames = new ParameterNameTable();
+
+    /** Pooled MAC instances used for message signatures. */
+    private static MacCache macCache = new MacCache();
+
     /** Date Format that implements Internet time format according to RFC 3339. */
     private static DateFormat internetDateFormat = new InternetDateFormat();
 
@@ -123,6 +131,24 @@ public class Configuration {
         return extensionUnmarshallers;
     }
 
+    /**
+     * Get the table of well-known message parameter names.
+     * 
+     * @return message parameter names
+     */
+    public static ParameterNameTable getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Get the cache of MAC instances used for message signatures.
+     * 
+     * @return MAC cache
+     */
+    public static MacCache getMacCache() {
+        return macCache;
+    }
+
     /**
      * Get the Internet date format.
      * 
@@ -56,6 +56,7 @@ import edu.internet2.middleware.openid.message.NegativeAssertion;
 import edu.internet2.middleware.openid.message.PositiveAssertion;
 import edu.internet2.middleware.openid.message.VerifyRequest;
 import edu.internet2.middleware.openid.message.VerifyResponse;
+import edu.internet2.middleware.openid.message.encoding.ParameterNameTable;
 import edu.internet2.middleware.openid.message.impl.AssociationErrorBuilder;
 import edu.internet2.middleware.openid.message.impl.AssociationErrorMarshaller;
 import edu.internet2.middleware.openid.message.impl.AssociationErrorUnmarshaller;
@@ -211,6 +212,7 @@ public class DefaultBootstrap {
     public static void initializeExtensionProviders() {
         MessageExtensionMarshaller marshaller;
         MessageExtensionUnmarshaller unmarshaller;
+        ParameterNameTable parameterNames = Configuration.getParameterNames();
 
         // Simple Registration
         marshaller = new SimpleRegistrationMessageMarshaller();
@@ -223,6 +225,14 @@ public class DefaultBootstrap {
         Configuration.getExtensionBuilders().registerBuilder(SimpleRegistrationResponse.class,
                 new SimpleRegistrationResponseBuilder());
 
+        parameterNames.registerNamespace(SimpleRegistration.SREG_11_NS, SimpleRegistration.SREG_NS_ALIAS);
+        for (SimpleRegistration.Parameter parameter : SimpleRegistration.Parameter.values()) {
+            parameterNames.registerParameter(parameter.QNAME);
+        }
+        for (SimpleRegistration.Field field : SimpleRegistration.Field.values()) {
+            parameterNames.registerParameter(field.QNAME);
+        }
+
         // Attribute Exchange
         marshaller = new AttributeExchangeMarshallingDispatcher();
         unmarshaller = new AttributeExchangeUnmarshallingDispatcher();
@@ -233,6 +243,11 @@ public class DefaultBootstrap {
         Configuration.getExtensionBuilders().registerBuilder(StoreRequest.class, new StoreRequestBuilder());
         Configuration.getExtensionBuilders().registerBuilder(StoreResponse.class, new StoreResponseBuilder());
 
+        parameterNames.registerNamespace(AttributeExchange.AX_10_NS, AttributeExchange.AX_NS_ALIAS);
+        for (AttributeExchange.Parameter parameter : AttributeExchange.Parameter.values()) {
+            parameterNames.registerParameter(parameter.QNAME);
+        }
+
         // PAPE
         marshaller = new PolicyMessageMarshaller();
         unmarshaller = new PolicyMessageUnmarshaller();
@@ -240,6 +255,12 @@ public class DefaultBootstrap {
 
         Configuration.getExtensionBuilders().registerBuilder(PolicyRequest.class, new PolicyRequestBuilder());
         Configuration.getExtensionBuilders().registerBuilder(PolicyResponse.class, new PolicyResponseBuilder());
+
+        parameterNames.registerNamespace(ProviderAuthenticationPolicy.PAPE_10_NS,
+                ProviderAuthenticationPolicy.PAPE_NS_ALIAS);
+        for (ProviderAuthenticationPolicy.Parameter parameter : ProviderAuthenticationPolicy.Parameter.values()) {
+            parameterNames.registerParameter(parameter.QNAME);
+        }
     }
 
     public static void initializeExtensionProvider(String namespace, MessageExtensionMarshaller marshaller,
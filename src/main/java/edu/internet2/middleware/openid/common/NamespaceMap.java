@@ -16,28 +16,27 @@
 
 package edu.internet2.middleware.openid.common;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
- * Maintains a mapping of aliases for namespace URIs.
+ * Maintains a mapping of aliases for namespace URIs. The mapping is indexed in both directions, so that lookups by URI
+ * and by alias are constant-time operations. Namespaces are returned in the order in which they were added.
  */
 public class NamespaceMap {
 
-    /** Logger. */
-    private final Logger log = LoggerFactory.getLogger(NamespaceMap.class);
-
-    /** Namespace map. */
+    /** Namespace map, keyed on namespace URI. */
     private Map<String, String> namespaces;
 
+    /** Reverse namespace map, keyed on namespace alias. */
+    private Map<String, String> aliases;
+
     /** Counter to ensure generated namespaces are unique. */
     private int namespaceGeneratorCount;
 
@@ -46,7 +45,8 @@ public class NamespaceMap {
 
     /** Constructor. */
     public NamespaceMap() {
-        namespaces = new HashMap<String, String>();
+        namespaces = new LinkedHashMap<String, String>();
+        aliases = new LinkedHashMap<String, String>();
         namespaceGeneratorCount = 0;
         aliasPrefix = "n";
     }
@@ -86,7 +86,7 @@ public class NamespaceMap {
      * @return whether a mapping exists for the namespace URI
      */
     public boolean containsAlias(String alias) {
-        return namespaces.containsValue(alias);
+        return aliases.containsKey(alias);
     }
 
     /**
@@ -106,13 +106,7 @@ public class NamespaceMap {
      * @return URI for the specified namespace alias
      */
     public String getURI(String alias) {
-        for (Map.Entry<String, String> entry : namespaces.entrySet()) {
-            if (entry.getValue().equals(alias)) {
-                return entry.getKey();
-            }
-        }
-
-        return null;
+        return aliases.get(alias);
     }
 
     /**
@@ -121,16 +115,16 @@ public class NamespaceMap {
      * @return set of all registered namespace aliases
      */
     public Set<String> getAliases() {
-        return new HashSet(namespaces.values());
+        return new LinkedHashSet<String>(aliases.keySet());
     }
 
     /**
      * Get all URIs registered in this namespace map.
      * 
-     * @return set of all registered namespace URIs
+     * @return unmodifiable set of all registered namespace URIs
      */
     public Set<String> getURIs() {
-        return namespaces.keySet();
+        return Collections.unmodifiableSet(namespaces.keySet());
     }
 
     /**
@@ -180,6 +174,7 @@ public class NamespaceMap {
             }
 
             namespaces.put(uri, alias);
+            aliases.put(alias, uri);
         }
 
         return getAlias(uri);
@@ -191,7 +186,10 @@ public class NamespaceMap {
      * @param uri namespace to unregister
      */
     public void remove(String uri) {
-        namespaces.remove(uri);
+        String alias = namespaces.remove(uri);
+        if (alias != null) {
+            aliases.remove(alias);
+        }
     }
 
     /**
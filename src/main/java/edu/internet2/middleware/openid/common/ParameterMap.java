@@ -21,9 +21,6 @@ import java.util.Map;
 
 import javax.xml.namespace.QName;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * A map of parameters that make up an OpenID message.
  * 
@@ -38,9 +35,6 @@ public class ParameterMap extends LinkedHashMap<QName, String> {
     /** Serial Version UID. */
     private static final long serialVersionUID = 2956813358977663257L;
 
-    /** Logger. */
-    private final Logger log = LoggerFactory.getLogger(ParameterMap.class);
-
     /** Registered namespaces. */
     private NamespaceMap namespaces;
 
@@ -50,9 +44,30 @@ public class ParameterMap extends LinkedHashMap<QName, String> {
         namespaces = new NamespaceMap();
     }
 
+    /**
+     * Constructor.
+     * 
+     * @param expectedSize number of parameters the map is expected to hold. The map is sized so that it does not need
+     *            to be rehashed until it holds more than this many parameters.
+     */
+    public ParameterMap(int expectedSize) {
+        super(capacityFor(expectedSize));
+        namespaces = new NamespaceMap();
+    }
+
+    /**
+     * Get the initial capacity needed for a map with the default load factor to hold the specified number of entries
+     * without being rehashed.
+     * 
+     * @param expectedSize number of entries
+     * @return initial capacity
+     */
+    public static int capacityFor(int expectedSize) {
+        return (int) (Math.max(expectedSize, 0) / 0.75f) + 1;
+    }
+
     /** {@inheritDoc} */
     public String put(QName key, String value) {
-        log.debug("adding parameter to map {} = {}", key, value);
         namespaces.add(key);
         return super.put(key, value);
     }
@@ -60,7 +75,6 @@ public class ParameterMap extends LinkedHashMap<QName, String> {
     /** {@inheritDoc} */
     public void putAll(Map<? extends QName, ? extends String> m) {
         for (QName key : m.keySet()) {
-            log.debug("adding parameter to map {} = {}", key, m.get(key));
             namespaces.add(key);
         }
         super.putAll(m);
@@ -84,19 +98,25 @@ public class ParameterMap extends LinkedHashMap<QName, String> {
      * @return parameter submap
      */
     public ParameterMap subMap(String namespace) {
-        log.debug("getting parameter sub map for namespace: {}", namespace);
+        if (namespace == null || !namespaces.containsURI(namespace)) {
+            return new ParameterMap();
+        }
 
-        ParameterMap map = new ParameterMap();
+        int size = 0;
+        for (QName qname : this.keySet()) {
+            if (namespace.equals(qname.getNamespaceURI())) {
+                size++;
+            }
+        }
 
-        if (namespace != null && namespaces.containsURI(namespace)) {
-            map.getNamespaces().add(namespace, namespaces.getAlias(namespace));
-            for (QName qname : this.keySet()) {
-                if (namespace.equals(qname.getNamespaceURI())) {
-                    map.put(qname, this.get(qname));
-                }
+        ParameterMap map = new ParameterMap(size);
+        map.getNamespaces().add(namespace, namespaces.getAlias(namespace));
+        for (Map.Entry<QName, String> entry : this.entrySet()) {
+            if (namespace.equals(entry.getKey().getNamespaceURI())) {
+                map.put(entry.getKey(), entry.getValue());
             }
         }
-        
+
         return map;
     }
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.common;
+
+/**
+ * Adaptive estimate of the number of parameters in the parameter maps built for one kind of message. Marshallers keep
+ * a hint per message type and use it to pre-size new {@link ParameterMap}s, so that maps do not need to be rehashed as
+ * parameters are added.
+ * 
+ * The hint starts at an expected parameter count reported by the marshaller. A recorded size that is larger than the
+ * hint raises it immediately, so that maps for the largest recent messages are not rehashed; a smaller size only lets
+ * the hint decay by an eighth of the difference, so that one small message does not undersize the maps that follow.
+ * As a result, a single unusually large message inflates later allocations until enough smaller messages have been
+ * recorded to decay the hint again. Hints are capped at {@link #MAX_HINT}, which bounds that inflation.
+ * 
+ * Hints are shared by all threads using a marshaller. Updates are not synchronized; a lost update only affects the
+ * size of a later allocation.
+ */
+public class ParameterMapSizeHint {
+
+    /** Largest parameter count that will be used as a hint. */
+    public static final int MAX_HINT = 256;
+
+    /** Current expected parameter count. */
+    private volatile int expectedSize;
+
+    /**
+     * Constructor.
+     * 
+     * @param initialSize initial expected parameter count
+     */
+    public ParameterMapSizeHint(int initialSize) {
+        expectedSize = Math.max(0, Math.min(initialSize, MAX_HINT));
+    }
+
+    /**
+     * Get the expected parameter count.
+     * 
+     * @return expected parameter count
+     */
+    public int getExpectedSize() {
+        return expectedSize;
+    }
+
+    /**
+     * Record the number of parameters in a map that was built for this kind of message.
+     * 
+     * @param size observed parameter count
+     */
+    public void recordSize(int size) {
+        int current = expectedSize;
+        int observed = Math.min(size, MAX_HINT);
+
+        if (observed > current) {
+            expectedSize = observed;
+        } else if (observed < current) {
+            // decay by an eighth of the difference, rounding up so that the hint always moves
+            expectedSize = current - (current - observed + 7) / 8;
+        }
+    }
+
+    /**
+     * Build a new parameter map sized for the expected parameter count.
+     * 
+     * @return new parameter map
+     */
+    public ParameterMap newParameterMap() {
+        return new ParameterMap(expectedSize);
+    }
+
+}
@@ -17,6 +17,7 @@
 package edu.internet2.middleware.openid.extensions;
 
 import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.ParameterMapSizeHint;
 import edu.internet2.middleware.openid.message.io.MarshallingException;
 
 /**
@@ -27,10 +28,14 @@ import edu.internet2.middleware.openid.message.io.MarshallingException;
 public abstract class AbstractMessageExtensionMarshaller<MessageExtensionType extends MessageExtension> implements
         MessageExtensionMarshaller<MessageExtensionType> {
 
+    /** Expected size of the marshalled parameter maps. */
+    private final ParameterMapSizeHint sizeHint = new ParameterMapSizeHint(4);
+
     /** {@inheritDoc} */
     public ParameterMap marshall(MessageExtensionType message) throws MarshallingException {
-        ParameterMap parameters = new ParameterMap();
+        ParameterMap parameters = sizeHint.newParameterMap();
         marshall(message, parameters);
+        sizeHint.recordSize(parameters.size());
         return parameters;
     }
 
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.ParameterMapSizeHint;
 import edu.internet2.middleware.openid.extensions.MessageExtensionMarshaller;
 import edu.internet2.middleware.openid.extensions.ax.AttributeExchange.Parameter;
 import edu.internet2.middleware.openid.extensions.ax.impl.FetchRequestMarshaller;
@@ -42,6 +43,9 @@ public class AttributeExchangeMarshallingDispatcher implements MessageExtensionM
     /** Attribute Exchange marshallers. */
     private Map<String, AttributeExchangeMarshaller> marshallers;
 
+    /** Expected size of the marshalled parameter maps, keyed on message mode. */
+    private Map<String, ParameterMapSizeHint> sizeHints;
+
     /** Constructor. */
     public AttributeExchangeMarshallingDispatcher() {
         marshallers = new HashMap<String, AttributeExchangeMarshaller>();
@@ -53,22 +57,28 @@ public class AttributeExchangeMarshallingDispatcher implements MessageExtensionM
         StoreResponseMarshaller storeResponseMarshaller = new StoreResponseMarshaller();
         marshallers.put(StoreResponse.MODE_SUCCESS, storeResponseMarshaller);
         marshallers.put(StoreResponse.MODE_FAILURE, storeResponseMarshaller);
+
+        sizeHints = new HashMap<String, ParameterMapSizeHint>();
+        for (String mode : marshallers.keySet()) {
+            sizeHints.put(mode, new ParameterMapSizeHint(8));
+        }
     }
 
     /** {@inheritDoc} */
     public ParameterMap marshall(AttributeExchangeMessage message) throws MarshallingException {
-        ParameterMap parameters = new ParameterMap();
-
         AttributeExchangeMarshaller marshaller = marshallers.get(message.getMode());
-        if (marshallers == null) {
+        if (marshaller == null) {
             log.error("Unable to find Attribute Exchange message marshaller for mode: {}", message.getMode());
             throw new MarshallingException("Unable to find Attribute Exchange message marshaller for mode: "
                     + message.getMode());
         }
 
+        ParameterMapSizeHint sizeHint = sizeHints.get(message.getMode());
+        ParameterMap parameters = sizeHint.newParameterMap();
         parameters.put(Parameter.mode.QNAME, message.getMode());
 
         marshaller.marshall(message, parameters);
+        sizeHint.recordSize(parameters.size());
         return parameters;
     }
 
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import edu.internet2.middleware.openid.Configuration;
 import edu.internet2.middleware.openid.common.NamespaceMap;
 import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.ParameterMapSizeHint;
 import edu.internet2.middleware.openid.extensions.MessageExtensionMarshaller;
 import edu.internet2.middleware.openid.extensions.pape.ProviderAuthenticationPolicy.Parameter;
 import edu.internet2.middleware.openid.message.io.MarshallingException;
@@ -41,14 +42,26 @@ public class PolicyMessageMarshaller implements MessageExtensionMarshaller<Polic
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(PolicyMessageMarshaller.class);
 
+    /** Expected size of the marshalled request parameter maps. */
+    private final ParameterMapSizeHint requestSizeHint = new ParameterMapSizeHint(4);
+
+    /** Expected size of the marshalled response parameter maps. */
+    private final ParameterMapSizeHint responseSizeHint = new ParameterMapSizeHint(4);
+
     /** {@inheritDoc} */
     public ParameterMap marshall(PolicyMessage message) throws MarshallingException {
-        ParameterMap parameters = new ParameterMap();
+        ParameterMap parameters;
 
         if (message instanceof PolicyRequest) {
+            parameters = requestSizeHint.newParameterMap();
             marshall((PolicyRequest) message, parameters);
+            requestSizeHint.recordSize(parameters.size());
         } else if (message instanceof PolicyResponse) {
+            parameters = responseSizeHint.newParameterMap();
             marshall((PolicyResponse) message, parameters);
+            responseSizeHint.recordSize(parameters.size());
+        } else {
+            parameters = new ParameterMap();
         }
 
         return parameters;
@@ -20,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.ParameterMapSizeHint;
 import edu.internet2.middleware.openid.extensions.MessageExtensionMarshaller;
 import edu.internet2.middleware.openid.extensions.sreg.SimpleRegistration.Field;
 import edu.internet2.middleware.openid.extensions.sreg.SimpleRegistration.Parameter;
@@ -34,14 +35,26 @@ public class SimpleRegistrationMessageMarshaller implements MessageExtensionMars
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(SimpleRegistrationMessageMarshaller.class);
 
+    /** Expected size of the marshalled request parameter maps. */
+    private final ParameterMapSizeHint requestSizeHint = new ParameterMapSizeHint(4);
+
+    /** Expected size of the marshalled response parameter maps. */
+    private final ParameterMapSizeHint responseSizeHint = new ParameterMapSizeHint(4);
+
     /** {@inheritDoc} */
     public ParameterMap marshall(SimpleRegistrationMessage message) throws MarshallingException {
-        ParameterMap parameters = new ParameterMap();
+        ParameterMap parameters;
 
         if (message instanceof SimpleRegistrationRequest) {
+            parameters = requestSizeHint.newParameterMap();
             marshall((SimpleRegistrationRequest) message, parameters);
+            requestSizeHint.recordSize(parameters.size());
         } else if (message instanceof SimpleRegistrationResponse) {
+            parameters = responseSizeHint.newParameterMap();
             marshall((SimpleRegistrationResponse) message, parameters);
+            responseSizeHint.recordSize(parameters.size());
+        } else {
+            parameters = new ParameterMap();
         }
 
         return parameters;
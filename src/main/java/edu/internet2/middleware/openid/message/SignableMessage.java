@@ -20,6 +20,8 @@ import java.util.List;
 
 import javax.xml.namespace.QName;
 
+import edu.internet2.middleware.openid.common.ParameterMap;
+
 /**
  * Signed OpenID protocol message.
  */
@@ -46,4 +48,19 @@ public interface SignableMessage extends Message {
      */
     public void setSignature(String newSignature);
 
+    /**
+     * The parameters this message was unmarshalled from. Signatures on received messages are verified against these
+     * parameters, exactly as they were received, rather than against the marshalled message.
+     * 
+     * @return the received parameters, or null if the message was not unmarshalled from a parameter map
+     */
+    public ParameterMap getReceivedParameters();
+
+    /**
+     * Set the parameters this message was unmarshalled from.
+     * 
+     * @param parameters the received parameters
+     */
+    public void setReceivedParameters(ParameterMap parameters);
+
 }
\ No newline at end of file
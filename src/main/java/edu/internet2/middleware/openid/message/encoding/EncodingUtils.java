@@ -16,6 +16,7 @@
 
 package edu.internet2.middleware.openid.message.encoding;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -40,7 +41,6 @@ import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.http.client.utils.URIUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +53,7 @@ import edu.internet2.middleware.openid.message.Message;
 import edu.internet2.middleware.openid.message.encoding.impl.URLFormCodec;
 import edu.internet2.middleware.openid.message.io.MarshallingException;
 import edu.internet2.middleware.openid.message.io.MessageMarshaller;
+import edu.internet2.middleware.openid.security.CryptoPrimitives;
 import edu.internet2.middleware.openid.util.DatatypeHelper;
 
 /**
@@ -108,33 +109,32 @@ public final class EncodingUtils {
      * @return QName for the parameter
      */
     public static QName decodeParameterName(String parameter, NamespaceMap namespaces) {
-        String[] parts = parameter.split("\\.", 2);
-
-        // check if parameter name is for a namespace declaration
-        if (OpenIDConstants.MESSAGE_NAMESPACE_PREFIX.equals(parts[0])) {
-            String alias;
-
-            if (parts.length == 2) {
-                alias = parts[1];
-            } else {
-                alias = XMLConstants.DEFAULT_NS_PREFIX;
-            }
-
-            return new NamespaceQName(namespaces.getURI(alias), alias);
+        QName qname = Configuration.getParameterNames().decode(parameter, namespaces);
+        if (qname != null) {
+            return qname;
         }
 
-        // otherwise, parameter name is for a message parameter
+        int dot = parameter.indexOf('.');
         String alias;
         String localPart;
 
-        if (parts.length == 2) {
-            alias = parts[0];
-            localPart = parts[1];
+        if (dot >= 0) {
+            alias = parameter.substring(0, dot);
+            localPart = parameter.substring(dot + 1);
         } else {
             alias = XMLConstants.DEFAULT_NS_PREFIX;
-            localPart = parts[0];
+            localPart = parameter;
         }
 
+        // check if parameter name is for a namespace declaration
+        if (dot < 0 && OpenIDConstants.MESSAGE_NAMESPACE_PREFIX.equals(localPart)) {
+            return new NamespaceQName(namespaces.getURI(XMLConstants.DEFAULT_NS_PREFIX),
+                    XMLConstants.DEFAULT_NS_PREFIX);
+        } else if (OpenIDConstants.MESSAGE_NAMESPACE_PREFIX.equals(alias)) {
+            return new NamespaceQName(namespaces.getURI(localPart), localPart);
+        }
+
+        // otherwise, parameter name is for a message parameter
         return new QName(namespaces.getURI(alias), localPart, alias);
     }
 
@@ -149,6 +149,11 @@ public final class EncodingUtils {
         String parameter;
         String namespaceAlias = namespaces.getAlias(qname.getNamespaceURI());
 
+        parameter = Configuration.getParameterNames().encode(qname, namespaceAlias);
+        if (parameter != null) {
+            return parameter;
+        }
+
         if (qname instanceof NamespaceQName) {
             // parameter name is for a namespace declaration
             parameter = "ns";
@@ -212,12 +217,14 @@ public final class EncodingUtils {
      * @return URL with message parameters appended
      */
     public static URL appendMessageParameters(URL url, String message) {
+        if (url == null || message == null) {
+            return url;
+        }
+
         try {
-            return appendMessageParameters(url.toURI(), message).toURL();
+            return new URL(appendMessageParameters(url.toExternalForm(), message));
         } catch (MalformedURLException e) {
             log.error("Unable to append message parameters to URL: {}", e);
-        } catch (URISyntaxException e) {
-            log.error("Unable to append message parameters to URL: {}", e);
         }
 
         return null;
@@ -235,19 +242,8 @@ public final class EncodingUtils {
             return uri;
         }
 
-        // build new query string
-        StringBuffer queryBuffer = new StringBuffer();
-        if (uri.getRawQuery() != null) {
-            queryBuffer.append(uri.getRawQuery());
-        }
-        if (queryBuffer.length() > 0 && queryBuffer.charAt(queryBuffer.length() - 1) != '&') {
-            queryBuffer.append('&');
-        }
-        queryBuffer.append(message);
-
         try {
-            return URIUtils.createURI(uri.getScheme(), uri.getHost(), uri.getPort(), uri.getPath(), queryBuffer
-                    .toString(), uri.getFragment());
+            return new URI(appendMessageParameters(uri.toString(), message));
         } catch (URISyntaxException e) {
             log.error("Unable to append message parameters to URI: {}", e);
         }
@@ -255,6 +251,94 @@ public final class EncodingUtils {
         return null;
     }
 
+    /**
+     * Append the URL encoded OpenID message parameters to the query string of the provided URL string. The URL is not
+     * parsed or re-encoded; the message is inserted ahead of any fragment identifier.
+     * 
+     * @param url URL to append OpenID message parameter to
+     * @param message URL encoded OpenID message parameters
+     * @return URL with message parameters appended
+     */
+    public static String appendMessageParameters(String url, String message) {
+        if (url == null || message == null) {
+            return url;
+        }
+
+        int queryEnd = queryEnd(url);
+        StringBuilder buffer = new StringBuilder(url.length() + message.length() + 1);
+        buffer.append(url, 0, queryEnd);
+        buffer.append(querySeparator(url, queryEnd));
+        buffer.append(message);
+        buffer.append(url, queryEnd, url.length());
+
+        return buffer.toString();
+    }
+
+    /**
+     * Write the provided URL with the OpenID message parameters appended to its query string. The URL and the encoded
+     * message are written to the output in a single pass, without building intermediate strings or URL objects. This
+     * is suitable for writing a redirect location directly to a {@link java.io.Writer} or {@link StringBuilder}.
+     * 
+     * @param url URL to append OpenID message parameters to
+     * @param parameters message parameter map to encode
+     * @param out output to write the resulting URL to
+     * @throws EncodingException if unable to encode the message parameters
+     * @throws IOException if unable to write to the output
+     */
+    public static void appendMessageParameters(String url, ParameterMap parameters, Appendable out)
+            throws EncodingException, IOException {
+        appendMessageParameters(url, flattenParameterNames(parameters), out);
+    }
+
+    /**
+     * Write the provided URL with the flattened OpenID message parameters appended to its query string.
+     * 
+     * @param url URL to append OpenID message parameters to
+     * @param parameters flattened message parameters to encode
+     * @param out output to write the resulting URL to
+     * @throws EncodingException if unable to encode the message parameters
+     * @throws IOException if unable to write to the output
+     */
+    private static void appendMessageParameters(String url, Map<String, String> parameters, Appendable out)
+            throws EncodingException, IOException {
+        int queryEnd = queryEnd(url);
+        out.append(url, 0, queryEnd);
+        out.append(querySeparator(url, queryEnd));
+        URLFormCodec.getInstance().encode(parameters, out);
+        out.append(url, queryEnd, url.length());
+    }
+
+    /**
+     * Get the index at which the query string of a URL ends, which is the start of the fragment identifier if there is
+     * one, or the end of the URL otherwise.
+     * 
+     * @param url URL to check
+     * @return index after the last character of the query string
+     */
+    private static int queryEnd(String url) {
+        int fragment = url.indexOf('#');
+        return fragment < 0 ? url.length() : fragment;
+    }
+
+    /**
+     * Get the separator needed before additional query parameters can be appended to a URL.
+     * 
+     * @param url URL that parameters will be appended to
+     * @param queryEnd index after the last character of the URL's query string
+     * @return '?' if the URL has no query string, '&' if the query string is not empty and not already terminated by
+     *         a separator, or an empty string otherwise
+     */
+    private static String querySeparator(String url, int queryEnd) {
+        int query = url.indexOf('?');
+        if (query < 0 || query >= queryEnd) {
+            return "?";
+        } else if (query < queryEnd - 1 && url.charAt(queryEnd - 1) != '&') {
+            return "&";
+        }
+
+        return "";
+    }
+
     /**
      * Encode an OpenID message as parameters into the specified URL.
      * 
@@ -264,6 +348,39 @@ public final class EncodingUtils {
      * @return URL with OpenID message encoded into it, or null if unable to encode message
      */
     public static URL encodeMessage(URL url, Message message) {
+        ParameterMap parameters = marshallMessage(message);
+        if (parameters == null) {
+            return null;
+        }
+
+        return encodeMessageParameters(url, parameters);
+    }
+
+    /**
+     * Encode an OpenID message as parameters into the specified URL string. The result is suitable for use as the
+     * value of an HTTP Location header.
+     * 
+     * @param url URL to encode OpenID message onto. This is most commonly the URL of an OpenID provider, or the
+     *            return_to URL that was included in an OpenID request.
+     * @param message OpenID message to encode
+     * @return URL with OpenID message encoded into it, or null if unable to encode message
+     */
+    public static String encodeMessage(String url, Message message) {
+        ParameterMap parameters = marshallMessage(message);
+        if (parameters == null) {
+            return null;
+        }
+
+        return encodeMessageParameters(url, parameters);
+    }
+
+    /**
+     * Marshall an OpenID message into a parameter map.
+     * 
+     * @param message OpenID message to marshall
+     * @return message parameter map, or null if unable to marshall the message
+     */
+    private static ParameterMap marshallMessage(Message message) {
         try {
             MessageMarshaller<Message> marshaller = Configuration.getMessageMarshallers().getMarshaller(message);
 
@@ -272,8 +389,7 @@ public final class EncodingUtils {
                 return null;
             }
 
-            ParameterMap parameters = marshaller.marshall(message);
-            return encodeMessageParameters(url, parameters);
+            return marshaller.marshall(message);
         } catch (MarshallingException e) {
             return null;
         }
@@ -288,12 +404,43 @@ public final class EncodingUtils {
      * @return URL with parameter map encoded into it, or null if unable to encode parameters
      */
     public static URL encodeMessageParameters(URL url, ParameterMap parameters) {
+        String encoded = encodeMessageParameters(url.toExternalForm(), parameters);
+        if (encoded == null) {
+            return null;
+        }
+
         try {
-            String message = URLFormCodec.getInstance().encode(parameters);
-            return appendMessageParameters(url, message);
+            return new URL(encoded);
+        } catch (MalformedURLException e) {
+            log.error("Unable to encode message parameters into URL: {}", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Encode a parameter map into the specified URL string. The URL and the encoded parameters are written into a
+     * single buffer, sized up front from the parameter map.
+     * 
+     * @param url URL to encode OpenID message onto. This is most commonly the URL of an OpenID provider, or the
+     *            return_to URL that was included in an OpenID request.
+     * @param parameters message parameter map to encode
+     * @return URL with parameter map encoded into it, or null if unable to encode parameters
+     */
+    public static String encodeMessageParameters(String url, ParameterMap parameters) {
+        Map<String, String> flattened = flattenParameterNames(parameters);
+        StringBuilder buffer = new StringBuilder(url.length() + URLFormCodec.estimateEncodedLength(flattened) + 1);
+
+        try {
+            appendMessageParameters(url, flattened, buffer);
         } catch (EncodingException e) {
             return null;
+        } catch (IOException e) {
+            // StringBuilder does not throw IOException
+            return null;
         }
+
+        return buffer.toString();
     }
 
     /**
@@ -319,7 +466,7 @@ public final class EncodingUtils {
             throws NoSuchAlgorithmException, InvalidKeySpecException {
         byte[] keyBytes = Base64.decodeBase64(encodedKey.getBytes());
         DHPublicKeySpec keySpec = new DHPublicKeySpec(new BigInteger(keyBytes), parameters.getP(), parameters.getG());
-        KeyFactory keyFactory = KeyFactory.getInstance("DH");
+        KeyFactory keyFactory = CryptoPrimitives.getKeyFactory("DH");
         return (DHPublicKey) keyFactory.generatePublic(keySpec);
     }
 
@@ -346,7 +493,7 @@ public final class EncodingUtils {
             throws NoSuchAlgorithmException, InvalidKeySpecException {
         byte[] keyBytes = Base64.decodeBase64(encodedKey.getBytes());
         DHPrivateKeySpec keySpec = new DHPrivateKeySpec(new BigInteger(keyBytes), parameters.getP(), parameters.getG());
-        KeyFactory keyFactory = KeyFactory.getInstance("DH");
+        KeyFactory keyFactory = CryptoPrimitives.getKeyFactory("DH");
         return (DHPrivateKey) keyFactory.generatePrivate(keySpec);
     }
 
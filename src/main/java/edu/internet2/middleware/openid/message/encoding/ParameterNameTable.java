@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import edu.internet2.middleware.openid.common.NamespaceMap;
+import edu.internet2.middleware.openid.common.NamespaceQName;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+
+/**
+ * Table of well-known message parameter names. Each registered parameter is mapped to a canonical, shared {@link QName}
+ * instance and its pre-encoded parameter name, so that the parameters of standard messages can be decoded and encoded
+ * with a single hash lookup and without allocating new QNames or strings.
+ * 
+ * Canonical QNames are only used when the parameter's namespace is declared with the alias it was registered with.
+ * Lookups for parameters that are not registered, or whose namespace uses a different alias, return null, and callers
+ * are expected to fall back to building the name themselves.
+ * 
+ * The parameters of the core OpenID 2.0 protocol are registered automatically. Additional parameters, such as those
+ * defined by message extensions, may be registered at any time; lookups are safe to perform concurrently with
+ * registration.
+ */
+public class ParameterNameTable {
+
+    /** Entries keyed on their encoded parameter name. */
+    private final Map<String, Entry> names;
+
+    /** Message parameter entries keyed on their QName. */
+    private final Map<QName, Entry> parameters;
+
+    /** Namespace declaration entries keyed on their namespace URI. */
+    private final Map<String, Entry> declarations;
+
+    /** Constructor. */
+    public ParameterNameTable() {
+        names = new ConcurrentHashMap<String, Entry>();
+        parameters = new ConcurrentHashMap<QName, Entry>();
+        declarations = new ConcurrentHashMap<String, Entry>();
+
+        for (Parameter parameter : Parameter.values()) {
+            registerParameter(parameter.QNAME);
+        }
+
+        // registered last so that 'ns' decodes as the namespace declaration rather than Parameter.ns
+        registerNamespace(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+    }
+
+    /**
+     * Register a namespace declaration for the specified namespace URI and alias.
+     * 
+     * @param namespaceURI namespace URI
+     * @param alias alias the namespace is expected to be declared with
+     */
+    public void registerNamespace(String namespaceURI, String alias) {
+        String name = OpenIDConstants.MESSAGE_NAMESPACE_PREFIX;
+        if (!XMLConstants.DEFAULT_NS_PREFIX.equals(alias)) {
+            name += "." + alias;
+        }
+
+        Entry entry = new Entry(new NamespaceQName(namespaceURI, alias), name, alias, null);
+        names.put(name, entry);
+        declarations.put(namespaceURI, entry);
+    }
+
+    /**
+     * Register a message parameter. The prefix of the QName is the alias the parameter's namespace is expected to be
+     * declared with.
+     * 
+     * @param qname canonical QName of the parameter
+     */
+    public void registerParameter(QName qname) {
+        String alias = qname.getPrefix();
+        String name = qname.getLocalPart();
+        if (!XMLConstants.DEFAULT_NS_PREFIX.equals(alias)) {
+            name = alias + "." + name;
+        }
+
+        Entry entry = new Entry(qname, name, alias, qname.getLocalPart());
+        names.put(name, entry);
+        parameters.put(qname, entry);
+    }
+
+    /**
+     * Register message parameters.
+     * 
+     * @param qnames canonical QNames of the parameters
+     */
+    public void registerParameters(QName... qnames) {
+        for (QName qname : qnames) {
+            registerParameter(qname);
+        }
+    }
+
+    /**
+     * Get the QName for an encoded parameter name. If the parameter is registered, and its namespace is declared in
+     * the namespace map with the registered alias, the canonical QName is returned. If the parameter is registered but
+     * its alias is bound to a different namespace, a new QName is built from the pre-parsed name.
+     * 
+     * @param name encoded parameter name
+     * @param namespaces map of registered namespaces
+     * @return QName for the parameter, or null if the parameter name is not registered
+     */
+    public QName decode(String name, NamespaceMap namespaces) {
+        Entry entry = names.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        String namespaceURI = namespaces.getURI(entry.alias);
+        if (entry.qname.getNamespaceURI().equals(namespaceURI)) {
+            return entry.qname;
+        }
+
+        if (entry.localPart == null) {
+            return new NamespaceQName(namespaceURI, entry.alias);
+        }
+
+        return new QName(namespaceURI, entry.localPart, entry.alias);
+    }
+
+    /**
+     * Get the encoded parameter name for a QName.
+     * 
+     * @param qname QName of the parameter
+     * @param alias alias the QName's namespace is declared with
+     * @return the encoded parameter name, or null if the parameter is not registered with the specified alias
+     */
+    public String encode(QName qname, String alias) {
+        Entry entry;
+        if (qname instanceof NamespaceQName) {
+            entry = declarations.get(qname.getNamespaceURI());
+        } else {
+            entry = parameters.get(qname);
+        }
+
+        if (entry != null && entry.alias.equals(alias)) {
+            return entry.name;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get a QName representing the declaration of a namespace. The canonical instance is returned if the namespace is
+     * registered with the specified alias.
+     * 
+     * @param namespaceURI namespace URI
+     * @param alias alias the namespace is declared with
+     * @return QName representing the namespace declaration
+     */
+    public NamespaceQName getNamespaceDeclaration(String namespaceURI, String alias) {
+        Entry entry = declarations.get(namespaceURI);
+        if (entry != null && entry.alias.equals(alias)) {
+            return (NamespaceQName) entry.qname;
+        }
+
+        return new NamespaceQName(namespaceURI, alias);
+    }
+
+    /**
+     * Registered parameter name.
+     */
+    private static class Entry {
+
+        /** Canonical QName. */
+        private final QName qname;
+
+        /** Encoded parameter name. */
+        private final String name;
+
+        /** Namespace alias the parameter is registered with. */
+        private final String alias;
+
+        /** Local part of the parameter name, or null if the entry is for a namespace declaration. */
+        private final String localPart;
+
+        /**
+         * Constructor.
+         * 
+         * @param newQName canonical QName
+         * @param newName encoded parameter name
+         * @param newAlias namespace alias
+         * @param newLocalPart local part of the parameter name
+         */
+        Entry(QName newQName, String newName, String newAlias, String newLocalPart) {
+            qname = newQName;
+            name = newName;
+            alias = newAlias;
+            localPart = newLocalPart;
+        }
+
+    }
+
+}
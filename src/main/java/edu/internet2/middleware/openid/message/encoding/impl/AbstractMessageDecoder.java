@@ -17,6 +17,7 @@
 package edu.internet2.middleware.openid.message.encoding.impl;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.XMLConstants;
@@ -39,6 +40,9 @@ import edu.internet2.middleware.openid.message.encoding.MessageDecoder;
  */
 public abstract class AbstractMessageDecoder<MessageType> implements MessageDecoder<MessageType> {
 
+    /** Prefix of extension namespace declaration parameters. */
+    private static final String NAMESPACE_DECLARATION_PREFIX = OpenIDConstants.MESSAGE_NAMESPACE_PREFIX + ".";
+
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(URLFormCodec.class);
 
@@ -46,25 +50,14 @@ public abstract class AbstractMessageDecoder<MessageType> implements MessageDeco
     public ParameterMap decode(MessageType encoded) throws EncodingException {
         Map<String, String> parameters = decodeMessage(encoded);
 
-        ParameterMap parameterMap = new ParameterMap();
+        ParameterMap parameterMap = new ParameterMap(parameters.size());
         NamespaceMap namespaces = parameterMap.getNamespaces();
 
         // build namespace map
         Iterator<String> keyIterator = parameters.keySet().iterator();
         while (keyIterator.hasNext()) {
             String key = keyIterator.next();
-            String value = parameters.get(key);
-
-            if (key.equals(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX)) {
-                // ns declaration (default namespace)
-                log.debug("Registering default namespace: {}", value);
-                namespaces.add(value, XMLConstants.DEFAULT_NS_PREFIX);
-                keyIterator.remove();
-            } else if (key.startsWith(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX + ".")) {
-                // ns.X declaration (extension namespace)
-                key = key.substring(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX.length() + 1);
-                log.debug("Registering '{}' namespace: {}", key, value);
-                namespaces.add(value, key);
+            if (registerNamespace(namespaces, key, parameters.get(key))) {
                 keyIterator.remove();
             }
         }
@@ -78,6 +71,60 @@ public abstract class AbstractMessageDecoder<MessageType> implements MessageDeco
         return parameterMap;
     }
 
+    /**
+     * Build a parameter map from parallel lists of decoded parameter names and values. Namespace declarations are
+     * registered first, and the remaining parameters are then resolved directly into the parameter map. If a parameter
+     * name appears more than once, the last value wins.
+     * 
+     * @param keys decoded parameter names, without any encoding specific prefix
+     * @param values decoded parameter values
+     * @return parameter map
+     */
+    protected ParameterMap buildParameterMap(List<String> keys, List<String> values) {
+        int size = keys.size();
+        ParameterMap parameterMap = new ParameterMap(size);
+        NamespaceMap namespaces = parameterMap.getNamespaces();
+
+        boolean[] declarations = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            declarations[i] = registerNamespace(namespaces, keys.get(i), values.get(i));
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (!declarations[i]) {
+                QName qname = EncodingUtils.decodeParameterName(keys.get(i), namespaces);
+                parameterMap.put(qname, values.get(i));
+            }
+        }
+
+        return parameterMap;
+    }
+
+    /**
+     * Register the namespace declared by the specified parameter, if the parameter is a namespace declaration.
+     * 
+     * @param namespaces namespace map to register the namespace with
+     * @param key decoded parameter name
+     * @param value decoded parameter value
+     * @return true if the parameter was a namespace declaration
+     */
+    protected boolean registerNamespace(NamespaceMap namespaces, String key, String value) {
+        if (key.equals(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX)) {
+            // ns declaration (default namespace)
+            log.debug("Registering default namespace: {}", value);
+            namespaces.add(value, XMLConstants.DEFAULT_NS_PREFIX);
+            return true;
+        } else if (key.startsWith(NAMESPACE_DECLARATION_PREFIX)) {
+            // ns.X declaration (extension namespace)
+            String alias = key.substring(NAMESPACE_DECLARATION_PREFIX.length());
+            log.debug("Registering '{}' namespace: {}", alias, value);
+            namespaces.add(value, alias);
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * Decode message into a simple key-value map of parameters.
      * 
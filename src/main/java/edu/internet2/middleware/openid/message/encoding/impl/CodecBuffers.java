@@ -0,0 +1,182 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Per-thread scratch buffers shared by the codecs in this package. The codec singletons are used concurrently by many
+ * threads, so they hold no mutable state of their own; instead, each thread is handed its own set of buffers, which
+ * are reused from one encode or decode call to the next.
+ * 
+ * Buffers that grow beyond a fixed limit while processing an unusually large message are not retained, so that a
+ * single large message does not pin memory for the lifetime of the thread.
+ * 
+ * Buffers must not be held beyond the call that obtained them, and a codec must not call into another codec while
+ * holding a buffer of the same kind.
+ */
+final class CodecBuffers {
+
+    /** Size of the byte buffers. */
+    static final int BUFFER_SIZE = 4096;
+
+    /** Largest string builder capacity retained between calls. */
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    /** Largest line buffer retained between calls. */
+    private static final int MAX_RETAINED_BYTES = 16 * 1024;
+
+    /** Buffers of the current thread. */
+    private static final ThreadLocal<CodecBuffers> BUFFERS = new ThreadLocal<CodecBuffers>() {
+        protected CodecBuffers initialValue() {
+            return new CodecBuffers();
+        }
+    };
+
+    /** String builder used to assemble encoded messages. */
+    private StringBuilder builder;
+
+    /** Decoder for application/x-www-form-urlencoded strings. */
+    private final PercentDecoder percentDecoder;
+
+    /** Buffer for reading from streams. */
+    private final byte[] readBuffer;
+
+    /** Buffer for collecting a line of bytes. */
+    private byte[] lineBuffer;
+
+    /** Buffer for writing to streams. */
+    private final ByteBuffer writeBuffer;
+
+    /** Strict UTF-8 decoder. */
+    private final CharsetDecoder decoder;
+
+    /** Strict UTF-8 encoder. */
+    private final CharsetEncoder encoder;
+
+    /** Constructor. */
+    private CodecBuffers() {
+        Charset utf8 = Charset.forName("UTF-8");
+
+        builder = new StringBuilder(256);
+        percentDecoder = new PercentDecoder();
+        readBuffer = new byte[BUFFER_SIZE];
+        lineBuffer = new byte[BUFFER_SIZE];
+        writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        decoder = utf8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(
+                CodingErrorAction.REPORT);
+        encoder = utf8.newEncoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(
+                CodingErrorAction.REPORT);
+    }
+
+    /**
+     * Get the buffers of the current thread.
+     * 
+     * @return buffers of the current thread
+     */
+    static CodecBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Get an empty string builder.
+     * 
+     * @return empty string builder
+     */
+    StringBuilder getStringBuilder() {
+        if (builder.capacity() > MAX_RETAINED_CHARS) {
+            builder = new StringBuilder(256);
+        }
+
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * Get the form decoder. Scratch buffers grown by an earlier call beyond the retained limits are discarded first.
+     * 
+     * @return form decoder
+     */
+    PercentDecoder getPercentDecoder() {
+        percentDecoder.trim(MAX_RETAINED_CHARS, MAX_RETAINED_BYTES);
+        return percentDecoder;
+    }
+
+    /**
+     * Get the buffer for reading from streams.
+     * 
+     * @return read buffer of {@link #BUFFER_SIZE} bytes
+     */
+    byte[] getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Get the buffer for collecting a line of bytes. The buffer is at least {@link #BUFFER_SIZE} bytes long.
+     * 
+     * @return line buffer
+     */
+    byte[] getLineBuffer() {
+        return lineBuffer;
+    }
+
+    /**
+     * Return a line buffer that was grown while processing a message, so that it can be reused.
+     * 
+     * @param buffer line buffer
+     */
+    void setLineBuffer(byte[] buffer) {
+        if (buffer.length <= MAX_RETAINED_BYTES) {
+            lineBuffer = buffer;
+        }
+    }
+
+    /**
+     * Get an empty buffer for writing to streams.
+     * 
+     * @return empty write buffer of {@link #BUFFER_SIZE} bytes
+     */
+    ByteBuffer getWriteBuffer() {
+        writeBuffer.clear();
+        return writeBuffer;
+    }
+
+    /**
+     * Get the strict UTF-8 decoder. The decoder is reset before it is returned.
+     * 
+     * @return UTF-8 decoder which reports malformed input
+     */
+    CharsetDecoder getDecoder() {
+        decoder.reset();
+        return decoder;
+    }
+
+    /**
+     * Get the strict UTF-8 encoder. The encoder is reset before it is returned.
+     * 
+     * @return UTF-8 encoder which reports malformed input
+     */
+    CharsetEncoder getEncoder() {
+        encoder.reset();
+        return encoder;
+    }
+
+}
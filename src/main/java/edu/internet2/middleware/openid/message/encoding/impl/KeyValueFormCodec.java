@@ -16,7 +16,9 @@
 
 package edu.internet2.middleware.openid.message.encoding.impl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -26,17 +28,18 @@ import edu.internet2.middleware.openid.common.ParameterMap;
 import edu.internet2.middleware.openid.message.encoding.EncodingException;
 import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
 import edu.internet2.middleware.openid.message.encoding.MessageEncoder;
+import edu.internet2.middleware.openid.util.MessageTrace;
 
 /**
  * Message encoder implementation which produces Key-Value Form encoded strings.
  */
 public class KeyValueFormCodec extends AbstractMessageDecoder<String> implements MessageEncoder<String> {
 
-    /** Codec singleton instance. */
-    private static KeyValueFormCodec singleton;
-
     /** Logger. */
-    private final Logger log = LoggerFactory.getLogger(KeyValueFormCodec.class);
+    private static final Logger log = LoggerFactory.getLogger(KeyValueFormCodec.class);
+
+    /** Codec singleton instance. */
+    private static final KeyValueFormCodec singleton = new KeyValueFormCodec();
 
     /**
      * Get singleton instance.
@@ -44,33 +47,70 @@ public class KeyValueFormCodec extends AbstractMessageDecoder<String> implements
      * @return singleton instance
      */
     public static KeyValueFormCodec getInstance() {
-        if (singleton == null) {
-            singleton = new KeyValueFormCodec();
-        }
-
         return singleton;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * 
+     * Parameters are resolved into the parameter map in the order in which they appear in the encoded string.
+     */
     public ParameterMap decode(String encoded) throws EncodingException {
         log.debug("Decoding Key-Value form encoded string: {}", encoded);
-        return super.decode(encoded);
+
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        scan(encoded, keys, values);
+
+        ParameterMap parameterMap = buildParameterMap(keys, values);
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("kvf-decode", parameterMap);
+        }
+
+        return parameterMap;
     }
 
     /** {@inheritDoc} */
     public Map<String, String> decodeMessage(String encoded) throws EncodingException {
-        Map<String, String> parameters = new HashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        scan(encoded, keys, values);
 
-        for (String line : encoded.split("\n")) {
-            String[] parts = line.split(":", 2);
-            if (parts.length == 2) {
-                parameters.put(parts[0], parts[1]);
-            }
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i < keys.size(); i++) {
+            parameters.put(keys.get(i), values.get(i));
         }
 
         return parameters;
     }
 
+    /**
+     * Scan the encoded string for message parameters. Lines that do not contain a colon are ignored.
+     * 
+     * @param encoded Key-Value form encoded string
+     * @param keys list to add parameter names to
+     * @param values list to add parameter values to
+     */
+    private void scan(String encoded, List<String> keys, List<String> values) {
+        int length = encoded.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = encoded.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int separator = PercentDecoder.indexOf(encoded, ':', start, end);
+            if (separator >= 0) {
+                keys.add(encoded.substring(start, separator));
+                values.add(encoded.substring(separator + 1, end));
+            }
+
+            start = end + 1;
+        }
+    }
+
     /** {@inheritDoc} */
     public String encode(ParameterMap parameterMap) throws EncodingException {
         log.debug("Encoding ParameterMap containing {} entries", parameterMap.size());
@@ -80,33 +120,47 @@ public class KeyValueFormCodec extends AbstractMessageDecoder<String> implements
 
     /** {@inheritDoc} */
     public String encode(Map<String, String> parameters) throws EncodingException {
-        StringBuffer buffer = new StringBuffer();
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("kvf-encode", parameters);
+        }
+
+        StringBuilder buffer = CodecBuffers.get().getStringBuilder();
 
         for (String key : parameters.keySet()) {
             String value = parameters.get(key);
-            log.debug("Encoding {}: {}", key, value);
-
-            if (key.contains(":")) {
-                log.warn("Message parameter cannot contain a colon ':': {}", key);
-                throw new EncodingException("Message parameter cannot contain a colon ':': " + key);
-            }
-
-            if (key.contains("\n")) {
-                log.warn("Message parameter name cannot contain a newline: {}", key);
-                throw new EncodingException("Message parameter name cannot contain a newline: " + key);
-            }
-
-            if (value != null && value.contains("\n")) {
-                log.warn("Message parameter value cannot contain a newline: {}", value);
-                throw new EncodingException("Message parameter value cannot contain a newline: " + value);
-            }
+            validateParameter(key, value);
 
             buffer.append(key);
-            buffer.append(":");
+            buffer.append(':');
             buffer.append(value);
-            buffer.append("\n");
+            buffer.append('\n');
         }
 
         return buffer.toString();
     }
+
+    /**
+     * Check that a parameter can be represented in Key-Value form.
+     * 
+     * @param key parameter name
+     * @param value parameter value
+     * @throws EncodingException if the parameter name contains a colon or newline, or the value contains a newline
+     */
+    static void validateParameter(String key, String value) throws EncodingException {
+        if (key.contains(":")) {
+            log.warn("Message parameter cannot contain a colon ':': {}", key);
+            throw new EncodingException("Message parameter cannot contain a colon ':': " + key);
+        }
+
+        if (key.contains("\n")) {
+            log.warn("Message parameter name cannot contain a newline: {}", key);
+            throw new EncodingException("Message parameter name cannot contain a newline: " + key);
+        }
+
+        if (value != null && value.contains("\n")) {
+            log.warn("Message parameter value cannot contain a newline: {}", value);
+            throw new EncodingException("Message parameter value cannot contain a newline: " + value);
+        }
+    }
+
 }
\ No newline at end of file
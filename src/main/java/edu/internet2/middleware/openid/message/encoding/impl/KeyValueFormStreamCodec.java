@@ -0,0 +1,416 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.NamespaceMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.message.encoding.EncodingException;
+import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+import edu.internet2.middleware.openid.util.MessageTrace;
+
+/**
+ * Key-Value Form codec that reads messages from an {@link InputStream} or {@link ReadableByteChannel} and writes them
+ * to an {@link OutputStream} or {@link WritableByteChannel}. This is suitable for processing the bodies of direct
+ * communication HTTP requests and responses, such as association and direct verification responses.
+ * 
+ * The message body is parsed one line at a time from the raw bytes, without ever building a string of the whole body.
+ * Messages must be valid UTF-8, and messages larger than the configured maximum size are rejected. Streams are not
+ * closed by this codec.
+ */
+public class KeyValueFormStreamCodec extends AbstractMessageDecoder<InputStream> {
+
+    /** Default maximum message size, in bytes. */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(KeyValueFormStreamCodec.class);
+
+    /** Maximum message size, in bytes. */
+    private int maxMessageSize;
+
+    /** Constructor. */
+    public KeyValueFormStreamCodec() {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize maximum size of decoded messages, in bytes
+     */
+    public KeyValueFormStreamCodec(int maxSize) {
+        maxMessageSize = maxSize;
+    }
+
+    /**
+     * Get the maximum size of decoded messages.
+     * 
+     * @return maximum message size, in bytes
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Set the maximum size of decoded messages.
+     * 
+     * @param maxSize maximum message size, in bytes
+     */
+    public void setMaxMessageSize(int maxSize) {
+        maxMessageSize = maxSize;
+    }
+
+    /** {@inheritDoc} */
+    public ParameterMap decode(InputStream input) throws EncodingException {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        read(input, keys, values);
+
+        ParameterMap parameterMap = buildParameterMap(keys, values);
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("kvf-stream-decode", parameterMap);
+        }
+
+        return parameterMap;
+    }
+
+    /**
+     * Decode a message read from a channel.
+     * 
+     * @param channel channel to read message from
+     * @return map of parameters
+     * @throws EncodingException if unable to read or decode the message
+     */
+    public ParameterMap decode(ReadableByteChannel channel) throws EncodingException {
+        return decode(Channels.newInputStream(channel));
+    }
+
+    /** {@inheritDoc} */
+    public Map<String, String> decodeMessage(InputStream input) throws EncodingException {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        read(input, keys, values);
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i < keys.size(); i++) {
+            parameters.put(keys.get(i), values.get(i));
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Encode a parameter map to an output stream.
+     * 
+     * @param parameters parameter map to encode
+     * @param output stream to write encoded message to
+     * @throws EncodingException if unable to encode or write the message
+     */
+    public void encode(ParameterMap parameters, OutputStream output) throws EncodingException {
+        log.debug("Encoding ParameterMap containing {} entries", parameters.size());
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("kvf-stream-encode", parameters);
+        }
+        LineWriter writer = new LineWriter(output);
+        NamespaceMap namespaces = parameters.getNamespaces();
+
+        for (String namespaceURI : namespaces.getURIs()) {
+            String alias = namespaces.getAlias(namespaceURI);
+            if (alias == XMLConstants.DEFAULT_NS_PREFIX) {
+                writer.write(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX, namespaceURI);
+            } else {
+                writer.write(OpenIDConstants.MESSAGE_NAMESPACE_PREFIX + "." + alias, namespaceURI);
+            }
+        }
+
+        for (Map.Entry<QName, String> entry : parameters.entrySet()) {
+            writer.write(EncodingUtils.encodeParameterName(entry.getKey(), namespaces), entry.getValue());
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Encode a simple key-value map of parameters to an output stream.
+     * 
+     * @param parameters map of parameters
+     * @param output stream to write encoded message to
+     * @throws EncodingException if unable to encode or write the message
+     */
+    public void encode(Map<String, String> parameters, OutputStream output) throws EncodingException {
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("kvf-stream-encode", parameters);
+        }
+
+        LineWriter writer = new LineWriter(output);
+
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            writer.write(entry.getKey(), entry.getValue());
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Encode a parameter map to a channel.
+     * 
+     * @param parameters parameter map to encode
+     * @param channel channel to write encoded message to
+     * @throws EncodingException if unable to encode or write the message
+     */
+    public void encode(ParameterMap parameters, WritableByteChannel channel) throws EncodingException {
+        encode(parameters, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Read the message parameters from the input stream.
+     * 
+     * @param input stream to read from
+     * @param keys list to add decoded parameter names to
+     * @param values list to add decoded parameter values to
+     * @throws EncodingException if unable to read or decode the message
+     */
+    private void read(InputStream input, List<String> keys, List<String> values) throws EncodingException {
+        CodecBuffers buffers = CodecBuffers.get();
+        CharsetDecoder decoder = buffers.getDecoder();
+        byte[] buffer = buffers.getReadBuffer();
+        byte[] line = buffers.getLineBuffer();
+        int lineLength = 0;
+        int total = 0;
+
+        try {
+            int read = input.read(buffer);
+            while (read >= 0) {
+                total += read;
+                if (total > maxMessageSize) {
+                    log.warn("Key-Value form message exceeds maximum size of {} bytes", maxMessageSize);
+                    throw new EncodingException("Message exceeds maximum size of " + maxMessageSize + " bytes");
+                }
+
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line = append(line, lineLength, buffer, start, i - start);
+                        lineLength += i - start;
+                        parseLine(decoder, line, lineLength, keys, values);
+                        lineLength = 0;
+                        start = i + 1;
+                    }
+                }
+                line = append(line, lineLength, buffer, start, read - start);
+                lineLength += read - start;
+
+                read = input.read(buffer);
+            }
+        } catch (IOException e) {
+            log.error("Unable to read Key-Value form message: {}", e.getMessage());
+            throw new EncodingException("Unable to read message", e);
+        }
+
+        if (lineLength > 0) {
+            parseLine(decoder, line, lineLength, keys, values);
+        }
+
+        buffers.setLineBuffer(line);
+    }
+
+    /**
+     * Append bytes to the line buffer, growing it if necessary.
+     * 
+     * @param line line buffer
+     * @param lineLength number of bytes currently in the line buffer
+     * @param source array to copy bytes from
+     * @param offset offset of the first byte to copy
+     * @param length number of bytes to copy
+     * @return the line buffer, which may be a new array
+     */
+    private byte[] append(byte[] line, int lineLength, byte[] source, int offset, int length) {
+        byte[] target = line;
+        if (lineLength + length > target.length) {
+            target = new byte[Math.max(target.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, target, 0, lineLength);
+        }
+
+        System.arraycopy(source, offset, target, lineLength, length);
+        return target;
+    }
+
+    /**
+     * Parse a single line of the message. Lines that do not contain a colon are ignored.
+     * 
+     * @param decoder UTF-8 decoder
+     * @param line line buffer
+     * @param length length of the line
+     * @param keys list to add decoded parameter name to
+     * @param values list to add decoded parameter value to
+     * @throws EncodingException if the line is not valid UTF-8
+     */
+    private void parseLine(CharsetDecoder decoder, byte[] line, int length, List<String> keys, List<String> values)
+            throws EncodingException {
+        // neither ':' nor '\n' can appear inside a multi-byte UTF-8 sequence, so it is safe to split on raw bytes
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ':') {
+                keys.add(decodeString(decoder, line, 0, i));
+                values.add(decodeString(decoder, line, i + 1, length - i - 1));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Strictly decode UTF-8 bytes into a string.
+     * 
+     * @param decoder UTF-8 decoder
+     * @param bytes array containing the bytes to decode
+     * @param offset offset of the first byte
+     * @param length number of bytes to decode
+     * @return decoded string
+     * @throws EncodingException if the bytes are not valid UTF-8
+     */
+    private String decodeString(CharsetDecoder decoder, byte[] bytes, int offset, int length)
+            throws EncodingException {
+        try {
+            decoder.reset();
+            return decoder.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            log.warn("Key-Value form message is not valid UTF-8");
+            throw new EncodingException("Message is not valid UTF-8", e);
+        }
+    }
+
+    /**
+     * Writes Key-Value form encoded lines to an output stream through a fixed size buffer.
+     */
+    private static class LineWriter {
+
+        /** Output stream. */
+        private final OutputStream output;
+
+        /** Output buffer. */
+        private final ByteBuffer buffer;
+
+        /** UTF-8 encoder. */
+        private final CharsetEncoder encoder;
+
+        /**
+         * Constructor.
+         * 
+         * @param stream output stream to write to
+         */
+        LineWriter(OutputStream stream) {
+            output = stream;
+            CodecBuffers buffers = CodecBuffers.get();
+            buffer = buffers.getWriteBuffer();
+            encoder = buffers.getEncoder();
+        }
+
+        /**
+         * Write a single Key-Value form encoded line.
+         * 
+         * @param key parameter name
+         * @param value parameter value
+         * @throws EncodingException if the parameter cannot be Key-Value form encoded or written
+         */
+        void write(String key, String value) throws EncodingException {
+            KeyValueFormCodec.validateParameter(key, value);
+            encode(key);
+            put((byte) ':');
+            encode(String.valueOf(value));
+            put((byte) '\n');
+        }
+
+        /**
+         * Flush the output buffer to the stream.
+         * 
+         * @throws EncodingException if unable to write to the stream
+         */
+        void flush() throws EncodingException {
+            try {
+                output.write(buffer.array(), 0, buffer.position());
+                output.flush();
+                buffer.clear();
+            } catch (IOException e) {
+                throw new EncodingException("Unable to write message", e);
+            }
+        }
+
+        /**
+         * Encode a string into the output buffer, flushing it to the stream as it fills.
+         * 
+         * @param s string to encode
+         * @throws EncodingException if the string cannot be encoded as UTF-8
+         */
+        private void encode(String s) throws EncodingException {
+            CharBuffer in = CharBuffer.wrap(s);
+            encoder.reset();
+
+            CoderResult result = encoder.encode(in, buffer, true);
+            while (result.isOverflow()) {
+                flush();
+                result = encoder.encode(in, buffer, true);
+            }
+            if (result.isError()) {
+                throw new EncodingException("Message parameter is not a valid Unicode string: " + s);
+            }
+
+            result = encoder.flush(buffer);
+            while (result.isOverflow()) {
+                flush();
+                result = encoder.flush(buffer);
+            }
+        }
+
+        /**
+         * Put a single byte into the output buffer.
+         * 
+         * @param b byte to put
+         * @throws EncodingException if unable to flush the buffer
+         */
+        private void put(byte b) throws EncodingException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(b);
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import edu.internet2.middleware.openid.message.encoding.EncodingException;
+
+/**
+ * Decoder for application/x-www-form-urlencoded strings. The results are identical to those of
+ * {@link java.net.URLDecoder#decode(String, String)} using UTF-8, but the decoder works on regions of a larger string
+ * and decodes into scratch buffers that are reused between calls, so that only the resulting strings are allocated.
+ * 
+ * Instances of this class are not thread-safe.
+ */
+class PercentDecoder {
+
+    /** Character scratch buffer. */
+    private char[] chars;
+
+    /** Byte scratch buffer for escaped octets. */
+    private byte[] bytes;
+
+    /** UTF-8 decoder. */
+    private final CharsetDecoder decoder;
+
+    /** Constructor. */
+    PercentDecoder() {
+        chars = new char[64];
+        bytes = new byte[32];
+        decoder = Charset.forName("UTF-8").newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Discard scratch buffers that have grown beyond the specified sizes, so that they are reallocated at their
+     * initial size by the next call that needs them.
+     * 
+     * @param maxChars largest character buffer to retain
+     * @param maxBytes largest byte buffer to retain
+     */
+    void trim(int maxChars, int maxBytes) {
+        if (chars.length > maxChars) {
+            chars = new char[64];
+        }
+        if (bytes.length > maxBytes) {
+            bytes = new byte[32];
+        }
+    }
+
+    /**
+     * Find the first occurrence of a character within the specified region of a string.
+     * 
+     * @param s string to search
+     * @param c character to search for
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @return index of the character, or -1 if the region does not contain the character
+     */
+    static int indexOf(String s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Check if the specified region of a string contains characters that must be decoded.
+     * 
+     * @param s string to check
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @return true if the region contains a '+' or '%' character
+     */
+    static boolean needsDecoding(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '+' || c == '%') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Decode the specified region of a form encoded string.
+     * 
+     * @param s string containing the region to decode
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @return decoded string
+     * @throws EncodingException if the region contains an illegal escape sequence
+     */
+    String decode(String s, int start, int end) throws EncodingException {
+        if (!needsDecoding(s, start, end)) {
+            return s.substring(start, end);
+        }
+
+        int length = end - start;
+        if (chars.length < length) {
+            chars = new char[length];
+        }
+
+        int charCount = 0;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+
+            if (c == '+') {
+                chars[charCount++] = ' ';
+                i++;
+            } else if (c == '%') {
+                // collect the run of escaped octets and decode them as a single UTF-8 sequence
+                int byteCount = 0;
+                if (bytes.length < (end - i) / 3) {
+                    bytes = new byte[(end - i) / 3];
+                }
+
+                while (i < end && s.charAt(i) == '%') {
+                    if (i + 2 >= end) {
+                        throw new EncodingException("Incomplete trailing escape (%) pattern");
+                    }
+                    int high = Character.digit(s.charAt(i + 1), 16);
+                    int low = Character.digit(s.charAt(i + 2), 16);
+                    if (high < 0 || low < 0) {
+                        throw new EncodingException("Illegal hex characters in escape (%) pattern: "
+                                + s.substring(i, i + 3));
+                    }
+                    bytes[byteCount++] = (byte) ((high << 4) + low);
+                    i += 3;
+                }
+
+                charCount = decodeBytes(byteCount, charCount);
+            } else {
+                chars[charCount++] = c;
+                i++;
+            }
+        }
+
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Decode the collected escaped octets as UTF-8 into the character buffer.
+     * 
+     * @param byteCount number of octets in the byte buffer
+     * @param charOffset position in the character buffer to decode into
+     * @return new position in the character buffer
+     */
+    private int decodeBytes(int byteCount, int charOffset) {
+        CharBuffer out = CharBuffer.wrap(chars, charOffset, chars.length - charOffset);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, 0, byteCount), out, true);
+        decoder.flush(out);
+        return out.position();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding.impl;
+
+import java.io.IOException;
+
+/**
+ * Percent-encoder which writes UTF-8 escaped strings directly to an {@link Appendable}. Each encoder is defined by a
+ * table of characters that are written unescaped, and by the encoding used for the space character.
+ * 
+ * Two encoders are provided. {@link #FORM} produces application/x-www-form-urlencoded output identical to that of
+ * {@link java.net.URLEncoder#encode(String, String)} using UTF-8, including the replacement of unpaired surrogates
+ * with an escaped '?'. {@link #RFC3986} leaves only the unreserved characters of RFC 3986 unescaped, and encodes
+ * spaces as "%20".
+ * 
+ * Instances of this class are immutable and thread-safe.
+ */
+public class PercentEncoder {
+
+    /** Encoder for application/x-www-form-urlencoded strings. */
+    public static final PercentEncoder FORM = new PercentEncoder("-_.*", true);
+
+    /** Encoder which only leaves RFC 3986 unreserved characters unescaped. */
+    public static final PercentEncoder RFC3986 = new PercentEncoder("-_.~", false);
+
+    /** Upper case hexadecimal digits. */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** Replacement for unpaired surrogates, matching the behavior of String.getBytes. */
+    private static final int REPLACEMENT = '?';
+
+    /** Table of ASCII characters that are written unescaped. */
+    private final boolean[] safe;
+
+    /** Whether the space character is encoded as '+'. */
+    private final boolean plusForSpace;
+
+    /**
+     * Constructor. Letters and digits are always safe.
+     * 
+     * @param safeCharacters additional ASCII characters that are written unescaped
+     * @param encodeSpaceAsPlus whether the space character is encoded as '+', rather than "%20"
+     */
+    public PercentEncoder(String safeCharacters, boolean encodeSpaceAsPlus) {
+        safe = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            safe[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            safe[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            safe[c] = true;
+        }
+        for (int i = 0; i < safeCharacters.length(); i++) {
+            char c = safeCharacters.charAt(i);
+            if (c >= 128) {
+                throw new IllegalArgumentException("Safe characters must be ASCII: " + c);
+            }
+            safe[c] = true;
+        }
+
+        plusForSpace = encodeSpaceAsPlus;
+    }
+
+    /**
+     * Encode a string.
+     * 
+     * @param s string to encode
+     * @return encoded string
+     */
+    public String encode(CharSequence s) {
+        StringBuilder buffer = new StringBuilder(s.length() + 16);
+        try {
+            encode(s, buffer);
+        } catch (IOException e) {
+            // StringBuilder does not throw IOException
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Encode a string, appending the result to the specified output. Runs of safe characters are appended as
+     * subsequences of the input without being copied individually.
+     * 
+     * @param s string to encode
+     * @param out output to append the encoded string to
+     * @throws IOException if unable to write to the output
+     */
+    public void encode(CharSequence s, Appendable out) throws IOException {
+        int length = s.length();
+        int safeStart = 0;
+        int i = 0;
+
+        while (i < length) {
+            char c = s.charAt(i);
+
+            if (c < 128 && safe[c]) {
+                i++;
+                continue;
+            }
+
+            if (safeStart < i) {
+                out.append(s, safeStart, i);
+            }
+
+            if (c == ' ' && plusForSpace) {
+                out.append('+');
+                i++;
+            } else if (c < 0x80) {
+                appendEscaped(c, out);
+                i++;
+            } else if (c < 0x800) {
+                appendEscaped(0xC0 | (c >> 6), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+                i++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+                appendEscaped(0xF0 | (codePoint >> 18), out);
+                appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), out);
+                appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (codePoint & 0x3F), out);
+                i += 2;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                appendEscaped(REPLACEMENT, out);
+                i++;
+            } else {
+                appendEscaped(0xE0 | (c >> 12), out);
+                appendEscaped(0x80 | ((c >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+                i++;
+            }
+
+            safeStart = i;
+        }
+
+        if (safeStart < length) {
+            out.append(s, safeStart, length);
+        }
+    }
+
+    /**
+     * Append a single escaped octet.
+     * 
+     * @param octet octet to escape
+     * @param out output to append the escaped octet to
+     * @throws IOException if unable to write to the output
+     */
+    private void appendEscaped(int octet, Appendable out) throws IOException {
+        out.append('%');
+        out.append(HEX[(octet >> 4) & 0x0F]);
+        out.append(HEX[octet & 0x0F]);
+    }
+
+}
@@ -19,6 +19,14 @@ package edu.internet2.middleware.openid.message.encoding.impl;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.xml.namespace.QName;
+
+import edu.internet2.middleware.openid.common.NamespaceMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+import edu.internet2.middleware.openid.util.MessageTrace;
+
 /**
  * Message Decoder implementation that decodes parameter maps retrieved from Servlet Requests.
  */
@@ -27,8 +35,14 @@ public class ServletRequestParameterMapDecoder extends AbstractMessageDecoder<Ma
     /** Prefix attached to each parameter of the encoded string. */
     private static final String PARAMETER_PREFIX = "openid";
 
+    /** Parameter prefix, including the separator. */
+    private static final String PREFIX = PARAMETER_PREFIX + ".";
+
+    /** Name of the default namespace declaration parameter, including the prefix. */
+    private static final String NAMESPACE_PARAMETER = PREFIX + OpenIDConstants.MESSAGE_NAMESPACE_PREFIX;
+
     /** Decoder single instance. */
-    private static ServletRequestParameterMapDecoder singleton;
+    private static final ServletRequestParameterMapDecoder singleton = new ServletRequestParameterMapDecoder();
 
     /**
      * Get singleton instance.
@@ -36,11 +50,56 @@ public class ServletRequestParameterMapDecoder extends AbstractMessageDecoder<Ma
      * @return singleton instance
      */
     public static ServletRequestParameterMapDecoder getInstance() {
-        if (singleton == null) {
-            singleton = new ServletRequestParameterMapDecoder();
+        return singleton;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The request parameters are read directly into the parameter map. Namespace declarations are registered in a
+     * first pass over the request parameters, and the remaining message parameters are resolved in a second pass,
+     * without building an intermediate map of parameters.
+     */
+    public ParameterMap decode(Map<String, String[]> encoded) {
+        ParameterMap parameterMap = new ParameterMap(encoded.size());
+        NamespaceMap namespaces = parameterMap.getNamespaces();
+
+        // register namespace declarations
+        for (Map.Entry<String, String[]> entry : encoded.entrySet()) {
+            String parameter = entry.getKey();
+            String[] values = entry.getValue();
+            if (values.length > 0 && isNamespaceDeclaration(parameter)) {
+                registerNamespace(namespaces, parameter.substring(PREFIX.length()), values[0]);
+            }
         }
 
-        return singleton;
+        // resolve message parameters
+        for (Map.Entry<String, String[]> entry : encoded.entrySet()) {
+            String parameter = entry.getKey();
+            String[] values = entry.getValue();
+            if (values.length > 0 && parameter.startsWith(PREFIX) && !isNamespaceDeclaration(parameter)) {
+                QName qname = EncodingUtils.decodeParameterName(parameter.substring(PREFIX.length()), namespaces);
+                parameterMap.put(qname, values[0]);
+            }
+        }
+
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("servlet-decode", parameterMap);
+        }
+
+        return parameterMap;
+    }
+
+    /**
+     * Check if a request parameter is an OpenID namespace declaration, either "openid.ns" or "openid.ns.alias".
+     * 
+     * @param parameter request parameter name
+     * @return true if the parameter is a namespace declaration
+     */
+    private boolean isNamespaceDeclaration(String parameter) {
+        int length = NAMESPACE_PARAMETER.length();
+        return parameter.startsWith(NAMESPACE_PARAMETER)
+                && (parameter.length() == length || parameter.charAt(length) == '.');
     }
 
     /** {@inheritDoc} */
@@ -48,8 +107,8 @@ public class ServletRequestParameterMapDecoder extends AbstractMessageDecoder<Ma
         Map<String, String> parameters = new HashMap<String, String>();
 
         for (String parameter : encoded.keySet()) {
-            if (parameter.startsWith(PARAMETER_PREFIX + ".")) {
-                String key = parameter.substring(PARAMETER_PREFIX.length() + 1);
+            if (parameter.startsWith(PREFIX)) {
+                String key = parameter.substring(PREFIX.length());
                 String[] values = encoded.get(parameter);
                 if (values.length > 0) {
                     parameters.put(key, values[0]);
@@ -16,10 +16,10 @@
 
 package edu.internet2.middleware.openid.message.encoding.impl;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import edu.internet2.middleware.openid.common.ParameterMap;
 import edu.internet2.middleware.openid.message.encoding.EncodingException;
 import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+import edu.internet2.middleware.openid.util.MessageTrace;
 
 /**
  * Message encoder implementation which produces x-www-urlencoded strings. Message parameters in a URL encoded string
@@ -40,53 +41,147 @@ public class URLFormCodec extends AbstractMessageDecoder<String> {
     /** Prefix attached to each parameter of the encoded string. */
     private static final String PARAMETER_PREFIX = "openid";
 
+    /** Parameter prefix, including the separator. */
+    private static final String PREFIX = PARAMETER_PREFIX + ".";
+
     /** Codec singleton instance. */
-    private static URLFormCodec singleton;
+    private static final URLFormCodec singleton = new URLFormCodec();
 
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(URLFormCodec.class);
 
+    /** Encoder used for parameter names and values. */
+    private volatile PercentEncoder percentEncoder;
+
+    /** Constructor. */
+    public URLFormCodec() {
+        percentEncoder = PercentEncoder.FORM;
+    }
+
     /**
      * Get singleton instance.
      * 
      * @return singleton instance
      */
     public static URLFormCodec getInstance() {
-        if (singleton == null) {
-            singleton = new URLFormCodec();
-        }
-
         return singleton;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Get the encoder used for parameter names and values.
+     * 
+     * @return the percent encoder
+     */
+    public PercentEncoder getPercentEncoder() {
+        return percentEncoder;
+    }
+
+    /**
+     * Set the encoder used for parameter names and values. Defaults to {@link PercentEncoder#FORM}.
+     * 
+     * @param encoder the percent encoder
+     */
+    public void setPercentEncoder(PercentEncoder encoder) {
+        percentEncoder = encoder;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The encoded string is scanned only once. Parameters that are not prefixed with "openid." are skipped without
+     * being decoded, and the remaining parameters are resolved directly into the parameter map without building an
+     * intermediate map of parameters.
+     */
     public ParameterMap decode(String encoded) throws EncodingException {
         log.debug("Decoding URL Form encoded string: {}", encoded);
-        return super.decode(encoded);
+
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        scan(encoded, keys, values);
+
+        ParameterMap parameterMap = buildParameterMap(keys, values);
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("url-decode", parameterMap);
+        }
+
+        return parameterMap;
     }
 
     /** {@inheritDoc} */
     public Map<String, String> decodeMessage(String encoded) throws EncodingException {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        scan(encoded, keys, values);
+
         Map<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i < keys.size(); i++) {
+            parameters.put(keys.get(i), values.get(i));
+        }
+
+        return parameters;
+    }
 
-        for (String pair : encoded.split("&")) {
-            String[] parts = pair.split("=", 2);
-            if (parts.length == 2) {
-                try {
-                    String key = URLDecoder.decode(parts[0], "UTF-8");
-                    if (key.startsWith(PARAMETER_PREFIX + ".")) {
-                        key = key.substring(PARAMETER_PREFIX.length() + 1);
-                        String value = URLDecoder.decode(parts[1], "UTF-8");
-                        parameters.put(key, value);
-                    }
-                } catch (UnsupportedEncodingException e) {
-                    log.error("UTF-8 encoding is not supported, this VM is not Java compliant.");
-                    throw new EncodingException("Unable to decode message, UTF-8 encoding is not supported");
+    /**
+     * Scan the encoded string for OpenID message parameters. The "openid." prefix is stripped from the parameter names,
+     * and parameter names and values are added to the provided lists in the order they appear.
+     * 
+     * @param encoded URL form encoded string
+     * @param keys list to add decoded parameter names to
+     * @param values list to add decoded parameter values to
+     * @throws EncodingException if the string contains an illegal escape sequence
+     */
+    private void scan(String encoded, List<String> keys, List<String> values) throws EncodingException {
+        PercentDecoder decoder = CodecBuffers.get().getPercentDecoder();
+        int length = encoded.length();
+        int start = 0;
+
+        while (start <= length) {
+            int end = encoded.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int separator = PercentDecoder.indexOf(encoded, '=', start, end);
+            if (separator >= 0) {
+                String key = decodeKey(decoder, encoded, start, separator);
+                if (key != null) {
+                    keys.add(key);
+                    values.add(decoder.decode(encoded, separator + 1, end));
                 }
             }
+
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Decode a parameter name, and strip the "openid." prefix. Names without an escaped character are checked for the
+     * prefix before being decoded, so that parameters which are not part of the OpenID message are never decoded.
+     * 
+     * @param decoder decoder to use
+     * @param encoded URL form encoded string
+     * @param start index of the first character of the parameter name
+     * @param end index after the last character of the parameter name
+     * @return decoded parameter name without the prefix, or null if the parameter is not an OpenID message parameter
+     * @throws EncodingException if the parameter name contains an illegal escape sequence
+     */
+    private String decodeKey(PercentDecoder decoder, String encoded, int start, int end) throws EncodingException {
+        int prefixLength = PREFIX.length();
+
+        if (PercentDecoder.indexOf(encoded, '%', start, end) < 0) {
+            // a '+' decodes to a space, so an unescaped name can only carry the prefix literally
+            if (end - start < prefixLength || !encoded.regionMatches(start, PREFIX, 0, prefixLength)) {
+                return null;
+            }
+            return decoder.decode(encoded, start + prefixLength, end);
         }
 
-        return parameters;
+        String key = decoder.decode(encoded, start, end);
+        if (key.startsWith(PREFIX)) {
+            return key.substring(prefixLength);
+        }
+
+        return null;
     }
 
     /** {@inheritDoc} */
@@ -98,25 +193,73 @@ public class URLFormCodec extends AbstractMessageDecoder<String> {
 
     /** {@inheritDoc} */
     public String encode(Map<String, String> parameters) throws EncodingException {
-        StringBuffer buffer = new StringBuffer();
+        StringBuilder buffer = CodecBuffers.get().getStringBuilder();
+        buffer.ensureCapacity(estimateEncodedLength(parameters));
+
+        try {
+            encode(parameters, buffer);
+        } catch (IOException e) {
+            // StringBuilder does not throw IOException
+            throw new EncodingException("Unable to encode message", e);
+        }
+
+        return buffer.toString();
+    }
+
+    /**
+     * Encode the parameter map, appending the result to the specified output.
+     * 
+     * @param parameterMap parameter map to encode
+     * @param out output to append the encoded message to
+     * @throws EncodingException if unable to encode the message
+     * @throws IOException if unable to write to the output
+     */
+    public void encode(ParameterMap parameterMap, Appendable out) throws EncodingException, IOException {
+        encode(EncodingUtils.flattenParameterNames(parameterMap), out);
+    }
+
+    /**
+     * Encode the map of message parameters, appending the result to the specified output.
+     * 
+     * @param parameters map of message parameters to encode
+     * @param out output to append the encoded message to
+     * @throws EncodingException if unable to encode the message
+     * @throws IOException if unable to write to the output
+     */
+    public void encode(Map<String, String> parameters, Appendable out) throws EncodingException, IOException {
+        if (MessageTrace.isEnabled()) {
+            MessageTrace.trace("url-encode", parameters);
+        }
+
         int keyCount = parameters.size();
 
-        for (String key : parameters.keySet()) {
-            try {
-                buffer.append(URLEncoder.encode(PARAMETER_PREFIX + "." + key, "UTF-8"));
-                buffer.append("=");
-                buffer.append(URLEncoder.encode(parameters.get(key), "UTF-8"));
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            percentEncoder.encode(PREFIX, out);
+            percentEncoder.encode(parameter.getKey(), out);
+            out.append('=');
+            percentEncoder.encode(parameter.getValue(), out);
 
-                if (--keyCount > 0) {
-                    buffer.append("&");
-                }
-            } catch (UnsupportedEncodingException e) {
-                log.error("UTF-8 encoding is not supported, this VM is not Java compliant.");
-                throw new EncodingException("Unable to encode message, UTF-8 encoding is not supported");
+            if (--keyCount > 0) {
+                out.append('&');
             }
         }
+    }
 
-        return buffer.toString();
+    /**
+     * Estimate the length of the encoded form of a map of message parameters. The estimate is intended for sizing
+     * buffers, and allows for a modest number of escaped characters.
+     * 
+     * @param parameters map of message parameters
+     * @return estimated length of the encoded message
+     */
+    public static int estimateEncodedLength(Map<String, String> parameters) {
+        int length = 0;
+
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            length += PREFIX.length() + parameter.getKey().length() + parameter.getValue().length() + 2;
+        }
+
+        return length + (length >> 2);
     }
 
-}
\ No newline at end of file
+}
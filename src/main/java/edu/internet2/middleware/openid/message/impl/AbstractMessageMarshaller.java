@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.Configuration;
 import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.ParameterMapSizeHint;
 import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
 import edu.internet2.middleware.openid.extensions.MessageExtension;
 import edu.internet2.middleware.openid.extensions.MessageExtensionMarshaller;
@@ -36,21 +37,40 @@ import edu.internet2.middleware.openid.message.io.MessageMarshaller;
  */
 public abstract class AbstractMessageMarshaller<MessageType extends Message> implements MessageMarshaller<MessageType> {
 
+    /** Default number of parameters a marshalled message is expected to contain. */
+    public static final int DEFAULT_EXPECTED_PARAMETER_COUNT = 8;
+
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(AbstractMessageMarshaller.class);
 
     /** Message extension marshallers. */
     private MessageExtensionMarshallerFactory extensionMarshallers;
 
+    /** Expected size of the marshalled parameter maps. */
+    private ParameterMapSizeHint sizeHint;
+
     /** Constructor. */
     public AbstractMessageMarshaller() {
+        this(DEFAULT_EXPECTED_PARAMETER_COUNT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param expectedParameterCount number of parameters a marshalled message is expected to contain, including the
+     *            parameters of any message extensions. This is only used to size the first parameter maps built by this
+     *            marshaller; later maps are sized from the number of parameters actually marshalled.
+     */
+    protected AbstractMessageMarshaller(int expectedParameterCount) {
         extensionMarshallers = Configuration.getExtensionMarshallers();
+        sizeHint = new ParameterMapSizeHint(expectedParameterCount);
     }
 
     /** {@inheritDoc} */
     public ParameterMap marshall(MessageType message) {
-        ParameterMap parameters = new ParameterMap();
+        ParameterMap parameters = sizeHint.newParameterMap();
         marshall(message, parameters);
+        sizeHint.recordSize(parameters.size());
         return parameters;
     }
 
@@ -28,6 +28,7 @@ import edu.internet2.middleware.openid.extensions.MessageExtensionUnmarshallerFa
 import edu.internet2.middleware.openid.message.Message;
 import edu.internet2.middleware.openid.message.MessageBuilder;
 import edu.internet2.middleware.openid.message.MessageBuilderFactory;
+import edu.internet2.middleware.openid.message.SignableMessage;
 import edu.internet2.middleware.openid.message.io.MessageUnmarshaller;
 import edu.internet2.middleware.openid.message.io.UnmarshallingException;
 
@@ -71,6 +72,10 @@ public abstract class AbstractMessageUnmarshaller<MessageType extends Message> i
     public void unmarshall(MessageType message, ParameterMap parameters) throws UnmarshallingException {
         unmarshallParameters(message, parameters);
         unmarshallExtensions(message, parameters);
+
+        if (message instanceof SignableMessage) {
+            ((SignableMessage) message).setReceivedParameters(parameters);
+        }
     }
 
     /**
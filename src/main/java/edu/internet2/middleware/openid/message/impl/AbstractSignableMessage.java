@@ -21,6 +21,7 @@ import java.util.List;
 
 import javax.xml.namespace.QName;
 
+import edu.internet2.middleware.openid.common.ParameterMap;
 import edu.internet2.middleware.openid.message.SignableMessage;
 import edu.internet2.middleware.openid.message.validation.AbstractValidatingMessage;
 
@@ -35,6 +36,9 @@ public abstract class AbstractSignableMessage extends AbstractValidatingMessage
     /** Signed Fields. */
     private List<QName> signedFields;
 
+    /** Received parameters. */
+    private ParameterMap receivedParameters;
+
     /**
      * Constructor.
      */
@@ -61,4 +65,14 @@ public abstract class AbstractSignableMessage extends AbstractValidatingMessage
         signature = newSignature;
     }
 
+    /** {@inheritDoc} */
+    public ParameterMap getReceivedParameters() {
+        return receivedParameters;
+    }
+
+    /** {@inheritDoc} */
+    public void setReceivedParameters(ParameterMap parameters) {
+        receivedParameters = parameters;
+    }
+
 }
\ No newline at end of file
@@ -27,6 +27,11 @@ import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
  */
 public class AssociationResponseMarshaller extends AbstractMessageMarshaller<AssociationResponse> {
 
+    /** Constructor. */
+    public AssociationResponseMarshaller() {
+        super(10);
+    }
+
     /** {@inheritDoc} */
     public void marshallParameters(AssociationResponse response, ParameterMap parameters) {
         parameters.put(Parameter.assoc_type.QNAME, response.getAssociationType().toString());
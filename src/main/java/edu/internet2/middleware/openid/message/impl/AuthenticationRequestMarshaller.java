@@ -25,6 +25,11 @@ import edu.internet2.middleware.openid.message.AuthenticationRequest;
  */
 public class AuthenticationRequestMarshaller extends AbstractMessageMarshaller<AuthenticationRequest> {
 
+    /** Constructor. */
+    public AuthenticationRequestMarshaller() {
+        super(12);
+    }
+
     /** {@inheritDoc} */
     public void marshallParameters(AuthenticationRequest request, ParameterMap parameters) {
         parameters.put(Parameter.mode.QNAME, request.getMode());
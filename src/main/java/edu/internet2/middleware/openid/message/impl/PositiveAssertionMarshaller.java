@@ -26,6 +26,11 @@ import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
  */
 public class PositiveAssertionMarshaller extends AbstractMessageMarshaller<PositiveAssertion> {
 
+    /** Constructor. */
+    public PositiveAssertionMarshaller() {
+        super(16);
+    }
+
     /** {@inheritDoc} */
     public void marshallParameters(PositiveAssertion response, ParameterMap parameters) {
         if (response.getAssociationHandle() != null) {
@@ -26,6 +26,11 @@ import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
  */
 public class VerifyRequestMarshaller extends AbstractMessageMarshaller<VerifyRequest> {
 
+    /** Constructor. */
+    public VerifyRequestMarshaller() {
+        super(16);
+    }
+
     /** {@inheritDoc} */
     public void marshallParameters(VerifyRequest request, ParameterMap parameters) {
         if (request.getAssociationHandle() != null) {
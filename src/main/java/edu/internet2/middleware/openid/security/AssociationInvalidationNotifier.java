@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+/**
+ * Notifies other nodes of a cluster that an association has been invalidated or removed from a shared
+ * {@link AssociationStore}, so that they can evict it from any local cache. Implementations typically publish the
+ * handle over a messaging system; the receiving nodes are responsible for evicting it from their own store.
+ */
+public interface AssociationInvalidationNotifier {
+
+    /**
+     * Notify other nodes that the association with the specified handle is no longer valid.
+     * 
+     * @param handle handle of the invalidated association
+     */
+    public void associationInvalidated(String handle);
+
+}
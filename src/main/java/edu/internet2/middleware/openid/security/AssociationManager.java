@@ -18,6 +18,7 @@ package edu.internet2.middleware.openid.security;
 
 import java.util.Date;
 
+import edu.internet2.middleware.openid.Configuration;
 import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
 
 /**
@@ -173,6 +174,7 @@ public class AssociationManager {
      */
     public void invalidate(String handle) {
         store.invalidate(handle);
+        Configuration.getMacCache().invalidate(handle);
     }
 
     /**
@@ -182,6 +184,7 @@ public class AssociationManager {
      */
     public void invalidate(Association association) {
         store.invalidate(association);
+        Configuration.getMacCache().invalidate(association.getHandle());
     }
 
 }
\ No newline at end of file
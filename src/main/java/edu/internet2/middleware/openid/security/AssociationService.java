@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.Configuration;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.OpenIDConstants.SessionType;
+import edu.internet2.middleware.openid.message.AssociationRequest;
+import edu.internet2.middleware.openid.message.AssociationResponse;
+import edu.internet2.middleware.openid.message.MessageBuilder;
+
+/**
+ * Establishes associations for association requests asynchronously. Building the association, Diffie-Hellman key
+ * agreement, and MAC key encryption all run on a dedicated, bounded pool of worker threads, so that a burst of
+ * association requests occupies at most that many threads rather than the container threads that also serve
+ * authentication requests.
+ * 
+ * Pending requests are queued up to a fixed capacity. Once the queue is full, new requests are rejected immediately
+ * with an {@link AssociationException}, and the caller is expected to respond with an error rather than wait.
+ * 
+ * Associations are built and stored through the {@link AssociationManager}, from the worker threads; its builder and
+ * store must therefore be thread-safe.
+ */
+public class AssociationService {
+
+    /** Default number of worker threads. */
+    public static final int DEFAULT_THREADS = 4;
+
+    /** Default number of requests that may be queued. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(AssociationService.class);
+
+    /** Association manager. */
+    private final AssociationManager associationManager;
+
+    /** Executor that establishes associations. */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor.
+     * 
+     * @param manager association manager used to build and store associations
+     */
+    public AssociationService(AssociationManager manager) {
+        this(manager, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param manager association manager used to build and store associations
+     * @param threads number of worker threads
+     * @param queueCapacity number of requests that may be queued
+     */
+    public AssociationService(AssociationManager manager, int threads, int queueCapacity) {
+        associationManager = manager;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueCapacity), new WorkerThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Get the association manager.
+     * 
+     * @return the association manager
+     */
+    public AssociationManager getAssociationManager() {
+        return associationManager;
+    }
+
+    /**
+     * Get the number of requests waiting for a worker thread.
+     * 
+     * @return number of queued requests
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Establish an association for an association request.
+     * 
+     * @param request association request
+     * @return future association response
+     * @throws AssociationException if the service is busy or has been shut down
+     */
+    public Future<AssociationResponse> associate(final AssociationRequest request) throws AssociationException {
+        try {
+            return executor.submit(new Callable<AssociationResponse>() {
+                public AssociationResponse call() throws AssociationException {
+                    return buildResponse(request);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Rejecting association request, association service is busy or shut down");
+            throw new AssociationException("Association service is busy", e);
+        }
+    }
+
+    /** Stop accepting requests. Requests that have already been accepted are still completed. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Build an association and the response for an association request.
+     * 
+     * @param request association request
+     * @return association response
+     * @throws AssociationException if unable to establish the association
+     */
+    protected AssociationResponse buildResponse(AssociationRequest request) throws AssociationException {
+        if (request.getAssociationType() == null || request.getSessionType() == null) {
+            throw new AssociationException("Association request is missing the association or session type");
+        }
+
+        QName qname = new QName(OpenIDConstants.OPENID_20_NS, OpenIDConstants.ASSOCIATION_RESPONSE_MODE);
+        MessageBuilder builder = Configuration.getMessageBuilders().getBuilder(qname);
+        if (builder == null) {
+            throw new AssociationException("Unable to find builder for association response");
+        }
+
+        Association association = associationManager.buildAssociation(request.getAssociationType());
+        log.debug("established association: {}", association.getHandle());
+
+        AssociationResponse response = (AssociationResponse) builder.buildObject();
+        response.setAssociationHandle(association.getHandle());
+        response.setAssociationType(association.getAssociationType());
+        response.setSessionType(request.getSessionType());
+        response.setLifetime(associationManager.getDefaultLifetime());
+
+        if (request.getSessionType() == SessionType.no_encryption) {
+            response.setMacKey(association.getMacKey());
+            return response;
+        }
+
+        DHPublicKey consumerPublic = request.getDHConsumerPublic();
+        if (consumerPublic == null) {
+            associationManager.invalidate(association);
+            throw new AssociationException("Association request is missing the consumer public key");
+        }
+
+        DHParameterSpec parameters = request.getDHParameters();
+        if (parameters == null) {
+            parameters = OpenIDConstants.DEFAULT_PARAMETER_SPEC;
+        }
+
+        KeyPair keyPair = AssociationUtils.generateKeyPair(parameters);
+        SecretKey sharedSecret = null;
+        if (keyPair != null) {
+            sharedSecret = AssociationUtils.generateSharedSecret(keyPair.getPrivate(), consumerPublic, request
+                    .getSessionType().getAlgorithm());
+        }
+        SecretKey encryptedKey = null;
+        if (sharedSecret != null) {
+            encryptedKey = AssociationUtils.encryptMacKey(association.getMacKey(), sharedSecret);
+        }
+        if (encryptedKey == null) {
+            associationManager.invalidate(association);
+            throw new AssociationException("Unable to encrypt MAC key for association: " + association.getHandle());
+        }
+
+        response.setDHServerPublic((DHPublicKey) keyPair.getPublic());
+        response.setMacKey(encryptedKey);
+        return response;
+    }
+
+    /**
+     * Creates daemon worker threads.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /** Number of threads created. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "openid-association-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -16,7 +16,7 @@
 
 package edu.internet2.middleware.openid.security;
 
-import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -26,6 +26,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
@@ -49,6 +51,13 @@ public final class AssociationUtils {
     /** Logger. */
     private static final Logger log = LoggerFactory.getLogger(AssociationUtils.class);
 
+    /**
+     * Registered key pair pools, keyed on parameter spec. {@link DHParameterSpec} does not override equals, so pools
+     * are found by parameter spec instance.
+     */
+    private static final Map<DHParameterSpec, KeyPairPool> KEY_PAIR_POOLS =
+            new ConcurrentHashMap<DHParameterSpec, KeyPairPool>();
+
     /** Constructor. */
     private AssociationUtils() {
     }
@@ -63,18 +72,62 @@ public final class AssociationUtils {
     }
 
     /**
-     * Generate a Diffie-Hellman key pair using the specified parameters.
+     * Generate a Diffie-Hellman key pair using the specified parameters. If a key pair pool has been registered for
+     * the parameters, the key pair is taken from the pool.
      * 
      * @param parameters parameters to use in generating the key pair
      * @return generated key pair
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidAlgorithmParameterException
      */
     public static KeyPair generateKeyPair(DHParameterSpec parameters) {
+        KeyPairPool pool = KEY_PAIR_POOLS.get(parameters);
+        if (pool != null) {
+            return pool.getKeyPair();
+        }
+
+        return newKeyPair(parameters);
+    }
+
+    /**
+     * Register a pool of pre-generated key pairs. The pool is used for requests with the same parameter spec instance
+     * as the pool, replacing any pool previously registered for it. The pool is not started by registering it.
+     * 
+     * @param pool key pair pool to register
+     */
+    public static void registerKeyPairPool(KeyPairPool pool) {
+        KEY_PAIR_POOLS.put(pool.getParameterSpec(), pool);
+    }
+
+    /**
+     * Unregister the pool of pre-generated key pairs for a parameter spec. The pool is not stopped by unregistering it.
+     * 
+     * @param parameters parameter spec of the pool to unregister
+     * @return the unregistered pool, or null if no pool was registered
+     */
+    public static KeyPairPool unregisterKeyPairPool(DHParameterSpec parameters) {
+        return KEY_PAIR_POOLS.remove(parameters);
+    }
+
+    /**
+     * Get the pool of pre-generated key pairs registered for a parameter spec.
+     * 
+     * @param parameters parameter spec
+     * @return the registered pool, or null if no pool is registered
+     */
+    public static KeyPairPool getKeyPairPool(DHParameterSpec parameters) {
+        return KEY_PAIR_POOLS.get(parameters);
+    }
+
+    /**
+     * Generate a new Diffie-Hellman key pair using the specified parameters, without consulting key pair pools.
+     * 
+     * @param parameters parameters to use in generating the key pair
+     * @return generated key pair, or null if unable to generate a key pair
+     */
+    static KeyPair newKeyPair(DHParameterSpec parameters) {
         log.debug("generating new Diffie-Hellman key pair.");
 
         try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(DH_ALGORITHM);
+            KeyPairGenerator keyGen = CryptoPrimitives.getKeyPairGenerator(DH_ALGORITHM);
             keyGen.initialize(parameters);
             return keyGen.generateKeyPair();
         } catch (NoSuchAlgorithmException e) {
@@ -98,7 +151,7 @@ public final class AssociationUtils {
         log.debug("generating new shared secret");
 
         try {
-            KeyAgreement keyAgreement = KeyAgreement.getInstance(DH_ALGORITHM);
+            KeyAgreement keyAgreement = CryptoPrimitives.getKeyAgreement(DH_ALGORITHM);
             keyAgreement.init(privateKey);
             keyAgreement.doPhase(publicKey, true);
             byte[] secretKey = keyAgreement.generateSecret();
@@ -123,7 +176,7 @@ public final class AssociationUtils {
         log.debug("generating new MAC key of size {} with algorithm: {}", keySize, algorithm);
 
         try {
-            KeyGenerator keyGen = KeyGenerator.getInstance(algorithm);
+            KeyGenerator keyGen = CryptoPrimitives.getKeyGenerator(algorithm);
             keyGen.init(keySize);
             return keyGen.generateKey();
         } catch (NoSuchAlgorithmException e) {
@@ -167,30 +220,62 @@ public final class AssociationUtils {
      */
     private static SecretKey macKeyEncryption(Key macKey, SecretKey sharedSecret) {
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance(sharedSecret.getAlgorithm());
-            byte[] digestedSecret = messageDigest.digest(sharedSecret.getEncoded());
+            MessageDigest messageDigest = CryptoPrimitives.getMessageDigest(sharedSecret.getAlgorithm());
+            byte[] key = macKey.getEncoded();
+            if (key.length != messageDigest.getDigestLength()) {
+                log.error("unable to encrypt MAC key: key length {} does not match digest length {}", key.length,
+                        messageDigest.getDigestLength());
+                return null;
+            }
+
+            // digest the shared secret into the output array and XOR the MAC key into it in place
+            byte[] encrypted = new byte[key.length];
+            messageDigest.update(sharedSecret.getEncoded());
+            messageDigest.digest(encrypted, 0, encrypted.length);
+            xor(key, encrypted, encrypted);
 
-            byte[] encrypted = xor(macKey.getEncoded(), digestedSecret);
             return new SecretKeySpec(encrypted, macKey.getAlgorithm());
         } catch (NoSuchAlgorithmException e) {
             log.error("unable to encrypt MAC key: {}", e.getMessage());
+        } catch (DigestException e) {
+            log.error("unable to encrypt MAC key: {}", e.getMessage());
         }
 
         return null;
     }
 
     /**
-     * Calculate an XOR on two byte arrays.
+     * Calculate an XOR on two byte arrays of the same length.
      * 
      * @param a first byte array
      * @param b second byte array
      * @return results of XOR
+     * @throws IllegalArgumentException if the arrays are not the same length
      */
     public static byte[] xor(byte[] a, byte[] b) {
-        BigInteger x = new BigInteger(a);
-        BigInteger y = new BigInteger(b);
+        byte[] result = new byte[a.length];
+        xor(a, b, result);
+        return result;
+    }
 
-        return x.xor(y).toByteArray();
+    /**
+     * Calculate an XOR on two byte arrays of the same length, storing the result in a third array. The result array may
+     * be one of the input arrays.
+     * 
+     * @param a first byte array
+     * @param b second byte array
+     * @param result array to store the result in
+     * @throws IllegalArgumentException if the arrays are not all the same length
+     */
+    public static void xor(byte[] a, byte[] b, byte[] result) {
+        if (a.length != b.length || a.length != result.length) {
+            throw new IllegalArgumentException("Unable to XOR byte arrays of different lengths: " + a.length + ", "
+                    + b.length + ", " + result.length);
+        }
+
+        for (int i = 0; i < a.length; i++) {
+            result[i] = (byte) (a[i] ^ b[i]);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.Configuration;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+import edu.internet2.middleware.openid.message.SignableMessage;
+import edu.internet2.middleware.openid.message.io.MarshallingException;
+import edu.internet2.middleware.openid.message.io.MessageMarshaller;
+
+/**
+ * Verifies the signatures of many messages at once. Messages are grouped by association handle, each association is
+ * looked up once, and a single initialized {@link Mac} is used for every message signed with that association.
+ * 
+ * If an {@link ExecutorService} is provided, groups are split into chunks of at most {@link #getChunkSize()} messages
+ * that are verified concurrently; otherwise all messages are verified on the calling thread. Associations are always
+ * looked up on the calling thread, so the association manager's store does not need to be thread-safe.
+ */
+public class BatchSignatureVerifier {
+
+    /** Default maximum number of messages verified by a single task. */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(BatchSignatureVerifier.class);
+
+    /** Association manager used to look up associations. */
+    private AssociationManager associationManager;
+
+    /** Executor used to verify chunks concurrently. */
+    private ExecutorService executor;
+
+    /** Maximum number of messages verified by a single task. */
+    private int chunkSize;
+
+    /**
+     * Constructor.
+     * 
+     * @param manager association manager used to look up associations
+     */
+    public BatchSignatureVerifier(AssociationManager manager) {
+        this(manager, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param manager association manager used to look up associations
+     * @param newExecutor executor used to verify chunks concurrently, or null to verify on the calling thread
+     */
+    public BatchSignatureVerifier(AssociationManager manager, ExecutorService newExecutor) {
+        associationManager = manager;
+        executor = newExecutor;
+        chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Get the maximum number of messages verified by a single task.
+     * 
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the maximum number of messages verified by a single task.
+     * 
+     * @param newChunkSize the chunk size
+     */
+    public void setChunkSize(int newChunkSize) {
+        chunkSize = newChunkSize;
+    }
+
+    /**
+     * Verify the signatures of messages. Messages that were unmarshalled from received parameters are verified against
+     * those parameters; other messages are marshalled first.
+     * 
+     * @param messages messages to verify
+     * @return verification result for each message, in the same order as the messages
+     * @throws SecurityException if unable to verify the signatures
+     */
+    public boolean[] verifyMessages(List<? extends SignableMessage> messages) throws SecurityException {
+        List<ParameterMap> parameters = new ArrayList<ParameterMap>(messages.size());
+        for (SignableMessage message : messages) {
+            ParameterMap received = message.getReceivedParameters();
+            if (received == null) {
+                try {
+                    MessageMarshaller marshaller = Configuration.getMessageMarshallers().getMarshaller(message);
+                    received = marshaller.marshall(message);
+                } catch (MarshallingException e) {
+                    log.error("Unable to verify message signature - " + e.getMessage());
+                    throw new SecurityException("Unable to verify message signature", e);
+                }
+            }
+            parameters.add(received);
+        }
+
+        return verify(parameters);
+    }
+
+    /**
+     * Verify the signatures of received message parameters. The result for a message is false if it is not signed, or
+     * if its association does not exist or is no longer valid.
+     * 
+     * @param messages received message parameters to verify
+     * @return verification result for each message, in the same order as the messages
+     * @throws SecurityException if unable to verify the signatures
+     */
+    public boolean[] verify(List<ParameterMap> messages) throws SecurityException {
+        boolean[] results = new boolean[messages.size()];
+
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < messages.size(); i++) {
+            String handle = messages.get(i).get(Parameter.assoc_handle.QNAME);
+            if (handle == null) {
+                continue;
+            }
+
+            List<Integer> group = groups.get(handle);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(handle, group);
+            }
+            group.add(i);
+        }
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            Association association = associationManager.getAssociation(group.getKey());
+            if (!associationManager.isValid(association)) {
+                log.warn("Unable to verify messages signed with unknown or expired association: {}", group.getKey());
+                continue;
+            }
+
+            List<Integer> indexes = group.getValue();
+            int size = executor == null ? indexes.size() : Math.max(1, chunkSize);
+            for (int start = 0; start < indexes.size(); start += size) {
+                List<Integer> chunk = indexes.subList(start, Math.min(start + size, indexes.size()));
+                chunks.add(new Chunk(association, messages, chunk, results));
+            }
+        }
+
+        log.debug("verifying {} messages in {} chunks", messages.size(), chunks.size());
+        if (executor == null) {
+            for (Chunk chunk : chunks) {
+                chunk.call();
+            }
+        } else {
+            invokeAll(chunks);
+        }
+
+        return results;
+    }
+
+    /**
+     * Verify chunks using the executor.
+     * 
+     * @param chunks chunks to verify
+     * @throws SecurityException if unable to verify a chunk
+     */
+    private void invokeAll(List<Chunk> chunks) throws SecurityException {
+        try {
+            for (Future<Void> future : executor.invokeAll(chunks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Interrupted while verifying message signatures", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SecurityException) {
+                throw (SecurityException) e.getCause();
+            }
+            throw new SecurityException("Unable to verify message signatures", e.getCause());
+        }
+    }
+
+    /**
+     * Messages signed with the same association, verified with a single MAC.
+     */
+    private static class Chunk implements Callable<Void> {
+
+        /** Logger. */
+        private final Logger log = LoggerFactory.getLogger(BatchSignatureVerifier.class);
+
+        /** Association the messages are signed with. */
+        private final Association association;
+
+        /** All messages in the batch. */
+        private final List<ParameterMap> messages;
+
+        /** Indexes of the messages in this chunk. */
+        private final List<Integer> indexes;
+
+        /** Results for all messages in the batch. */
+        private final boolean[] results;
+
+        /**
+         * Constructor.
+         * 
+         * @param newAssociation association the messages are signed with
+         * @param batch all messages in the batch
+         * @param chunk indexes of the messages in this chunk
+         * @param batchResults results for all messages in the batch
+         */
+        Chunk(Association newAssociation, List<ParameterMap> batch, List<Integer> chunk, boolean[] batchResults) {
+            association = newAssociation;
+            messages = batch;
+            indexes = chunk;
+            results = batchResults;
+        }
+
+        /** {@inheritDoc} */
+        public Void call() throws SecurityException {
+            MacCache macCache = Configuration.getMacCache();
+            SignatureDataWriter writer = SignatureDataWriter.getInstance();
+
+            try {
+                Mac mac = macCache.acquire(association);
+                try {
+                    for (int index : indexes) {
+                        results[index] = verify(writer, mac, messages.get(index));
+                    }
+                } finally {
+                    macCache.release(association, mac);
+                }
+            } catch (InvalidKeyException e) {
+                throw new SecurityException("Unable to generate MAC", e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new SecurityException("Unable to generate MAC", e);
+            }
+
+            return null;
+        }
+
+        /**
+         * Verify a single message. The MAC is reset once the signature has been verified. A message whose signature
+         * cannot be calculated, such as one that names a signed field it does not contain, fails verification without
+         * affecting the other messages in the batch.
+         * 
+         * @param writer signature data writer for the current thread
+         * @param mac MAC initialized with the association's key
+         * @param parameters received message parameters
+         * @return true if the signature is valid
+         */
+        private boolean verify(SignatureDataWriter writer, Mac mac, ParameterMap parameters) {
+            String signature = parameters.get(Parameter.sig.QNAME);
+            String signedFields = parameters.get(Parameter.signed.QNAME);
+            if (signature == null || signedFields == null || !SignatureDataWriter.isWellFormed(signedFields)) {
+                return false;
+            }
+
+            try {
+                writer.write(mac, parameters, signedFields);
+                return writer.verify(mac, signature);
+            } catch (SecurityException e) {
+                log.warn("Unable to verify message signature - {}", e.getMessage());
+                return false;
+            } finally {
+                mac.reset();
+            }
+        }
+
+    }
+
+}
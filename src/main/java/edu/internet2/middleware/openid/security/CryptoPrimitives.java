@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+
+/**
+ * Access to the JCA engines used for association cryptography. Looking up an engine through the JCA provider framework
+ * is synchronized and comparatively slow, so engines are cached per thread and algorithm, and handed out again on
+ * later calls from the same thread. Callers must fully initialize an engine before each use, and must not share it
+ * with other threads.
+ * 
+ * By default engines are obtained from the highest priority provider that supports the algorithm. A specific provider
+ * can be pinned with {@link #setProvider(Provider)}; changing the provider discards all cached engines.
+ */
+public final class CryptoPrimitives {
+
+    /** Engines cached for each thread. */
+    private static final ThreadLocal<Engines> ENGINES = new ThreadLocal<Engines>() {
+        protected Engines initialValue() {
+            return new Engines();
+        }
+    };
+
+    /** Pinned provider, or null to use the default provider for each algorithm. */
+    private static volatile Provider provider;
+
+    /** Incremented whenever the provider changes, so that threads discard engines from the previous provider. */
+    private static volatile int generation;
+
+    /** Constructor. */
+    private CryptoPrimitives() {
+    }
+
+    /**
+     * Get the pinned provider.
+     * 
+     * @return the pinned provider, or null if the default provider for each algorithm is used
+     */
+    public static Provider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Pin the provider used for all engines.
+     * 
+     * @param newProvider provider to use, or null to use the default provider for each algorithm
+     */
+    public static synchronized void setProvider(Provider newProvider) {
+        provider = newProvider;
+        generation++;
+    }
+
+    /**
+     * Pin the installed provider with the specified name.
+     * 
+     * @param name name of the provider to use, or null to use the default provider for each algorithm
+     * @throws IllegalArgumentException if no provider with the name is installed
+     */
+    public static void setProvider(String name) {
+        if (name == null) {
+            setProvider((Provider) null);
+            return;
+        }
+
+        Provider newProvider = Security.getProvider(name);
+        if (newProvider == null) {
+            throw new IllegalArgumentException("Security provider is not installed: " + name);
+        }
+        setProvider(newProvider);
+    }
+
+    /**
+     * Get a key factory for the current thread.
+     * 
+     * @param algorithm key algorithm
+     * @return key factory
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Engines engines = getEngines();
+        KeyFactory keyFactory = engines.keyFactories.get(algorithm);
+        if (keyFactory == null) {
+            Provider current = engines.provider;
+            keyFactory = current == null ? KeyFactory.getInstance(algorithm) : KeyFactory.getInstance(algorithm,
+                    current);
+            engines.keyFactories.put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    /**
+     * Get a key pair generator for the current thread. The generator must be initialized before use.
+     * 
+     * @param algorithm key algorithm
+     * @return key pair generator
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static KeyPairGenerator getKeyPairGenerator(String algorithm) throws NoSuchAlgorithmException {
+        Engines engines = getEngines();
+        KeyPairGenerator keyPairGenerator = engines.keyPairGenerators.get(algorithm);
+        if (keyPairGenerator == null) {
+            Provider current = engines.provider;
+            keyPairGenerator = current == null ? KeyPairGenerator.getInstance(algorithm) : KeyPairGenerator
+                    .getInstance(algorithm, current);
+            engines.keyPairGenerators.put(algorithm, keyPairGenerator);
+        }
+        return keyPairGenerator;
+    }
+
+    /**
+     * Get a key agreement for the current thread. The key agreement must be initialized before use.
+     * 
+     * @param algorithm key agreement algorithm
+     * @return key agreement
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static KeyAgreement getKeyAgreement(String algorithm) throws NoSuchAlgorithmException {
+        Engines engines = getEngines();
+        KeyAgreement keyAgreement = engines.keyAgreements.get(algorithm);
+        if (keyAgreement == null) {
+            Provider current = engines.provider;
+            keyAgreement = current == null ? KeyAgreement.getInstance(algorithm) : KeyAgreement.getInstance(
+                    algorithm, current);
+            engines.keyAgreements.put(algorithm, keyAgreement);
+        }
+        return keyAgreement;
+    }
+
+    /**
+     * Get a key generator for the current thread. The generator must be initialized before use.
+     * 
+     * @param algorithm key algorithm
+     * @return key generator
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static KeyGenerator getKeyGenerator(String algorithm) throws NoSuchAlgorithmException {
+        Engines engines = getEngines();
+        KeyGenerator keyGenerator = engines.keyGenerators.get(algorithm);
+        if (keyGenerator == null) {
+            Provider current = engines.provider;
+            keyGenerator = current == null ? KeyGenerator.getInstance(algorithm) : KeyGenerator.getInstance(
+                    algorithm, current);
+            engines.keyGenerators.put(algorithm, keyGenerator);
+        }
+        return keyGenerator;
+    }
+
+    /**
+     * Get a message digest for the current thread. The digest is reset before it is returned.
+     * 
+     * @param algorithm digest algorithm
+     * @return message digest
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        Engines engines = getEngines();
+        MessageDigest messageDigest = engines.messageDigests.get(algorithm);
+        if (messageDigest == null) {
+            Provider current = engines.provider;
+            messageDigest = current == null ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(
+                    algorithm, current);
+            engines.messageDigests.put(algorithm, messageDigest);
+        }
+        messageDigest.reset();
+        return messageDigest;
+    }
+
+    /**
+     * Create a new MAC from the pinned provider. MAC instances are not cached per thread, since they are pooled per
+     * association by {@link MacCache}.
+     * 
+     * @param algorithm MAC algorithm
+     * @return new MAC
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static Mac newMac(String algorithm) throws NoSuchAlgorithmException {
+        Provider current = provider;
+        return current == null ? Mac.getInstance(algorithm) : Mac.getInstance(algorithm, current);
+    }
+
+    /**
+     * Get the engines cached for the current thread, discarding them if the provider has changed.
+     * 
+     * @return engines for the current thread
+     */
+    private static Engines getEngines() {
+        Engines engines = ENGINES.get();
+        if (engines.generation != generation) {
+            engines = new Engines();
+            ENGINES.set(engines);
+        }
+        return engines;
+    }
+
+    /**
+     * Engines cached for a single thread.
+     */
+    private static class Engines {
+
+        /** Provider generation the engines were obtained with. */
+        private final int generation;
+
+        /** Provider the engines are obtained from. */
+        private final Provider provider;
+
+        /** Key factories, keyed on algorithm. */
+        private final Map<String, KeyFactory> keyFactories;
+
+        /** Key pair generators, keyed on algorithm. */
+        private final Map<String, KeyPairGenerator> keyPairGenerators;
+
+        /** Key agreements, keyed on algorithm. */
+        private final Map<String, KeyAgreement> keyAgreements;
+
+        /** Key generators, keyed on algorithm. */
+        private final Map<String, KeyGenerator> keyGenerators;
+
+        /** Message digests, keyed on algorithm. */
+        private final Map<String, MessageDigest> messageDigests;
+
+        /** Constructor. */
+        Engines() {
+            synchronized (CryptoPrimitives.class) {
+                generation = CryptoPrimitives.generation;
+                provider = CryptoPrimitives.provider;
+            }
+            keyFactories = new HashMap<String, KeyFactory>();
+            keyPairGenerators = new HashMap<String, KeyPairGenerator>();
+            keyAgreements = new HashMap<String, KeyAgreement>();
+            keyGenerators = new HashMap<String, KeyGenerator>();
+            messageDigests = new HashMap<String, MessageDigest>();
+        }
+
+    }
+
+}
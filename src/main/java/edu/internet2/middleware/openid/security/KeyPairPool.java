@@ -0,0 +1,259 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.DHParameterSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of pre-generated Diffie-Hellman key pairs for a single parameter spec. Generating a key pair is the most
+ * expensive part of establishing an association, so a background thread keeps the pool filled: whenever the number of
+ * pooled key pairs drops below the low watermark, it generates key pairs until the pool reaches the high watermark.
+ * 
+ * Each key pair is handed out at most once. If the pool is empty, or has not been started, a key pair is generated
+ * synchronously on the calling thread. The pool records how many requests were served from the pool (hits) and how
+ * many required synchronous generation (misses).
+ * 
+ * Pools are used by {@link AssociationUtils#generateKeyPair(DHParameterSpec)} once registered with
+ * {@link AssociationUtils#registerKeyPairPool(KeyPairPool)}.
+ */
+public class KeyPairPool {
+
+    /** Default low watermark. */
+    public static final int DEFAULT_LOW_WATERMARK = 16;
+
+    /** Default high watermark. */
+    public static final int DEFAULT_HIGH_WATERMARK = 64;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(KeyPairPool.class);
+
+    /** Parameters used to generate key pairs. */
+    private final DHParameterSpec parameterSpec;
+
+    /** Number of pooled key pairs below which the pool is refilled. */
+    private final int lowWatermark;
+
+    /** Number of pooled key pairs the pool is refilled to. */
+    private final int highWatermark;
+
+    /** Pooled key pairs. */
+    private final BlockingQueue<KeyPair> keyPairs;
+
+    /** Number of requests served from the pool. */
+    private final AtomicLong hits;
+
+    /** Number of requests that required synchronous generation. */
+    private final AtomicLong misses;
+
+    /** Lock used to signal the refill thread. */
+    private final Object refillLock;
+
+    /** Thread that refills the pool. */
+    private Thread refillThread;
+
+    /** Whether the refill thread should keep running. */
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     * 
+     * @param parameters parameters used to generate key pairs
+     */
+    public KeyPairPool(DHParameterSpec parameters) {
+        this(parameters, DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param parameters parameters used to generate key pairs
+     * @param low number of pooled key pairs below which the pool is refilled, at least 1
+     * @param high number of pooled key pairs the pool is refilled to
+     */
+    public KeyPairPool(DHParameterSpec parameters, int low, int high) {
+        if (low < 1 || low > high) {
+            throw new IllegalArgumentException("Invalid watermarks: low " + low + ", high " + high);
+        }
+
+        parameterSpec = parameters;
+        lowWatermark = low;
+        highWatermark = high;
+        keyPairs = new ArrayBlockingQueue<KeyPair>(high);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        refillLock = new Object();
+    }
+
+    /**
+     * Get the parameters used to generate key pairs.
+     * 
+     * @return the parameter spec
+     */
+    public DHParameterSpec getParameterSpec() {
+        return parameterSpec;
+    }
+
+    /**
+     * Get the number of pooled key pairs below which the pool is refilled.
+     * 
+     * @return the low watermark
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Get the number of pooled key pairs the pool is refilled to.
+     * 
+     * @return the high watermark
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Get the number of key pairs currently pooled.
+     * 
+     * @return number of pooled key pairs
+     */
+    public int size() {
+        return keyPairs.size();
+    }
+
+    /**
+     * Get the number of requests served from the pool.
+     * 
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests that required synchronous generation.
+     * 
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Check if the refill thread is running.
+     * 
+     * @return true if the pool has been started and not stopped
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Start the thread that fills the pool. */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        refillThread = new Thread(new Runnable() {
+            public void run() {
+                refill();
+            }
+        }, "openid-keypair-pool");
+        refillThread.setDaemon(true);
+        refillThread.start();
+    }
+
+    /** Stop the thread that fills the pool. Pooled key pairs are kept and continue to be handed out. */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        synchronized (refillLock) {
+            refillLock.notifyAll();
+        }
+
+        try {
+            refillThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refillThread = null;
+    }
+
+    /**
+     * Get a key pair. The key pair is removed from the pool and will not be handed out again.
+     * 
+     * @return key pair, or null if unable to generate one
+     */
+    public KeyPair getKeyPair() {
+        KeyPair keyPair = keyPairs.poll();
+
+        if (running && keyPairs.size() < lowWatermark) {
+            synchronized (refillLock) {
+                refillLock.notifyAll();
+            }
+        }
+
+        if (keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+
+        misses.incrementAndGet();
+        return AssociationUtils.newKeyPair(parameterSpec);
+    }
+
+    /** Keep the pool filled until stopped. */
+    private void refill() {
+        log.debug("starting Diffie-Hellman key pair pool refill thread");
+
+        while (running) {
+            while (running && keyPairs.size() < highWatermark) {
+                KeyPair keyPair = AssociationUtils.newKeyPair(parameterSpec);
+                if (keyPair == null) {
+                    log.error("Unable to generate Diffie-Hellman key pair, stopping key pair pool refill thread");
+                    running = false;
+                } else if (!keyPairs.offer(keyPair)) {
+                    break;
+                }
+            }
+
+            synchronized (refillLock) {
+                while (running && keyPairs.size() >= lowWatermark) {
+                    try {
+                        refillLock.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+            }
+        }
+
+        log.debug("stopped Diffie-Hellman key pair pool refill thread");
+    }
+
+}
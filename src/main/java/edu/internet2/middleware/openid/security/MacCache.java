@@ -0,0 +1,309 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of initialized {@link Mac} instances, keyed on association handle. Looking up a MAC implementation and
+ * initializing it with a key is considerably more expensive than computing a MAC over a short message, so instances
+ * are kept after use, reset, and handed out again for later messages signed with the same association.
+ * 
+ * A MAC is borrowed with {@link #acquire(Association)} and must be given back with
+ * {@link #release(Association, Mac)} once the signature has been computed; a borrowed MAC is never shared between
+ * threads. Pooled instances are discarded when their association is invalidated, when it expires, or when an
+ * association with the same handle but a different key is seen. Keys are compared by algorithm and encoded bytes,
+ * so associations materialized afresh by a store on every lookup still share a pool. The cache holds at most a fixed
+ * number of associations, and a fixed number of idle instances per association.
+ */
+public class MacCache {
+
+    /** Default maximum number of associations with pooled MAC instances. */
+    public static final int DEFAULT_MAX_ASSOCIATIONS = 1024;
+
+    /** Default maximum number of idle MAC instances kept per association. */
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(MacCache.class);
+
+    /** Pooled MAC instances, keyed on association handle. */
+    private final ConcurrentMap<String, Pool> pools;
+
+    /** Maximum number of associations with pooled MAC instances. */
+    private volatile int maxAssociations;
+
+    /** Maximum number of idle MAC instances kept per association. */
+    private volatile int maxIdle;
+
+    /** Constructor. */
+    public MacCache() {
+        this(DEFAULT_MAX_ASSOCIATIONS, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param associations maximum number of associations with pooled MAC instances
+     * @param idle maximum number of idle MAC instances kept per association
+     */
+    public MacCache(int associations, int idle) {
+        pools = new ConcurrentHashMap<String, Pool>();
+        maxAssociations = associations;
+        maxIdle = idle;
+    }
+
+    /**
+     * Get the maximum number of associations with pooled MAC instances.
+     * 
+     * @return maximum number of associations
+     */
+    public int getMaxAssociations() {
+        return maxAssociations;
+    }
+
+    /**
+     * Set the maximum number of associations with pooled MAC instances.
+     * 
+     * @param associations maximum number of associations
+     */
+    public void setMaxAssociations(int associations) {
+        maxAssociations = associations;
+    }
+
+    /**
+     * Get the maximum number of idle MAC instances kept per association.
+     * 
+     * @return maximum number of idle instances
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Set the maximum number of idle MAC instances kept per association. A value of zero disables pooling.
+     * 
+     * @param idle maximum number of idle instances
+     */
+    public void setMaxIdle(int idle) {
+        maxIdle = idle;
+    }
+
+    /**
+     * Borrow a MAC initialized with the key of the specified association.
+     * 
+     * @param association association to get MAC for
+     * @return initialized MAC, ready for use
+     * @throws NoSuchAlgorithmException if the association's MAC algorithm is not available
+     * @throws InvalidKeyException if the association's MAC key is not valid for its algorithm
+     */
+    public Mac acquire(Association association) throws NoSuchAlgorithmException, InvalidKeyException {
+        Pool pool = getPool(association);
+        if (pool != null) {
+            Mac mac = pool.idle.poll();
+            if (mac != null) {
+                pool.idleCount.decrementAndGet();
+                return mac;
+            }
+        }
+
+        SecretKey key = association.getMacKey();
+        Mac mac = CryptoPrimitives.newMac(key.getAlgorithm());
+        mac.init(key);
+        return mac;
+    }
+
+    /**
+     * Return a MAC borrowed with {@link #acquire(Association)}. The MAC is reset and pooled for later use, unless the
+     * association has been invalidated or has expired, or the pool is already full.
+     * 
+     * @param association association the MAC was acquired for
+     * @param mac MAC to return
+     */
+    public void release(Association association, Mac mac) {
+        String handle = association.getHandle();
+        if (handle == null) {
+            return;
+        }
+
+        Pool pool = pools.get(handle);
+        if (pool == null || !pool.matches(association.getMacKey())) {
+            return;
+        }
+
+        if (pool.idleCount.incrementAndGet() > maxIdle) {
+            pool.idleCount.decrementAndGet();
+            return;
+        }
+
+        mac.reset();
+        pool.idle.offer(mac);
+    }
+
+    /**
+     * Discard all pooled MAC instances for an association.
+     * 
+     * @param handle handle of the association
+     */
+    public void invalidate(String handle) {
+        if (handle != null && pools.remove(handle) != null) {
+            log.debug("discarded pooled MAC instances for association: {}", handle);
+        }
+    }
+
+    /** Discard all pooled MAC instances. */
+    public void clear() {
+        pools.clear();
+    }
+
+    /**
+     * Get the number of associations with pooled MAC instances.
+     * 
+     * @return number of associations
+     */
+    public int size() {
+        return pools.size();
+    }
+
+    /**
+     * Get the pool for an association, creating it if necessary.
+     * 
+     * @param association association to get pool for
+     * @return pool for the association, or null if instances for the association should not be pooled
+     */
+    private Pool getPool(Association association) {
+        String handle = association.getHandle();
+        if (handle == null || maxIdle <= 0) {
+            return null;
+        }
+
+        Date expiration = association.getExpiration();
+        if (expiration != null && expiration.getTime() <= System.currentTimeMillis()) {
+            invalidate(handle);
+            return null;
+        }
+
+        Pool pool = pools.get(handle);
+        if (pool != null && pool.matches(association.getMacKey())) {
+            return pool;
+        }
+
+        if (pool == null && pools.size() >= maxAssociations) {
+            evict();
+        }
+
+        Pool newPool = new Pool(association.getMacKey(), expiration);
+        if (pool == null) {
+            pool = pools.putIfAbsent(handle, newPool);
+            return pool == null ? newPool : pool;
+        }
+
+        // the handle has been reused with a different key
+        pools.replace(handle, pool, newPool);
+        return newPool;
+    }
+
+    /** Make room for a new association by discarding expired pools, or an arbitrary pool if none have expired. */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        boolean evicted = false;
+
+        Iterator<Pool> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            Pool pool = iterator.next();
+            if (pool.expiration != null && pool.expiration.getTime() <= now) {
+                iterator.remove();
+                evicted = true;
+            }
+        }
+
+        if (!evicted) {
+            iterator = pools.values().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Idle MAC instances for a single association.
+     */
+    private static class Pool {
+
+        /** Key the instances were initialized with. */
+        private final SecretKey key;
+
+        /** Encoded form of the key. */
+        private final byte[] encodedKey;
+
+        /** Expiration of the association. */
+        private final Date expiration;
+
+        /** Idle instances. */
+        private final Queue<Mac> idle;
+
+        /** Number of idle instances. */
+        private final AtomicInteger idleCount;
+
+        /**
+         * Constructor.
+         * 
+         * @param macKey key the instances are initialized with
+         * @param expires expiration of the association
+         */
+        Pool(SecretKey macKey, Date expires) {
+            key = macKey;
+            encodedKey = macKey.getEncoded();
+            expiration = expires;
+            idle = new ConcurrentLinkedQueue<Mac>();
+            idleCount = new AtomicInteger();
+        }
+
+        /**
+         * Check if the instances in this pool were initialized with the specified key. Keys match if they are the same
+         * instance, or have the same algorithm and encoded bytes.
+         * 
+         * @param macKey key to check
+         * @return true if the key matches the pool's key
+         */
+        boolean matches(SecretKey macKey) {
+            if (macKey == key) {
+                return true;
+            }
+            return macKey != null && key.getAlgorithm().equals(macKey.getAlgorithm())
+                    && MessageDigest.isEqual(encodedKey, macKey.getEncoded());
+        }
+
+    }
+
+}
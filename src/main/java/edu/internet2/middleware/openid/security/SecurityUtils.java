@@ -16,10 +16,10 @@
 
 package edu.internet2.middleware.openid.security;
 
+import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,12 +32,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.Configuration;
+import edu.internet2.middleware.openid.common.NamespaceMap;
 import edu.internet2.middleware.openid.common.NamespaceQName;
 import edu.internet2.middleware.openid.common.ParameterMap;
 import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
 import edu.internet2.middleware.openid.message.SignableMessage;
 import edu.internet2.middleware.openid.message.encoding.EncodingException;
 import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+import edu.internet2.middleware.openid.message.encoding.ParameterNameTable;
 import edu.internet2.middleware.openid.message.encoding.impl.KeyValueFormCodec;
 import edu.internet2.middleware.openid.message.io.MarshallingException;
 import edu.internet2.middleware.openid.message.io.MessageMarshaller;
@@ -77,16 +79,18 @@ public final class SecurityUtils {
         }
 
         List<QName> signedParameters = buildSignedParameters(messageParameters);
-        String signatureData = buildSignatureData(messageParameters, signedParameters);
-        String signature = calculateSignature(association, signatureData);
+        String signature = calculateSignature(association, messageParameters, signedParameters);
 
         message.getSignedFields().clear();
         message.getSignedFields().addAll(signedParameters);
         message.setSignature(signature);
+        message.setReceivedParameters(null);
     }
 
     /**
-     * Verify that the signature on an OpenID message is valid using the specified association.
+     * Verify that the signature on an OpenID message is valid using the specified association. If the message was
+     * unmarshalled from received parameters, the signature is verified against those parameters; otherwise the message
+     * is marshalled to obtain them.
      * 
      * @param message message to verify signature for
      * @param association association used to verify signature
@@ -94,6 +98,10 @@ public final class SecurityUtils {
      * @throws SecurityException if unable to validate the signature
      */
     public static boolean signatureIsValid(SignableMessage message, Association association) throws SecurityException {
+        if (message.getReceivedParameters() != null) {
+            return signatureIsValid(message.getReceivedParameters(), association);
+        }
+
         log.info("validating message signature");
 
         ParameterMap messageParameters;
@@ -105,9 +113,74 @@ public final class SecurityUtils {
             throw new SecurityException("Unable to verify message signature", e);
         }
 
-        String signatureData = buildSignatureData(messageParameters, message.getSignedFields());
-        String signature = calculateSignature(association, signatureData);
-        return signature.equals(message.getSignature());
+        if (message.getSignature() == null) {
+            log.warn("Message does not contain a signature");
+            return false;
+        }
+
+        MacCache macCache = Configuration.getMacCache();
+        try {
+            Mac mac = macCache.acquire(association);
+            try {
+                SignatureDataWriter writer = SignatureDataWriter.getInstance();
+                writer.write(mac, messageParameters, message.getSignedFields());
+                return writer.verify(mac, message.getSignature());
+            } finally {
+                macCache.release(association, mac);
+            }
+        } catch (InvalidKeyException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        }
+    }
+
+    /**
+     * Verify that the signature on received OpenID message parameters is valid using the specified association. The
+     * signature is calculated over the fields named in the received signed parameter, exactly as they were received,
+     * without unmarshalling or marshalling the message.
+     * 
+     * @param parameters received message parameters
+     * @param association association used to verify signature
+     * @return true if the signature is valid, false if it is not
+     * @throws SecurityException if unable to validate the signature
+     */
+    public static boolean signatureIsValid(ParameterMap parameters, Association association) throws SecurityException {
+        log.info("validating received message signature");
+
+        String receivedSignature = parameters.get(Parameter.sig.QNAME);
+        String signedFields = parameters.get(Parameter.signed.QNAME);
+        if (receivedSignature == null || signedFields == null) {
+            log.warn("Received message does not contain a signature");
+            return false;
+        }
+        if (!SignatureDataWriter.isWellFormed(signedFields)) {
+            log.warn("Received message contains a malformed list of signed fields: {}", signedFields);
+            return false;
+        }
+
+        log.debug("calculating signature using association: {}", association.getHandle());
+        log.debug("signature parameters = {}", signedFields);
+
+        MacCache macCache = Configuration.getMacCache();
+        try {
+            Mac mac = macCache.acquire(association);
+            try {
+                SignatureDataWriter writer = SignatureDataWriter.getInstance();
+                writer.write(mac, parameters, signedFields);
+                return writer.verify(mac, receivedSignature);
+            } finally {
+                macCache.release(association, mac);
+            }
+        } catch (InvalidKeyException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        }
     }
 
     /**
@@ -120,15 +193,20 @@ public final class SecurityUtils {
      * @return list of parameter names that should be signed
      */
     public static List<QName> buildSignedParameters(ParameterMap parameters) {
-        // Build list of message parameters to include in signature
-        List<QName> signedParameters = new ArrayList();
-        for (String nsURI : parameters.getNamespaces().getURIs()) {
-            QName nsQName = new NamespaceQName(nsURI, parameters.getNamespaces().getAlias(nsURI));
-            signedParameters.add(nsQName);
+        NamespaceMap namespaces = parameters.getNamespaces();
+        ParameterNameTable parameterNames = Configuration.getParameterNames();
+        List<QName> signedParameters = new ArrayList<QName>(namespaces.getURIs().size() + parameters.size());
+
+        for (String nsURI : namespaces.getURIs()) {
+            signedParameters.add(parameterNames.getNamespaceDeclaration(nsURI, namespaces.getAlias(nsURI)));
+        }
+
+        for (QName parameter : parameters.keySet()) {
+            if (!Parameter.sig.QNAME.equals(parameter) && !Parameter.signed.QNAME.equals(parameter)
+                    && !Parameter.mode.QNAME.equals(parameter)) {
+                signedParameters.add(parameter);
+            }
         }
-        signedParameters.addAll(parameters.keySet());
-        signedParameters.removeAll(Arrays.asList(new QName[] { Parameter.sig.QNAME, Parameter.signed.QNAME,
-                Parameter.mode.QNAME, }));
 
         return signedParameters;
     }
@@ -175,12 +253,53 @@ public final class SecurityUtils {
         log.debug("calculating signature using association: {}", association.getHandle());
         log.debug("signature data = {}", data);
 
+        MacCache macCache = Configuration.getMacCache();
         try {
-            Mac mac = Mac.getInstance(association.getMacKey().getAlgorithm());
-            mac.init(association.getMacKey());
+            Mac mac = macCache.acquire(association);
+            try {
+                byte[] rawHmac = mac.doFinal(data.getBytes("UTF-8"));
+                return new String(Base64.encodeBase64(rawHmac));
+            } finally {
+                macCache.release(association, mac);
+            }
+        } catch (UnsupportedEncodingException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        } catch (InvalidKeyException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Unable to generate MAC - " + e.getMessage());
+            throw new SecurityException("Unable to generate MAC", e);
+        }
+    }
 
-            byte[] rawHmac = mac.doFinal(data.getBytes());
-            return new String(Base64.encodeBase64(rawHmac));
+    /**
+     * Calculate the signature over the signed fields of a message using the specified association. The Key-Value Form
+     * encoding of the signed fields is written directly into the MAC, so the result is the same as calculating the
+     * signature over the result of {@link #buildSignatureData(ParameterMap, List)}, without building it.
+     * 
+     * @param association association to use for signing
+     * @param parameters message parameter map
+     * @param signedFields list of signed fields
+     * @return Base64 encoded signature
+     * @throws SecurityException if unable to calculate the signature
+     */
+    public static String calculateSignature(Association association, ParameterMap parameters,
+            List<QName> signedFields) throws SecurityException {
+        log.debug("calculating signature using association: {}", association.getHandle());
+        log.debug("signature parameters = {}", signedFields);
+
+        MacCache macCache = Configuration.getMacCache();
+        try {
+            Mac mac = macCache.acquire(association);
+            try {
+                SignatureDataWriter.getInstance().write(mac, parameters, signedFields);
+                byte[] rawHmac = mac.doFinal();
+                return new String(Base64.encodeBase64(rawHmac));
+            } finally {
+                macCache.release(association, mac);
+            }
         } catch (InvalidKeyException e) {
             log.error("Unable to generate MAC - " + e.getMessage());
             throw new SecurityException("Unable to generate MAC", e);
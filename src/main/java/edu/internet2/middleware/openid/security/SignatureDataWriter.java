@@ -0,0 +1,344 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.xml.namespace.QName;
+
+import edu.internet2.middleware.openid.common.NamespaceQName;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+
+/**
+ * Writes the Key-Value Form encoding of signed message parameters directly into a {@link Mac}. Characters are encoded
+ * as UTF-8 into a scratch buffer that is passed to {@link Mac#update(byte[], int, int)} whenever it fills, so that the
+ * signature data is never built as a map, string, or complete byte array.
+ * 
+ * The writer also verifies received signatures against the calculated MAC without allocating.
+ * 
+ * Instances of this class are not thread-safe; use {@link #getInstance()} to get the writer for the current thread.
+ */
+final class SignatureDataWriter {
+
+    /** Size of the scratch buffer. */
+    static final int BUFFER_SIZE = 512;
+
+    /** Writer for each thread. */
+    private static final ThreadLocal<SignatureDataWriter> WRITERS = new ThreadLocal<SignatureDataWriter>() {
+        protected SignatureDataWriter initialValue() {
+            return new SignatureDataWriter();
+        }
+    };
+
+    /** Maximum length of a raw MAC that can be verified. */
+    static final int MAX_MAC_LENGTH = 64;
+
+    /** Scratch buffer. */
+    private final byte[] buffer;
+
+    /** Buffer for a calculated MAC. */
+    private final byte[] calculated;
+
+    /** Buffer for a decoded received MAC. */
+    private final byte[] received;
+
+    /** Number of bytes in the scratch buffer. */
+    private int count;
+
+    /** MAC being written to. */
+    private Mac mac;
+
+    /** Constructor. */
+    private SignatureDataWriter() {
+        buffer = new byte[BUFFER_SIZE];
+        calculated = new byte[MAX_MAC_LENGTH];
+        received = new byte[MAX_MAC_LENGTH];
+    }
+
+    /**
+     * Get the writer for the current thread.
+     * 
+     * @return signature data writer
+     */
+    static SignatureDataWriter getInstance() {
+        return WRITERS.get();
+    }
+
+    /**
+     * Write the Key-Value Form encoding of the signed fields of a message into a MAC. The result is identical to
+     * passing the UTF-8 bytes of {@link SecurityUtils#buildSignatureData(ParameterMap, List)} to the MAC.
+     * 
+     * @param target MAC to write to
+     * @param parameters message parameter map
+     * @param signedFields list of signed fields
+     * @throws SecurityException if a signed field is missing or cannot be Key-Value Form encoded
+     */
+    void write(Mac target, ParameterMap parameters, List<QName> signedFields) throws SecurityException {
+        mac = target;
+        count = 0;
+        try {
+            for (QName field : signedFields) {
+                String name = EncodingUtils.encodeParameterName(field, parameters.getNamespaces());
+                writeField(name, field, parameters);
+            }
+            flush();
+        } finally {
+            mac = null;
+            count = 0;
+        }
+    }
+
+    /**
+     * Check that a received comma separated list of signed fields names at least one field and contains no empty
+     * names, as left by a leading, trailing, or doubled comma.
+     * 
+     * @param signedFields comma separated list of encoded parameter names
+     * @return true if the list is well formed
+     */
+    static boolean isWellFormed(String signedFields) {
+        int length = signedFields.length();
+        if (length == 0 || signedFields.charAt(0) == ',' || signedFields.charAt(length - 1) == ',') {
+            return false;
+        }
+        return signedFields.indexOf(",,") < 0;
+    }
+
+    /**
+     * Write the Key-Value Form encoding of the fields named in a received comma separated list of signed fields into
+     * a MAC. Parameter names are written exactly as they appear in the list, which should be checked with
+     * {@link #isWellFormed(String)} first.
+     * 
+     * @param target MAC to write to
+     * @param parameters received message parameter map
+     * @param signedFields comma separated list of encoded parameter names
+     * @throws SecurityException if a signed field is missing or cannot be Key-Value Form encoded
+     */
+    void write(Mac target, ParameterMap parameters, String signedFields) throws SecurityException {
+        mac = target;
+        count = 0;
+        try {
+            int start = 0;
+            int length = signedFields.length();
+            while (start <= length) {
+                int end = signedFields.indexOf(',', start);
+                if (end < 0) {
+                    end = length;
+                }
+
+                String name = signedFields.substring(start, end);
+                writeField(name, EncodingUtils.decodeParameterName(name, parameters.getNamespaces()), parameters);
+                start = end + 1;
+            }
+            flush();
+        } finally {
+            mac = null;
+            count = 0;
+        }
+    }
+
+    /**
+     * Complete a MAC and check it against a received Base64 encoded signature. The received signature is decoded and
+     * compared with the calculated MAC in scratch buffers, and the comparison takes the same time wherever the two
+     * differ.
+     * 
+     * @param target MAC that the signed data has been written to
+     * @param signature received Base64 encoded signature
+     * @return true if the signature matches the calculated MAC
+     * @throws SecurityException if unable to complete the MAC
+     */
+    boolean verify(Mac target, String signature) throws SecurityException {
+        int calculatedLength = target.getMacLength();
+        if (calculatedLength > MAX_MAC_LENGTH) {
+            throw new SecurityException("Unable to verify signature - unsupported MAC length: " + calculatedLength);
+        }
+
+        try {
+            target.doFinal(calculated, 0);
+        } catch (ShortBufferException e) {
+            throw new SecurityException("Unable to generate MAC", e);
+        }
+
+        int receivedLength = decodeBase64(signature, received);
+        if (receivedLength < 0) {
+            return false;
+        }
+
+        return isEqual(calculated, calculatedLength, received, receivedLength);
+    }
+
+    /**
+     * Compare two byte arrays in time that depends only on their lengths, not on where they differ.
+     * 
+     * @param a first array
+     * @param aLength number of bytes of the first array to compare
+     * @param b second array
+     * @param bLength number of bytes of the second array to compare
+     * @return true if the arrays are equal
+     */
+    static boolean isEqual(byte[] a, int aLength, byte[] b, int bLength) {
+        int result = aLength ^ bLength;
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            result |= a[i] ^ b[i];
+        }
+        return result == 0;
+    }
+
+    /**
+     * Decode a Base64 string into a buffer. Whitespace is ignored.
+     * 
+     * @param s string to decode
+     * @param out buffer to decode into
+     * @return number of decoded bytes, or -1 if the string is not valid Base64 or does not fit in the buffer
+     */
+    static int decodeBase64(String s, byte[] out) {
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int padding = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '+') {
+                value = 62;
+            } else if (c == '/') {
+                value = 63;
+            } else if (c == '=') {
+                padding++;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                continue;
+            } else {
+                return -1;
+            }
+
+            if (padding > 0) {
+                return -1;
+            }
+
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                if (length == out.length) {
+                    return -1;
+                }
+                out[length++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        if (padding > 2 || bitCount >= 6) {
+            return -1;
+        }
+
+        return length;
+    }
+
+    /**
+     * Write a single "key:value" line.
+     * 
+     * @param name encoded parameter name
+     * @param field QName of the parameter
+     * @param parameters message parameter map
+     * @throws SecurityException if the field is missing from the parameter map or cannot be Key-Value Form encoded
+     */
+    private void writeField(String name, QName field, ParameterMap parameters) throws SecurityException {
+        String value;
+        if (field instanceof NamespaceQName) {
+            value = field.getNamespaceURI();
+        } else {
+            value = parameters.get(field);
+        }
+
+        if (name.indexOf(':') >= 0 || name.indexOf('\n') >= 0) {
+            throw new SecurityException("Unable to sign data - invalid parameter name: " + name);
+        }
+        if (value == null) {
+            throw new SecurityException("Unable to sign data - missing value for signed parameter: " + name);
+        }
+        if (value.indexOf('\n') >= 0) {
+            throw new SecurityException("Unable to sign data - invalid value for parameter: " + name);
+        }
+
+        writeString(name);
+        writeByte(':');
+        writeString(value);
+        writeByte('\n');
+    }
+
+    /** Pass any bytes remaining in the scratch buffer to the MAC. */
+    private void flush() {
+        if (count > 0) {
+            mac.update(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Write a string as UTF-8. Unpaired surrogates are written as '?', as {@link String#getBytes(String)} does.
+     * 
+     * @param s string to write
+     */
+    private void writeString(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                writeByte('?');
+            } else {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Write a single byte, passing the scratch buffer to the MAC first if it is full.
+     * 
+     * @param b byte to write
+     */
+    private void writeByte(int b) {
+        if (count == buffer.length) {
+            mac.update(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+import edu.internet2.middleware.openid.security.AssociationStore;
+
+/**
+ * Implementation of {@link AssociationStore} that persists associations to a file, so that they survive a restart of
+ * the OpenID Provider and relying parties do not all have to re-associate at once.
+ * 
+ * Every change to the store is appended to a log file as a length-prefixed record with a CRC-32 checksum. Associations
+ * are served from an {@link InMemoryAssociationStore}, which is rebuilt on startup by replaying the log. Replay stops
+ * at the first incomplete or corrupt record, such as one that was being written when the process died, and the log is
+ * truncated there. The in-memory index is not bounded: every unexpired association is kept until it is removed, so
+ * that none is lost from the log by eviction.
+ * 
+ * Records are written to the file immediately, so they survive the death of the process, but are only forced to disk
+ * once {@link #getBatchSize()} records are pending, or every {@link #getSyncInterval()} milliseconds, so that a
+ * burst of new associations shares the cost of a single sync. Records of removed, replaced, and expired associations
+ * are compacted out of the log in the background once there are at least {@link #getCompactionThreshold()} of them.
+ * Compaction writes the live associations to a new file without blocking updates, and then moves it into place,
+ * keeping the old log as a backup until the new one has replaced it.
+ * 
+ * Errors writing the log are logged; the change is still applied to the in-memory associations, but will not survive a
+ * restart. Call {@link #close()} to sync the log and stop the background tasks.
+ */
+public class FileAssociationStore extends AbstractAssociationStore implements AssociationStore {
+
+    /** Default number of pending records that triggers a sync. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** Default interval between syncs, in milliseconds. */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    /** Default interval between compaction checks, in milliseconds. */
+    public static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+
+    /** Default number of obsolete records that triggers compaction. */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+    /** Magic number at the start of the log. */
+    private static final int MAGIC = 0x4f494441;
+
+    /** Log format version. */
+    private static final int VERSION = 1;
+
+    /** Length of the log header. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Length of a record header: body length and checksum. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** Maximum length of a record body. */
+    private static final int MAX_RECORD_LENGTH = 1 << 18;
+
+    /** Record adding an association. */
+    private static final byte ADD = 1;
+
+    /** Record removing an association. */
+    private static final byte REMOVE = 2;
+
+    /** Association types, by ordinal. */
+    private static final AssociationType[] TYPES = AssociationType.values();
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(FileAssociationStore.class);
+
+    /** Log file. */
+    private final File file;
+
+    /** Live associations. */
+    private final InMemoryAssociationStore associations;
+
+    /** Lock guarding the log and ordering updates. */
+    private final Object lock;
+
+    /** Lock allowing only one compaction at a time. */
+    private final Object compactionLock;
+
+    /** Whether compaction has been disabled after a failure to replace the log. */
+    private boolean compactionDisabled;
+
+    /** Whether the store has been closed, guarded by {@link #compactionLock}. */
+    private boolean closed;
+
+    /** Number of pending records that triggers a sync. */
+    private final int batchSize;
+
+    /** Interval between syncs. */
+    private final long syncInterval;
+
+    /** Number of obsolete records that triggers compaction. */
+    private volatile int compactionThreshold;
+
+    /** Log file access. */
+    private RandomAccessFile raf;
+
+    /** Log file channel. */
+    private FileChannel channel;
+
+    /** Position of the end of the log. */
+    private long position;
+
+    /** Number of records in the log. */
+    private int records;
+
+    /** Number of records written since the last sync. */
+    private int pending;
+
+    /** Background sync and compaction tasks. */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor.
+     * 
+     * @param newFile log file, which is created if it does not exist
+     * @throws IOException if the log cannot be opened or replayed
+     */
+    public FileAssociationStore(File newFile) throws IOException {
+        this(newFile, DEFAULT_BATCH_SIZE, DEFAULT_SYNC_INTERVAL, DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param newFile log file, which is created if it does not exist
+     * @param newBatchSize number of pending records that triggers a sync
+     * @param newSyncInterval interval between syncs in milliseconds, or 0 to only sync full batches
+     * @param compactionInterval interval between compaction checks in milliseconds, or 0 to only compact on request
+     * @throws IOException if the log cannot be opened or replayed
+     */
+    public FileAssociationStore(File newFile, int newBatchSize, long newSyncInterval, long compactionInterval)
+            throws IOException {
+        if (newBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+
+        file = newFile;
+        batchSize = newBatchSize;
+        syncInterval = newSyncInterval;
+        compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        associations = new InMemoryAssociationStore(Integer.MAX_VALUE);
+        lock = new Object();
+        compactionLock = new Object();
+
+        recoverCompaction();
+        open(file);
+        replay();
+
+        if (syncInterval > 0 || compactionInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new LogThreadFactory());
+            if (syncInterval > 0) {
+                scheduler.scheduleWithFixedDelay(new SyncTask(), syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+            }
+            if (compactionInterval > 0) {
+                scheduler.scheduleWithFixedDelay(new CompactionTask(), compactionInterval, compactionInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Get the log file.
+     * 
+     * @return log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the number of pending records that triggers a sync.
+     * 
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the interval between syncs.
+     * 
+     * @return sync interval in milliseconds, or 0 if the log is only synced when a batch is full
+     */
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Get the number of obsolete records that triggers compaction.
+     * 
+     * @return compaction threshold
+     */
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * Set the number of obsolete records that triggers compaction.
+     * 
+     * @param newThreshold compaction threshold
+     */
+    public void setCompactionThreshold(int newThreshold) {
+        compactionThreshold = newThreshold;
+    }
+
+    /**
+     * Get the number of associations in the store, including any that have expired but not yet been removed.
+     * 
+     * @return number of associations
+     */
+    public int size() {
+        return associations.size();
+    }
+
+    /**
+     * Get the number of records in the log.
+     * 
+     * @return number of records
+     */
+    public int getRecordCount() {
+        synchronized (lock) {
+            return records;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void add(Association association) {
+        byte[] record;
+        try {
+            record = encodeAdd(association);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Association cannot be written to the log: " + e.getMessage());
+        }
+
+        synchronized (lock) {
+            append(record);
+            associations.add(association);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Association get(String handle) {
+        return associations.get(handle);
+    }
+
+    /** {@inheritDoc} */
+    public Association getByEntity(String entity) {
+        return associations.getByEntity(entity);
+    }
+
+    /** {@inheritDoc} */
+    public void invalidate(String handle) {
+        remove(handle);
+    }
+
+    /** {@inheritDoc} */
+    public void remove(String handle) {
+        synchronized (lock) {
+            if (associations.get(handle) == null) {
+                return;
+            }
+
+            try {
+                append(encodeRemove(handle));
+            } catch (IOException e) {
+                log.error("Unable to encode removal of association " + handle, e);
+            }
+            associations.remove(handle);
+        }
+    }
+
+    /**
+     * Remove all expired associations from the store. Their records are removed from the log when it is next
+     * compacted.
+     * 
+     * @return number of associations removed
+     */
+    public int purgeExpired() {
+        return associations.purgeExpired();
+    }
+
+    /**
+     * Force all records written to the log to disk.
+     * 
+     * @throws IOException if the log cannot be synced
+     */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            if (pending > 0) {
+                channel.force(false);
+                pending = 0;
+            }
+        }
+    }
+
+    /**
+     * Compact the log if it holds at least {@link #getCompactionThreshold()} obsolete records.
+     * 
+     * @return true if the log was compacted
+     * @throws IOException if the log cannot be compacted
+     */
+    public boolean compactIfNeeded() throws IOException {
+        synchronized (lock) {
+            associations.purgeExpired();
+            if (records - associations.size() < compactionThreshold) {
+                return false;
+            }
+        }
+
+        compact();
+        return true;
+    }
+
+    /**
+     * Rewrite the log so that it only holds the records of live associations.
+     * 
+     * The live associations are written to a side file without holding the lock, so that the store can still be
+     * updated during the compaction. Records appended to the log in the meantime are then copied to the side file, the
+     * log is renamed to a backup, and the side file is renamed in its place. The backup is only deleted once the new
+     * log is in place; if the process dies at any point, the next {@link #FileAssociationStore(File)} finishes or
+     * discards the compaction. Once the store is closed, this does nothing.
+     * 
+     * @throws IOException if the log cannot be compacted
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            if (closed) {
+                return;
+            }
+            if (compactionDisabled) {
+                throw new IOException("Compaction is disabled after a failure to replace " + file);
+            }
+
+            List<Association> live;
+            long snapshotPosition;
+            int snapshotRecords;
+            synchronized (lock) {
+                associations.purgeExpired();
+                live = new ArrayList<Association>(associations.getAssociations());
+                snapshotPosition = position;
+                snapshotRecords = records;
+            }
+
+            File compacted = getCompactionFile();
+            RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+            try {
+                out.setLength(0);
+                FileChannel outChannel = out.getChannel();
+                long outPosition = writeHeader(outChannel);
+                int count = 0;
+                long now = System.currentTimeMillis();
+                for (Association association : live) {
+                    if (association.getExpiration() != null && association.getExpiration().getTime() <= now) {
+                        continue;
+                    }
+                    outPosition += write(outChannel, frame(encodeAdd(association)), outPosition);
+                    count++;
+                }
+                outChannel.force(true);
+
+                synchronized (lock) {
+                    // copy the records appended since the snapshot, which are already framed
+                    long appended = position - snapshotPosition;
+                    long copied = 0;
+                    while (copied < appended) {
+                        copied += channel.transferTo(snapshotPosition + copied, appended - copied, outChannel
+                                .position(outPosition + copied));
+                    }
+                    outChannel.force(true);
+                    out.close();
+
+                    int compactedRecords = count + records - snapshotRecords;
+                    log.debug("compacted association log from {} to {} records", records, compactedRecords);
+                    replaceLog(compacted);
+                    records = compactedRecords;
+                    pending = 0;
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Replace the log with a compacted log. The lock must be held.
+     * 
+     * @param compacted compacted log
+     * @throws IOException if the log cannot be replaced
+     */
+    private void replaceLog(File compacted) throws IOException {
+        File backup = getBackupFile();
+        raf.close();
+
+        if (!file.renameTo(backup)) {
+            compacted.delete();
+            open(file);
+            throw new IOException("Unable to rename " + file + " to " + backup);
+        }
+
+        if (!compacted.renameTo(file)) {
+            if (backup.renameTo(file)) {
+                compacted.delete();
+                open(file);
+                throw new IOException("Unable to rename compacted log " + compacted + " to " + file);
+            }
+
+            // the log is only available as the backup; keep appending to the compacted log, which the next start will
+            // move into place, and never compact over it
+            log.error("Unable to replace association log {}, continuing with compacted log {}", file, compacted);
+            compactionDisabled = true;
+            open(compacted);
+            throw new IOException("Unable to rename compacted log " + compacted + " to " + file);
+        }
+
+        if (!backup.delete()) {
+            log.warn("Unable to delete association log backup {}", backup);
+        }
+        open(file);
+    }
+
+    /**
+     * Sync the log and stop the background tasks, waiting for a compaction in progress to finish. The store must not
+     * be used after it is closed.
+     * 
+     * @throws IOException if the log cannot be synced or closed
+     */
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+
+        synchronized (compactionLock) {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    sync();
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a record to the log, syncing it if a batch is full. The lock must be held.
+     * 
+     * @param body record body
+     */
+    private void append(byte[] body) {
+        try {
+            position += write(channel, frame(body), position);
+            records++;
+            if (++pending >= batchSize) {
+                channel.force(false);
+                pending = 0;
+            }
+        } catch (IOException e) {
+            log.error("Unable to write to association log " + file, e);
+        }
+    }
+
+    /**
+     * Finish or discard a compaction that was interrupted by the death of the process.
+     */
+    private void recoverCompaction() {
+        File compacted = getCompactionFile();
+        File backup = getBackupFile();
+
+        if (file.exists()) {
+            // the compacted log was never moved into place, or the backup was not yet deleted
+            if (compacted.exists()) {
+                log.warn("discarding incomplete compaction of association log {}", file);
+                compacted.delete();
+            }
+            if (backup.exists()) {
+                backup.delete();
+            }
+        } else if (compacted.exists() && backup.exists()) {
+            // the log was moved to the backup, and the complete compacted log was not yet moved into place
+            log.warn("finishing interrupted compaction of association log {}", file);
+            if (compacted.renameTo(file)) {
+                backup.delete();
+            } else {
+                log.error("Unable to rename compacted association log {} to {}", compacted, file);
+            }
+        } else if (backup.exists()) {
+            log.warn("restoring association log {} from backup", file);
+            if (!backup.renameTo(file)) {
+                log.error("Unable to rename association log backup {} to {}", backup, file);
+            }
+        }
+    }
+
+    /**
+     * Open a log, writing its header if it is new.
+     * 
+     * @param target log file to open
+     * @throws IOException if the log cannot be opened or is not an association log
+     */
+    private void open(File target) throws IOException {
+        raf = new RandomAccessFile(target, "rw");
+        channel = raf.getChannel();
+
+        if (channel.size() < HEADER_LENGTH) {
+            channel.truncate(0);
+            position = writeHeader(channel);
+            channel.force(true);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        read(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            raf.close();
+            throw new IOException(target + " is not an association log");
+        }
+        position = channel.size();
+    }
+
+    /**
+     * Rebuild the associations from the log, truncating it after the last complete record.
+     * 
+     * @throws IOException if the log cannot be read
+     */
+    private void replay() throws IOException {
+        long size = channel.size();
+        long offset = HEADER_LENGTH;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+
+        while (offset < size) {
+            header.clear();
+            if (read(channel, header, offset) < RECORD_HEADER_LENGTH) {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 1 || length > MAX_RECORD_LENGTH) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (read(channel, body, offset + RECORD_HEADER_LENGTH) < length) {
+                break;
+            }
+            crc.reset();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum || !apply(body.array())) {
+                break;
+            }
+
+            offset += RECORD_HEADER_LENGTH + length;
+            records++;
+        }
+
+        if (offset < size) {
+            log.warn("truncating {} bytes of incomplete or corrupt records from association log {}", size - offset,
+                    file);
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        position = offset;
+
+        associations.purgeExpired();
+        log.debug("replayed {} records from association log, {} associations", records, associations.size());
+    }
+
+    /**
+     * Apply a record read from the log.
+     * 
+     * @param body record body
+     * @return true if the record was applied, false if it could not be decoded
+     */
+    private boolean apply(byte[] body) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        try {
+            byte op = in.readByte();
+            if (op == REMOVE) {
+                associations.remove(in.readUTF());
+                return true;
+            } else if (op != ADD) {
+                return false;
+            }
+
+            BasicAssociation association = new BasicAssociation();
+            association.setHandle(in.readUTF());
+            int type = in.readByte();
+            if (type > 0 && type <= TYPES.length) {
+                association.setAssociationType(TYPES[type - 1]);
+            }
+            association.setPrivate(in.readBoolean());
+            if (in.readBoolean()) {
+                association.setExpiration(new Date(in.readLong()));
+            }
+            if (in.readBoolean()) {
+                association.setEntity(in.readUTF());
+            }
+            if (in.readBoolean()) {
+                String algorithm = in.readUTF();
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                association.setMacKey(new SecretKeySpec(key, algorithm));
+            }
+
+            associations.add(association);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the file the log is moved to while a compacted log replaces it.
+     * 
+     * @return backup file
+     */
+    private File getBackupFile() {
+        return new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Get the file compaction writes to before it replaces the log.
+     * 
+     * @return compaction file
+     */
+    private File getCompactionFile() {
+        return new File(file.getPath() + ".compact");
+    }
+
+    /**
+     * Encode a record adding an association.
+     * 
+     * @param association association to add
+     * @return record body
+     * @throws IOException if the association cannot be encoded
+     */
+    private static byte[] encodeAdd(Association association) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD);
+        out.writeUTF(association.getHandle());
+
+        AssociationType type = association.getAssociationType();
+        out.writeByte(type == null ? 0 : type.ordinal() + 1);
+        out.writeBoolean(association.isPrivate());
+
+        Date expiration = association.getExpiration();
+        out.writeBoolean(expiration != null);
+        if (expiration != null) {
+            out.writeLong(expiration.getTime());
+        }
+
+        String entity = association.getEntity();
+        out.writeBoolean(entity != null);
+        if (entity != null) {
+            out.writeUTF(entity);
+        }
+
+        SecretKey macKey = association.getMacKey();
+        byte[] key = macKey == null ? null : macKey.getEncoded();
+        out.writeBoolean(key != null);
+        if (key != null) {
+            out.writeUTF(macKey.getAlgorithm());
+            out.writeShort(key.length);
+            out.write(key);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a record removing an association.
+     * 
+     * @param handle handle of the association to remove
+     * @return record body
+     * @throws IOException if the handle cannot be encoded
+     */
+    private static byte[] encodeRemove(String handle) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        out.writeUTF(handle);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Frame a record body with its length and checksum.
+     * 
+     * @param body record body
+     * @return framed record, ready to write
+     */
+    private static ByteBuffer frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Write the log header at the start of a channel.
+     * 
+     * @param target channel to write to
+     * @return length of the header
+     * @throws IOException if the header cannot be written
+     */
+    private static long writeHeader(FileChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        return write(target, header, 0);
+    }
+
+    /**
+     * Write a buffer to a channel at the specified position.
+     * 
+     * @param target channel to write to
+     * @param buffer buffer to write
+     * @param offset position to write at
+     * @return number of bytes written
+     * @throws IOException if the buffer cannot be written
+     */
+    private static int write(FileChannel target, ByteBuffer buffer, long offset) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer, offset + written);
+        }
+        return written;
+    }
+
+    /**
+     * Read from a channel at the specified position until the buffer is full or the end of the channel is reached.
+     * 
+     * @param source channel to read from
+     * @param buffer buffer to read into
+     * @param offset position to read from
+     * @return number of bytes read
+     * @throws IOException if the channel cannot be read
+     */
+    private static int read(FileChannel source, ByteBuffer buffer, long offset) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int count = source.read(buffer, offset + total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Periodically syncs the log.
+     */
+    private class SyncTask implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                sync();
+            } catch (IOException e) {
+                log.error("Unable to sync association log " + file, e);
+            }
+        }
+
+    }
+
+    /**
+     * Periodically compacts the log.
+     */
+    private class CompactionTask implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                log.error("Unable to compact association log " + file, e);
+            }
+        }
+
+    }
+
+    /**
+     * Creates the daemon thread that runs the background tasks.
+     */
+    private static class LogThreadFactory implements ThreadFactory {
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "openid-association-log");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
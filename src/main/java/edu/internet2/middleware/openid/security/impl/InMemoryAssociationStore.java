@@ -16,44 +16,179 @@
 
 package edu.internet2.middleware.openid.security.impl;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.security.Association;
 import edu.internet2.middleware.openid.security.AssociationStore;
 
 /**
  * Implementation of {@link AssociationStore} that maintains storage in memory.
+ * 
+ * The store is safe for concurrent use. Associations are held in a {@link ConcurrentHashMap}, so lookups do not lock.
+ * Updates are striped on the association handle: each stripe has its own lock and its own queue of the associations
+ * it holds, ordered by expiration, so writers to different stripes do not contend. Associations without an expiration
+ * are queued after all expiring ones, in the order they were added. An association is dropped from its queue as soon
+ * as it is removed, invalidated, or replaced.
+ * 
+ * Expired associations are no longer returned. They are removed from a stripe whenever an association is added to it,
+ * and from the whole store whenever {@link #purgeExpired()} is called.
+ * 
+ * Associations are indexed by entity, so that {@link #getByEntity(String)} only considers the associations for that
+ * entity, and returns the one with the longest remaining lifetime.
+ * 
+ * The store holds at most {@link #getMaxSize()} associations. Once it is full, the association at the head of the
+ * queues is evicted to make room for a new one: the association that expires soonest or, if none of the associations
+ * expire, the one that was added first.
  */
 public class InMemoryAssociationStore extends AbstractAssociationStore implements AssociationStore {
 
+    /** Default maximum number of associations. */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /** Number of update stripes. */
+    private static final int STRIPES = 16;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(InMemoryAssociationStore.class);
+
     /** Association map. */
-    private Map<String, Association> associations;
+    private final ConcurrentMap<String, Association> associations;
+
+    /** Associations keyed on entity, then handle. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Association>> entities;
+
+    /** Update stripes, selected by handle. */
+    private final Stripe[] stripes;
+
+    /** Sequence numbers ordering associations that expire at the same time. */
+    private final AtomicLong sequence;
+
+    /** Maximum number of associations. */
+    private volatile int maxSize;
 
     /** Constructor. */
     public InMemoryAssociationStore() {
-        associations = new HashMap<String, Association>();
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param newMaxSize maximum number of associations
+     */
+    public InMemoryAssociationStore(int newMaxSize) {
+        associations = new ConcurrentHashMap<String, Association>();
+        entities = new ConcurrentHashMap<String, ConcurrentMap<String, Association>>();
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        sequence = new AtomicLong();
+        maxSize = newMaxSize;
+    }
+
+    /**
+     * Get the maximum number of associations.
+     * 
+     * @return maximum number of associations
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Set the maximum number of associations.
+     * 
+     * @param newMaxSize maximum number of associations
+     */
+    public void setMaxSize(int newMaxSize) {
+        maxSize = newMaxSize;
+    }
+
+    /**
+     * Get the number of associations in the store, including any that have expired but not yet been removed.
+     * 
+     * @return number of associations
+     */
+    public int size() {
+        return associations.size();
     }
 
     /** {@inheritDoc} */
     public void add(Association association) {
-        associations.put(association.getHandle(), association);
+        String handle = association.getHandle();
+        Stripe stripe = getStripe(handle);
+
+        synchronized (stripe) {
+            purge(stripe, System.currentTimeMillis());
+
+            Entry previous = stripe.entries.get(handle);
+            if (previous != null) {
+                remove(stripe, previous);
+            }
+
+            Entry entry = new Entry(association, sequence.incrementAndGet());
+            stripe.entries.put(handle, entry);
+            stripe.push(entry);
+            associations.put(handle, association);
+            index(association);
+        }
+
+        while (associations.size() > maxSize && evictFirst()) {
+            // keep evicting until the store is within bounds
+        }
     }
 
     /** {@inheritDoc} */
     public Association get(String handle) {
-        return associations.get(handle);
+        Association association = associations.get(handle);
+        if (association != null && isExpired(association)) {
+            Stripe stripe = getStripe(handle);
+            synchronized (stripe) {
+                Entry entry = stripe.entries.get(handle);
+                if (entry != null && entry.association == association) {
+                    remove(stripe, entry);
+                }
+            }
+            return null;
+        }
+
+        return association;
     }
 
     /** {@inheritDoc} */
     public Association getByEntity(String entity) {
-        for (Association association : associations.values()) {
-            if (entity != null && entity.equals(association.getEntity())) {
-                return association;
+        if (entity == null) {
+            return null;
+        }
+
+        Map<String, Association> indexed = entities.get(entity);
+        if (indexed == null) {
+            return null;
+        }
+
+        Association best = null;
+        for (Association association : indexed.values()) {
+            if (isExpired(association) || associations.get(association.getHandle()) != association) {
+                continue;
+            }
+
+            if (best == null || expiresLater(association, best)) {
+                best = association;
             }
         }
 
-        return null;
+        return best;
     }
 
     /** {@inheritDoc} */
@@ -63,7 +198,359 @@ public class InMemoryAssociationStore extends AbstractAssociationStore implement
 
     /** {@inheritDoc} */
     public void remove(String handle) {
-        associations.remove(handle);
+        if (handle == null) {
+            return;
+        }
+
+        Stripe stripe = getStripe(handle);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(handle);
+            if (entry != null) {
+                remove(stripe, entry);
+            }
+        }
+    }
+
+    /**
+     * Get the associations in the store.
+     * 
+     * @return unmodifiable view of the associations, which may include associations that have expired
+     */
+    Collection<Association> getAssociations() {
+        return Collections.unmodifiableCollection(associations.values());
+    }
+
+    /**
+     * Remove all expired associations from the store.
+     * 
+     * @return number of associations removed
+     */
+    public int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += purge(stripe, now);
+            }
+        }
+
+        if (count > 0) {
+            log.debug("removed {} expired associations", count);
+        }
+        return count;
+    }
+
+    /**
+     * Remove the expired associations of a stripe. The stripe's lock must be held.
+     * 
+     * @param stripe stripe to purge
+     * @param now current time
+     * @return number of associations removed
+     */
+    private int purge(Stripe stripe, long now) {
+        int count = 0;
+        Entry head = stripe.peek();
+        while (head != null && head.time <= now) {
+            remove(stripe, head);
+            count++;
+            head = stripe.peek();
+        }
+        return count;
+    }
+
+    /**
+     * Evict the association at the head of the stripes' queues: the one that expires soonest or, if none expire, the
+     * one that was added first.
+     * 
+     * @return true if an association was evicted, false if the store is empty
+     */
+    private boolean evictFirst() {
+        Stripe first = null;
+        Entry firstHead = null;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Entry head = stripe.peek();
+                if (head != null && (firstHead == null || head.compareTo(firstHead) < 0)) {
+                    first = stripe;
+                    firstHead = head;
+                }
+            }
+        }
+
+        if (first == null) {
+            return false;
+        }
+
+        synchronized (first) {
+            // the head may have changed since it was found; evicting the new head is just as good
+            Entry head = first.peek();
+            if (head != null) {
+                remove(first, head);
+                log.debug("store is full, evicted association: {}", head.handle);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove an association from a stripe, the store, and the entity index. The stripe's lock must be held.
+     * 
+     * @param stripe stripe holding the association
+     * @param entry queue entry of the association
+     */
+    private void remove(Stripe stripe, Entry entry) {
+        stripe.removeAt(entry.index);
+        stripe.entries.remove(entry.handle);
+        if (associations.remove(entry.handle, entry.association)) {
+            unindex(entry.association);
+        }
+    }
+
+    /**
+     * Get the stripe for a handle.
+     * 
+     * @param handle association handle
+     * @return stripe
+     */
+    private Stripe getStripe(String handle) {
+        int hash = handle.hashCode();
+        hash ^= (hash >>> 16) ^ (hash >>> 8);
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    /**
+     * Add an association to the entity index.
+     * 
+     * @param association association to index
+     */
+    private void index(Association association) {
+        String entity = association.getEntity();
+        if (entity == null) {
+            return;
+        }
+
+        while (true) {
+            ConcurrentMap<String, Association> indexed = entities.get(entity);
+            if (indexed == null) {
+                indexed = new ConcurrentHashMap<String, Association>();
+                ConcurrentMap<String, Association> existing = entities.putIfAbsent(entity, indexed);
+                if (existing != null) {
+                    indexed = existing;
+                }
+            }
+
+            synchronized (indexed) {
+                // the map may have been dropped from the index after it became empty
+                if (entities.get(entity) == indexed) {
+                    indexed.put(association.getHandle(), association);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove an association from the entity index.
+     * 
+     * @param association association to remove
+     */
+    private void unindex(Association association) {
+        String entity = association.getEntity();
+        if (entity == null) {
+            return;
+        }
+
+        ConcurrentMap<String, Association> indexed = entities.get(entity);
+        if (indexed == null) {
+            return;
+        }
+
+        synchronized (indexed) {
+            indexed.remove(association.getHandle(), association);
+            if (indexed.isEmpty()) {
+                entities.remove(entity, indexed);
+            }
+        }
+    }
+
+    /**
+     * Check if an association expires later than another. Associations without an expiration never expire.
+     * 
+     * @param a first association
+     * @param b second association
+     * @return true if the first association expires later than the second
+     */
+    private boolean expiresLater(Association a, Association b) {
+        if (a.getExpiration() == null) {
+            return b.getExpiration() != null;
+        }
+
+        return b.getExpiration() != null && a.getExpiration().after(b.getExpiration());
+    }
+
+    /**
+     * Check if an association has expired.
+     * 
+     * @param association association to check
+     * @return true if the association has an expiration that has passed
+     */
+    private boolean isExpired(Association association) {
+        Date expiration = association.getExpiration();
+        return expiration != null && expiration.getTime() <= System.currentTimeMillis();
+    }
+
+    /**
+     * Association queued for expiration and eviction.
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        /** Association handle. */
+        private final String handle;
+
+        /** Association. */
+        private final Association association;
+
+        /** Expiration time in milliseconds, or {@link Long#MAX_VALUE} if the association does not expire. */
+        private final long time;
+
+        /** Sequence number, ordering associations that expire at the same time. */
+        private final long sequence;
+
+        /** Position of the entry in its stripe's queue. */
+        private int index;
+
+        /**
+         * Constructor.
+         * 
+         * @param newAssociation association to queue
+         * @param newSequence sequence number
+         */
+        Entry(Association newAssociation, long newSequence) {
+            handle = newAssociation.getHandle();
+            association = newAssociation;
+            Date expiration = newAssociation.getExpiration();
+            time = expiration == null ? Long.MAX_VALUE : expiration.getTime();
+            sequence = newSequence;
+        }
+
+        /** {@inheritDoc} */
+        public int compareTo(Entry other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+    /**
+     * Update stripe: the queue entries of the associations whose handles map to the stripe, keyed on handle and held
+     * in a binary heap ordered by expiration. Entries record their position in the heap, so that they can be removed
+     * in logarithmic time. All access must hold the stripe's lock.
+     */
+    private static class Stripe {
+
+        /** Entries keyed on handle. */
+        private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        /** Binary heap of entries. */
+        private Entry[] heap = new Entry[16];
+
+        /** Number of entries in the heap. */
+        private int size;
+
+        /**
+         * Get the entry at the head of the queue.
+         * 
+         * @return head entry, or null if the queue is empty
+         */
+        Entry peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        /**
+         * Add an entry to the queue.
+         * 
+         * @param entry entry to add
+         */
+        void push(Entry entry) {
+            if (size == heap.length) {
+                Entry[] grown = new Entry[size * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            place(entry, size++);
+            siftUp(entry.index);
+        }
+
+        /**
+         * Remove the entry at a position of the queue.
+         * 
+         * @param position position of the entry
+         */
+        void removeAt(int position) {
+            Entry last = heap[--size];
+            heap[size] = null;
+            if (position < size) {
+                place(last, position);
+                siftDown(position);
+                siftUp(last.index);
+            }
+        }
+
+        /**
+         * Move an entry up the heap until its parent precedes it.
+         * 
+         * @param position position of the entry
+         */
+        private void siftUp(int position) {
+            Entry entry = heap[position];
+            while (position > 0) {
+                int parent = (position - 1) >>> 1;
+                if (heap[parent].compareTo(entry) <= 0) {
+                    break;
+                }
+                place(heap[parent], position);
+                position = parent;
+            }
+            place(entry, position);
+        }
+
+        /**
+         * Move an entry down the heap until it precedes its children.
+         * 
+         * @param position position of the entry
+         */
+        private void siftDown(int position) {
+            Entry entry = heap[position];
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0) {
+                    child++;
+                }
+                if (entry.compareTo(heap[child]) <= 0) {
+                    break;
+                }
+                place(heap[child], position);
+                position = child;
+            }
+            place(entry, position);
+        }
+
+        /**
+         * Store an entry at a position of the heap.
+         * 
+         * @param entry entry to store
+         * @param position position to store it at
+         */
+        private void place(Entry entry, int position) {
+            heap[position] = entry;
+            entry.index = position;
+        }
+
     }
 
-}
\ No newline at end of file
+}
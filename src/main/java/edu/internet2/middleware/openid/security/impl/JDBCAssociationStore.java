@@ -0,0 +1,1192 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.sql.DataSource;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+import edu.internet2.middleware.openid.security.AssociationInvalidationNotifier;
+import edu.internet2.middleware.openid.security.AssociationStore;
+
+/**
+ * Implementation of {@link AssociationStore} that keeps associations in a relational database, so that they can be
+ * shared by all nodes of a clustered OpenID Provider. The table is created by {@link #createTable()}, or may be
+ * created separately:
+ * 
+ * <pre>
+ * CREATE TABLE openid_association (
+ *     handle VARCHAR(255) NOT NULL PRIMARY KEY,
+ *     assoc_type VARCHAR(32),
+ *     expiration BIGINT,
+ *     entity VARCHAR(1024),
+ *     private_assoc SMALLINT NOT NULL,
+ *     key_algorithm VARCHAR(32),
+ *     mac_key VARCHAR(128))
+ * </pre>
+ * 
+ * By default, every association is written to the database before {@link #add(Association)} returns, so that it is
+ * immediately visible to the other nodes. Write-behind is enabled by constructing the store with a flush interval:
+ * new associations are then queued and written in batches, either once {@link #getBatchSize()} are queued or every
+ * flush interval, so that a burst of associations shares one round trip and one transaction. Until an association has
+ * been written, it is only visible to the node that added it.
+ * 
+ * If a batch cannot be written, its associations are written one at a time, so that an association the database
+ * rejects does not hold back the others. Associations whose write fails are put back in the queue and retried by the
+ * background task, and are discarded after {@link #getMaxWriteAttempts()} failed writes. While the database cannot be
+ * reached, associations are queued without counting attempts, and the oldest are discarded once
+ * {@link #getMaxQueueSize()} are queued. Associations whose columns do not fit in the table are rejected by
+ * {@link #add(Association)}.
+ * 
+ * Associations are read through a local cache, whose entries are reloaded from the database once they are older than
+ * {@link #getCacheTTL()}. When an association is removed or invalidated, it is deleted from the database and the
+ * {@link AssociationInvalidationNotifier} is called, so that the other nodes can evict it from their caches with
+ * {@link #evictCached(String)}. Without a notifier, other nodes may continue to use an invalidated association until
+ * their cache entry expires.
+ * 
+ * Connections are obtained from the data source and kept open, along with their prepared statements, for reuse by
+ * later operations. Expired rows are deleted by a background sweeper. Call {@link #close()} to flush queued
+ * associations, stop the background tasks, and release the connections.
+ */
+public class JDBCAssociationStore extends AbstractAssociationStore implements AssociationStore {
+
+    /** Default table name. */
+    public static final String DEFAULT_TABLE_NAME = "openid_association";
+
+    /** Default number of queued associations that triggers a write. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** Default interval between writes of queued associations, in milliseconds; 0 writes associations as added. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 0;
+
+    /** Interval between retries of failed writes when associations are written as added, in milliseconds. */
+    public static final long RETRY_INTERVAL = 1000;
+
+    /** Default maximum number of associations waiting to be written. */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 10000;
+
+    /** Default number of failed writes after which an association is discarded. */
+    public static final int DEFAULT_MAX_WRITE_ATTEMPTS = 10;
+
+    /** Length of the handle column. */
+    public static final int HANDLE_LENGTH = 255;
+
+    /** Length of the association type column. */
+    public static final int TYPE_LENGTH = 32;
+
+    /** Length of the entity column. */
+    public static final int ENTITY_LENGTH = 1024;
+
+    /** Length of the key algorithm column. */
+    public static final int ALGORITHM_LENGTH = 32;
+
+    /** Length of the MAC key column. */
+    public static final int KEY_LENGTH = 128;
+
+    /** Default interval between deletions of expired rows, in milliseconds. */
+    public static final long DEFAULT_SWEEP_INTERVAL = 300000;
+
+    /** Default time to live of cache entries, in milliseconds. */
+    public static final long DEFAULT_CACHE_TTL = 30000;
+
+    /** Default maximum number of cache entries. */
+    public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+    /** Default maximum number of idle connections. */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+
+    /** Columns of the association table. */
+    private static final String COLUMNS = "handle, assoc_type, expiration, entity, private_assoc, key_algorithm, "
+            + "mac_key";
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(JDBCAssociationStore.class);
+
+    /** Data source. */
+    private final DataSource dataSource;
+
+    /** Name of the association table. */
+    private final String tableName;
+
+    /** Statement selecting an association by handle. */
+    private final String selectByHandle;
+
+    /** Statement selecting the unexpired associations of an entity. */
+    private final String selectByEntity;
+
+    /** Statement inserting an association. */
+    private final String insert;
+
+    /** Statement deleting an association. */
+    private final String delete;
+
+    /** Statement deleting expired associations. */
+    private final String deleteExpired;
+
+    /** Interval between writes of queued associations. */
+    private final long flushInterval;
+
+    /** Cached associations. */
+    private final ConcurrentMap<String, CacheEntry> cache;
+
+    /** Number of evictions from the cache, used to detect evictions that race with a load. */
+    private final AtomicLong evictions;
+
+    /** Associations waiting to be written, guarded by {@link #writeLock}. */
+    private final Map<String, QueuedWrite> queue;
+
+    /** Time before which failed writes are not retried by {@link #add(Association)}, guarded by {@link #writeLock}. */
+    private long retryAfter;
+
+    /** Lock ordering writes to the database. */
+    private final Object writeLock;
+
+    /** Idle connections. */
+    private final BlockingQueue<Session> idleSessions;
+
+    /** Background flush and sweep tasks. */
+    private final ScheduledExecutorService scheduler;
+
+    /** Number of queued associations that triggers a write. */
+    private volatile int batchSize;
+
+    /** Maximum number of associations waiting to be written. */
+    private volatile int maxQueueSize;
+
+    /** Number of failed writes after which an association is discarded. */
+    private volatile int maxWriteAttempts;
+
+    /** Time to live of cache entries. */
+    private volatile long cacheTTL;
+
+    /** Maximum number of cache entries. */
+    private volatile int maxCacheSize;
+
+    /** Maximum number of idle connections. */
+    private volatile int maxIdleConnections;
+
+    /** Notifier for invalidated associations. */
+    private volatile AssociationInvalidationNotifier invalidationNotifier;
+
+    /**
+     * Constructor.
+     * 
+     * @param newDataSource data source
+     */
+    public JDBCAssociationStore(DataSource newDataSource) {
+        this(newDataSource, DEFAULT_TABLE_NAME, DEFAULT_FLUSH_INTERVAL, DEFAULT_SWEEP_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param newDataSource data source
+     * @param newTableName name of the association table
+     * @param newFlushInterval interval between writes of queued associations in milliseconds to enable write-behind,
+     *            or 0 to write every association before {@link #add(Association)} returns
+     * @param sweepInterval interval between deletions of expired rows in milliseconds, or 0 to only delete them on
+     *            request
+     */
+    public JDBCAssociationStore(DataSource newDataSource, String newTableName, long newFlushInterval,
+            long sweepInterval) {
+        dataSource = newDataSource;
+        tableName = newTableName;
+        flushInterval = newFlushInterval;
+
+        selectByHandle = "SELECT " + COLUMNS + " FROM " + tableName + " WHERE handle = ?";
+        selectByEntity = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE entity = ? AND (expiration IS NULL OR expiration > ?)";
+        insert = "INSERT INTO " + tableName + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+        delete = "DELETE FROM " + tableName + " WHERE handle = ?";
+        deleteExpired = "DELETE FROM " + tableName + " WHERE expiration IS NOT NULL AND expiration <= ?";
+
+        cache = new ConcurrentHashMap<String, CacheEntry>();
+        evictions = new AtomicLong();
+        queue = new LinkedHashMap<String, QueuedWrite>();
+        writeLock = new Object();
+        idleSessions = new LinkedBlockingQueue<Session>();
+
+        batchSize = DEFAULT_BATCH_SIZE;
+        maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+        maxWriteAttempts = DEFAULT_MAX_WRITE_ATTEMPTS;
+        cacheTTL = DEFAULT_CACHE_TTL;
+        maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+        maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new StoreThreadFactory());
+        long writeInterval = flushInterval > 0 ? flushInterval : RETRY_INTERVAL;
+        scheduler.scheduleWithFixedDelay(new FlushTask(), writeInterval, writeInterval, TimeUnit.MILLISECONDS);
+        if (sweepInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new SweepTask(), sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the name of the association table.
+     * 
+     * @return table name
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Get the number of queued associations that triggers a write.
+     * 
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of queued associations that triggers a write.
+     * 
+     * @param newBatchSize batch size
+     */
+    public void setBatchSize(int newBatchSize) {
+        batchSize = newBatchSize;
+    }
+
+    /**
+     * Get the maximum number of associations waiting to be written. Once the queue is full, the oldest queued
+     * associations are discarded.
+     * 
+     * @return maximum queue size
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Set the maximum number of associations waiting to be written.
+     * 
+     * @param newSize maximum queue size
+     */
+    public void setMaxQueueSize(int newSize) {
+        maxQueueSize = newSize;
+    }
+
+    /**
+     * Get the number of failed writes after which an association is discarded. Failures to connect to the database
+     * are not counted.
+     * 
+     * @return maximum write attempts
+     */
+    public int getMaxWriteAttempts() {
+        return maxWriteAttempts;
+    }
+
+    /**
+     * Set the number of failed writes after which an association is discarded.
+     * 
+     * @param newAttempts maximum write attempts
+     */
+    public void setMaxWriteAttempts(int newAttempts) {
+        maxWriteAttempts = newAttempts;
+    }
+
+    /**
+     * Get the time to live of cache entries.
+     * 
+     * @return time to live in milliseconds
+     */
+    public long getCacheTTL() {
+        return cacheTTL;
+    }
+
+    /**
+     * Set the time to live of cache entries.
+     * 
+     * @param newTTL time to live in milliseconds, or 0 to disable the cache
+     */
+    public void setCacheTTL(long newTTL) {
+        cacheTTL = newTTL;
+    }
+
+    /**
+     * Get the maximum number of cache entries.
+     * 
+     * @return maximum cache size
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Set the maximum number of cache entries.
+     * 
+     * @param newSize maximum cache size
+     */
+    public void setMaxCacheSize(int newSize) {
+        maxCacheSize = newSize;
+    }
+
+    /**
+     * Get the maximum number of idle connections kept open.
+     * 
+     * @return maximum idle connections
+     */
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Set the maximum number of idle connections kept open.
+     * 
+     * @param newMax maximum idle connections
+     */
+    public void setMaxIdleConnections(int newMax) {
+        maxIdleConnections = newMax;
+    }
+
+    /**
+     * Get the notifier for invalidated associations.
+     * 
+     * @return invalidation notifier, may be null
+     */
+    public AssociationInvalidationNotifier getInvalidationNotifier() {
+        return invalidationNotifier;
+    }
+
+    /**
+     * Set the notifier for invalidated associations.
+     * 
+     * @param newNotifier invalidation notifier, may be null
+     */
+    public void setInvalidationNotifier(AssociationInvalidationNotifier newNotifier) {
+        invalidationNotifier = newNotifier;
+    }
+
+    /**
+     * Create the association table and its indexes.
+     * 
+     * @throws SQLException if the table cannot be created
+     */
+    public void createTable() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("CREATE TABLE " + tableName + " (handle VARCHAR(" + HANDLE_LENGTH
+                        + ") NOT NULL PRIMARY KEY, assoc_type VARCHAR(" + TYPE_LENGTH + "), expiration BIGINT, "
+                        + "entity VARCHAR(" + ENTITY_LENGTH + "), private_assoc SMALLINT NOT NULL, "
+                        + "key_algorithm VARCHAR(" + ALGORITHM_LENGTH + "), mac_key VARCHAR(" + KEY_LENGTH + "))");
+                statement.executeUpdate("CREATE INDEX " + tableName + "_entity ON " + tableName + " (entity)");
+                statement.executeUpdate("CREATE INDEX " + tableName + "_expiration ON " + tableName
+                        + " (expiration)");
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException if a column of the association does not fit in the table
+     */
+    public void add(Association association) {
+        checkLengths(association);
+        long now = System.currentTimeMillis();
+        cache(association, now);
+
+        synchronized (writeLock) {
+            queue.remove(association.getHandle());
+            queue.put(association.getHandle(), new QueuedWrite(association));
+            trimQueue();
+            if (now >= retryAfter && (flushInterval <= 0 || queue.size() >= batchSize)) {
+                writeQueue();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Association get(String handle) {
+        if (handle == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(handle);
+        if (entry != null && now - entry.loaded < cacheTTL) {
+            return isExpired(entry.association, now) ? null : entry.association;
+        }
+
+        long generation = evictions.get();
+        Association association = null;
+        synchronized (writeLock) {
+            QueuedWrite queued = queue.get(handle);
+            if (queued != null) {
+                association = queued.association;
+            }
+        }
+        if (association == null) {
+            association = load(handle);
+        }
+
+        if (association == null || isExpired(association, now)) {
+            if (entry != null) {
+                cache.remove(handle, entry);
+            }
+            return null;
+        }
+
+        cacheLoaded(association, now, generation);
+        return association;
+    }
+
+    /** {@inheritDoc} */
+    public Association getByEntity(String entity) {
+        if (entity == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        long generation = evictions.get();
+        Association best = null;
+        synchronized (writeLock) {
+            for (QueuedWrite queued : queue.values()) {
+                Association association = queued.association;
+                if (entity.equals(association.getEntity()) && !isExpired(association, now)
+                        && (best == null || expiresLater(association, best))) {
+                    best = association;
+                }
+            }
+        }
+
+        for (Association association : loadByEntity(entity, now)) {
+            if (best == null || expiresLater(association, best)) {
+                best = association;
+            }
+        }
+
+        if (best != null) {
+            cacheLoaded(best, now, generation);
+        }
+        return best;
+    }
+
+    /** {@inheritDoc} */
+    public void invalidate(String handle) {
+        remove(handle);
+    }
+
+    /** {@inheritDoc} */
+    public void remove(String handle) {
+        if (handle == null) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            queue.remove(handle);
+            cache.remove(handle);
+
+            Session session = null;
+            try {
+                session = acquireSession();
+                PreparedStatement statement = session.prepare(delete);
+                statement.setString(1, handle);
+                statement.executeUpdate();
+                session.connection.commit();
+                releaseSession(session);
+            } catch (SQLException e) {
+                log.error("Unable to delete association " + handle, e);
+                discardSession(session);
+            }
+        }
+
+        // evict again any entry reloaded from the row before it was deleted
+        evictCached(handle);
+
+        AssociationInvalidationNotifier notifier = invalidationNotifier;
+        if (notifier != null) {
+            notifier.associationInvalidated(handle);
+        }
+    }
+
+    /**
+     * Evict an association from the local cache, without removing it from the database. Called when another node
+     * reports that it has invalidated the association.
+     * 
+     * @param handle handle of the association to evict
+     */
+    public void evictCached(String handle) {
+        evictions.incrementAndGet();
+        cache.remove(handle);
+    }
+
+    /**
+     * Write all queued associations to the database.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            writeQueue();
+        }
+    }
+
+    /**
+     * Delete expired associations from the database and the local cache.
+     * 
+     * @return number of rows deleted
+     */
+    public int deleteExpired() {
+        long now = System.currentTimeMillis();
+        purgeCache(now);
+
+        Session session = null;
+        try {
+            session = acquireSession();
+            PreparedStatement statement = session.prepare(deleteExpired);
+            statement.setLong(1, now);
+            int count = statement.executeUpdate();
+            session.connection.commit();
+            releaseSession(session);
+
+            if (count > 0) {
+                log.debug("deleted {} expired associations", count);
+            }
+            return count;
+        } catch (SQLException e) {
+            log.error("Unable to delete expired associations", e);
+            discardSession(session);
+            return 0;
+        }
+    }
+
+    /**
+     * Write queued associations, stop the background tasks, and close idle connections. The store must not be used
+     * after it is closed.
+     */
+    public void close() {
+        scheduler.shutdown();
+
+        flush();
+
+        Session session = idleSessions.poll();
+        while (session != null) {
+            session.close();
+            session = idleSessions.poll();
+        }
+    }
+
+    /**
+     * Write the queued associations in a single batch. If the batch cannot be written, the associations are written one
+     * at a time, and those that still fail are put back in the queue. The write lock must be held.
+     */
+    private void writeQueue() {
+        if (queue.isEmpty()) {
+            return;
+        }
+
+        List<QueuedWrite> batch = new ArrayList<QueuedWrite>(queue.values());
+        queue.clear();
+
+        Session session;
+        try {
+            session = acquireSession();
+        } catch (SQLException e) {
+            log.error("Unable to connect to write " + batch.size() + " associations, will retry", e);
+            requeue(batch, 0, null);
+            return;
+        }
+
+        try {
+            writeRows(session, batch);
+            releaseSession(session);
+            log.debug("wrote {} associations", batch.size());
+            return;
+        } catch (SQLException e) {
+            discardSession(session);
+            if (batch.size() == 1) {
+                requeue(batch, 0, e);
+                return;
+            }
+            log.warn("Unable to write " + batch.size() + " associations, writing them one at a time", e);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                session = acquireSession();
+            } catch (SQLException e) {
+                log.error("Unable to connect to write " + (batch.size() - i) + " associations, will retry", e);
+                requeue(batch, i, null);
+                return;
+            }
+
+            try {
+                writeRows(session, batch.subList(i, i + 1));
+                releaseSession(session);
+            } catch (SQLException e) {
+                discardSession(session);
+                requeue(batch.subList(i, i + 1), 0, e);
+            }
+        }
+    }
+
+    /**
+     * Delete any existing rows of associations and insert the associations, and commit the transaction.
+     * 
+     * @param session session to write with
+     * @param writes queued associations to write
+     * @throws SQLException if the associations cannot be written
+     */
+    private void writeRows(Session session, List<QueuedWrite> writes) throws SQLException {
+        PreparedStatement deleteStatement = session.prepare(delete);
+        for (QueuedWrite write : writes) {
+            deleteStatement.setString(1, write.association.getHandle());
+            deleteStatement.addBatch();
+        }
+        deleteStatement.executeBatch();
+
+        PreparedStatement insertStatement = session.prepare(insert);
+        for (QueuedWrite write : writes) {
+            bind(insertStatement, write.association);
+            insertStatement.addBatch();
+        }
+        insertStatement.executeBatch();
+
+        session.connection.commit();
+    }
+
+    /**
+     * Put associations whose write failed back in the queue, unless they have since been replaced, and delay retries
+     * by {@link #add(Association)}. The write lock must be held.
+     * 
+     * @param writes failed writes
+     * @param start index of the first failed write
+     * @param cause exception that caused the writes to fail, or null if the database could not be reached, in which
+     *            case the attempt is not counted
+     */
+    private void requeue(List<QueuedWrite> writes, int start, SQLException cause) {
+        retryAfter = System.currentTimeMillis() + RETRY_INTERVAL;
+
+        for (QueuedWrite write : writes.subList(start, writes.size())) {
+            String handle = write.association.getHandle();
+            if (cause != null && ++write.attempts >= maxWriteAttempts) {
+                log.error("Discarding association " + handle + " after " + write.attempts + " failed writes", cause);
+            } else if (!queue.containsKey(handle)) {
+                if (cause != null) {
+                    log.warn("Unable to write association {}, will retry: {}", handle, cause.getMessage());
+                }
+                queue.put(handle, write);
+            }
+        }
+
+        trimQueue();
+    }
+
+    /**
+     * Discard the oldest queued associations while the queue holds more than {@link #getMaxQueueSize()}. The write
+     * lock must be held.
+     */
+    private void trimQueue() {
+        Iterator<QueuedWrite> writes = queue.values().iterator();
+        while (queue.size() > maxQueueSize && writes.hasNext()) {
+            log.error("Association queue is full, discarding association {}", writes.next().association.getHandle());
+            writes.remove();
+        }
+    }
+
+    /**
+     * Check that the columns of an association fit in the association table.
+     * 
+     * @param association association to check
+     * @throws IllegalArgumentException if a column does not fit
+     */
+    private void checkLengths(Association association) {
+        checkLength("handle", association.getHandle(), HANDLE_LENGTH);
+        if (association.getAssociationType() != null) {
+            checkLength("association type", association.getAssociationType().toString(), TYPE_LENGTH);
+        }
+        checkLength("entity", association.getEntity(), ENTITY_LENGTH);
+
+        SecretKey macKey = association.getMacKey();
+        if (macKey != null) {
+            checkLength("key algorithm", macKey.getAlgorithm(), ALGORITHM_LENGTH);
+            // Base64 encodes every 3 bytes as 4 characters
+            checkLength("MAC key", (macKey.getEncoded().length + 2) / 3 * 4, KEY_LENGTH);
+        }
+    }
+
+    /**
+     * Check that a column value fits in its column.
+     * 
+     * @param column name of the column
+     * @param value column value, may be null
+     * @param maxLength length of the column
+     * @throws IllegalArgumentException if the value is longer than the column
+     */
+    private void checkLength(String column, String value, int maxLength) {
+        if (value != null) {
+            checkLength(column, value.length(), maxLength);
+        }
+    }
+
+    /**
+     * Check that the length of a column value fits in its column.
+     * 
+     * @param column name of the column
+     * @param length length of the column value
+     * @param maxLength length of the column
+     * @throws IllegalArgumentException if the value is longer than the column
+     */
+    private void checkLength(String column, int length, int maxLength) {
+        if (length > maxLength) {
+            throw new IllegalArgumentException("Association cannot be stored - " + column + " is longer than "
+                    + maxLength + " characters");
+        }
+    }
+
+    /**
+     * Load an association from the database.
+     * 
+     * @param handle association handle
+     * @return association, or null if the handle is not in the database
+     */
+    private Association load(String handle) {
+        Session session = null;
+        try {
+            session = acquireSession();
+            PreparedStatement statement = session.prepare(selectByHandle);
+            statement.setString(1, handle);
+            Association association = null;
+            ResultSet results = statement.executeQuery();
+            try {
+                if (results.next()) {
+                    association = read(results);
+                }
+            } finally {
+                results.close();
+            }
+            session.connection.commit();
+            releaseSession(session);
+            return association;
+        } catch (SQLException e) {
+            log.error("Unable to load association " + handle, e);
+            discardSession(session);
+            return null;
+        }
+    }
+
+    /**
+     * Load the unexpired associations of an entity from the database.
+     * 
+     * @param entity association entity
+     * @param now current time
+     * @return associations
+     */
+    private List<Association> loadByEntity(String entity, long now) {
+        List<Association> associations = new ArrayList<Association>();
+        Session session = null;
+        try {
+            session = acquireSession();
+            PreparedStatement statement = session.prepare(selectByEntity);
+            statement.setString(1, entity);
+            statement.setLong(2, now);
+            ResultSet results = statement.executeQuery();
+            try {
+                while (results.next()) {
+                    associations.add(read(results));
+                }
+            } finally {
+                results.close();
+            }
+            session.connection.commit();
+            releaseSession(session);
+        } catch (SQLException e) {
+            log.error("Unable to load associations for entity " + entity, e);
+            discardSession(session);
+        }
+        return associations;
+    }
+
+    /**
+     * Bind the columns of an association to an insert statement.
+     * 
+     * @param statement insert statement
+     * @param association association to bind
+     * @throws SQLException if a parameter cannot be bound
+     */
+    private void bind(PreparedStatement statement, Association association) throws SQLException {
+        statement.setString(1, association.getHandle());
+
+        AssociationType type = association.getAssociationType();
+        if (type == null) {
+            statement.setNull(2, Types.VARCHAR);
+        } else {
+            statement.setString(2, type.toString());
+        }
+
+        Date expiration = association.getExpiration();
+        if (expiration == null) {
+            statement.setNull(3, Types.BIGINT);
+        } else {
+            statement.setLong(3, expiration.getTime());
+        }
+
+        if (association.getEntity() == null) {
+            statement.setNull(4, Types.VARCHAR);
+        } else {
+            statement.setString(4, association.getEntity());
+        }
+
+        statement.setInt(5, association.isPrivate() ? 1 : 0);
+
+        SecretKey macKey = association.getMacKey();
+        if (macKey == null) {
+            statement.setNull(6, Types.VARCHAR);
+            statement.setNull(7, Types.VARCHAR);
+        } else {
+            statement.setString(6, macKey.getAlgorithm());
+            statement.setString(7, new String(Base64.encodeBase64(macKey.getEncoded())));
+        }
+    }
+
+    /**
+     * Read an association from the current row of a result set.
+     * 
+     * @param results result set
+     * @return association
+     * @throws SQLException if the row cannot be read
+     */
+    private Association read(ResultSet results) throws SQLException {
+        BasicAssociation association = new BasicAssociation();
+        association.setHandle(results.getString(1));
+
+        String type = results.getString(2);
+        if (type != null) {
+            try {
+                association.setAssociationType(AssociationType.getType(type));
+            } catch (IllegalArgumentException e) {
+                log.warn("Association {} has unknown type {}", association.getHandle(), type);
+            }
+        }
+
+        long expiration = results.getLong(3);
+        if (!results.wasNull()) {
+            association.setExpiration(new Date(expiration));
+        }
+
+        association.setEntity(results.getString(4));
+        association.setPrivate(results.getInt(5) != 0);
+
+        String algorithm = results.getString(6);
+        String key = results.getString(7);
+        if (algorithm != null && key != null) {
+            association.setMacKey(new SecretKeySpec(Base64.decodeBase64(key.getBytes()), algorithm));
+        }
+
+        return association;
+    }
+
+    /**
+     * Add an association to the local cache, if there is room.
+     * 
+     * @param association association to cache
+     * @param now current time
+     * @return cache entry, or null if the association was not cached
+     */
+    private CacheEntry cache(Association association, long now) {
+        if (cacheTTL <= 0) {
+            return null;
+        }
+
+        if (cache.size() >= maxCacheSize && !cache.containsKey(association.getHandle())) {
+            purgeCache(now);
+            if (cache.size() >= maxCacheSize) {
+                return null;
+            }
+        }
+
+        CacheEntry entry = new CacheEntry(association, now);
+        cache.put(association.getHandle(), entry);
+        return entry;
+    }
+
+    /**
+     * Add a loaded association to the local cache, unless an association was evicted while it was being loaded. An
+     * eviction that races with the load may have removed the same association, which must not be put back in the
+     * cache, so the entry is removed again if any eviction was made since the load started.
+     * 
+     * @param association loaded association
+     * @param now current time
+     * @param generation eviction count read before the association was loaded
+     */
+    private void cacheLoaded(Association association, long now, long generation) {
+        CacheEntry entry = cache(association, now);
+        if (entry != null && evictions.get() != generation) {
+            cache.remove(association.getHandle(), entry);
+        }
+    }
+
+    /**
+     * Remove stale and expired entries from the local cache.
+     * 
+     * @param now current time
+     */
+    private void purgeCache(long now) {
+        Iterator<CacheEntry> entries = cache.values().iterator();
+        while (entries.hasNext()) {
+            CacheEntry entry = entries.next();
+            if (now - entry.loaded >= cacheTTL || isExpired(entry.association, now)) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Get an idle connection, or open a new one.
+     * 
+     * @return session wrapping the connection
+     * @throws SQLException if a connection cannot be opened
+     */
+    private Session acquireSession() throws SQLException {
+        Session session = idleSessions.poll();
+        if (session != null) {
+            return session;
+        }
+
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new Session(connection);
+    }
+
+    /**
+     * Return a connection to the idle connections, or close it if there are enough already.
+     * 
+     * @param session session to release
+     */
+    private void releaseSession(Session session) {
+        if (idleSessions.size() >= maxIdleConnections || !idleSessions.offer(session)) {
+            session.close();
+        }
+    }
+
+    /**
+     * Roll back and close a connection that failed.
+     * 
+     * @param session session to discard, may be null
+     */
+    private void discardSession(Session session) {
+        if (session == null) {
+            return;
+        }
+
+        try {
+            session.connection.rollback();
+        } catch (SQLException e) {
+            log.debug("Unable to roll back failed connection", e);
+        }
+        session.close();
+    }
+
+    /**
+     * Check if an association has expired.
+     * 
+     * @param association association to check
+     * @param now current time
+     * @return true if the association has expired
+     */
+    private boolean isExpired(Association association, long now) {
+        return association.getExpiration() != null && association.getExpiration().getTime() <= now;
+    }
+
+    /**
+     * Check if an association expires later than another. Associations that do not expire are considered to expire
+     * last.
+     * 
+     * @param a association to check
+     * @param b association to compare against
+     * @return true if the first association expires later than the second
+     */
+    private boolean expiresLater(Association a, Association b) {
+        if (b.getExpiration() == null) {
+            return false;
+        }
+        return a.getExpiration() == null || a.getExpiration().after(b.getExpiration());
+    }
+
+    /**
+     * Cached association.
+     */
+    private static class CacheEntry {
+
+        /** Association. */
+        private final Association association;
+
+        /** Time the association was loaded. */
+        private final long loaded;
+
+        /**
+         * Constructor.
+         * 
+         * @param newAssociation association
+         * @param newLoaded time the association was loaded
+         */
+        CacheEntry(Association newAssociation, long newLoaded) {
+            association = newAssociation;
+            loaded = newLoaded;
+        }
+
+    }
+
+    /**
+     * Association waiting to be written.
+     */
+    private static class QueuedWrite {
+
+        /** Association. */
+        private final Association association;
+
+        /** Number of failed attempts to write the association. */
+        private int attempts;
+
+        /**
+         * Constructor.
+         * 
+         * @param newAssociation association
+         */
+        QueuedWrite(Association newAssociation) {
+            association = newAssociation;
+        }
+
+    }
+
+    /**
+     * Connection and the statements prepared on it.
+     */
+    private class Session {
+
+        /** Connection. */
+        private final Connection connection;
+
+        /** Prepared statements, keyed on their SQL. */
+        private final Map<String, PreparedStatement> statements;
+
+        /**
+         * Constructor.
+         * 
+         * @param newConnection connection
+         */
+        Session(Connection newConnection) {
+            connection = newConnection;
+            statements = new HashMap<String, PreparedStatement>();
+        }
+
+        /**
+         * Get a prepared statement, preparing it if this is the first time it is used on this connection.
+         * 
+         * @param sql statement SQL
+         * @return prepared statement
+         * @throws SQLException if the statement cannot be prepared
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /** Close the connection and its statements. */
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Unable to close connection", e);
+            }
+        }
+
+    }
+
+    /**
+     * Periodically writes queued associations.
+     */
+    private class FlushTask implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            flush();
+        }
+
+    }
+
+    /**
+     * Periodically deletes expired associations.
+     */
+    private class SweepTask implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            deleteExpired();
+        }
+
+    }
+
+    /**
+     * Creates the daemon thread that runs the background tasks.
+     */
+    private static class StoreThreadFactory implements ThreadFactory {
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "openid-association-jdbc");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
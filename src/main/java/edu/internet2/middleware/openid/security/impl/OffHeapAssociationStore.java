@@ -0,0 +1,942 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+import edu.internet2.middleware.openid.security.AssociationStore;
+
+/**
+ * Implementation of {@link AssociationStore} that keeps associations outside of the Java heap, for deployments with
+ * millions of live associations. Each association is stored in a fixed-size slot of a direct {@link ByteBuffer}: its
+ * handle, association type, expiration, private flag, entity, and raw MAC key bytes. Slots are found through an
+ * open-addressing hash index on the handle, also held in direct memory. Slabs of slots are allocated as the store
+ * grows, up to a fixed capacity of at most {@link #MAX_CAPACITY} associations.
+ * 
+ * {@link #get(String)} and {@link #getByEntity(String)} materialize a new {@link BasicAssociation} from the slot, so
+ * callers may keep the returned association after it has been removed from the store. Lookups share a read lock;
+ * updates take the write lock.
+ * 
+ * Handles must consist of printable ASCII characters and be at most 255 characters long, as required by the OpenID
+ * specification. Entities are stored as UTF-8, up to a configurable maximum length, and MAC keys may be at most 64
+ * bytes. Slots with the same entity hash are chained together, so that entity lookups only visit the associations of
+ * that entity and any that collide with it.
+ * 
+ * Slots are also kept in a binary heap ordered by expiration, held in direct memory. Associations without an
+ * expiration are ordered after all expiring ones, in the order they were added. Expired associations are not returned,
+ * and their slots are reclaimed from the head of the heap whenever an association is added and by
+ * {@link #purgeExpired()}. If the store is full, the association at the head of the heap is evicted.
+ */
+public class OffHeapAssociationStore extends AbstractAssociationStore implements AssociationStore {
+
+    /** Default maximum number of associations. */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /** Largest supported capacity, which keeps the size of the hash index within the limits of a direct buffer. */
+    public static final int MAX_CAPACITY = 1 << 26;
+
+    /** Default maximum length of an encoded entity, in bytes. */
+    public static final int DEFAULT_MAX_ENTITY_LENGTH = 256;
+
+    /** Maximum length of a handle. */
+    public static final int MAX_HANDLE_LENGTH = 255;
+
+    /** Maximum length of a MAC key, in bytes. */
+    public static final int MAX_KEY_LENGTH = 64;
+
+    /** Number of slots in each slab. */
+    private static final int SLAB_SLOTS = 1 << 12;
+
+    /** Offset of the expiration time in a slot. */
+    private static final int EXPIRATION_OFFSET = 0;
+
+    /** Offset of the sequence number in a slot, which orders associations that expire at the same time. */
+    private static final int SEQUENCE_OFFSET = 8;
+
+    /** Offset of the handle hash in a slot. */
+    private static final int HASH_OFFSET = 16;
+
+    /** Offset of the entity hash in a slot. */
+    private static final int ENTITY_HASH_OFFSET = 20;
+
+    /** Offset of the next slot in the entity chain, plus one. */
+    private static final int ENTITY_NEXT_OFFSET = 24;
+
+    /** Offset of the previous slot in the entity chain, plus one. */
+    private static final int ENTITY_PREVIOUS_OFFSET = 28;
+
+    /** Offset of the association type in a slot. */
+    private static final int TYPE_OFFSET = 32;
+
+    /** Offset of the flags in a slot. */
+    private static final int FLAGS_OFFSET = 33;
+
+    /** Offset of the handle length in a slot. */
+    private static final int HANDLE_LENGTH_OFFSET = 34;
+
+    /** Offset of the key length in a slot. */
+    private static final int KEY_LENGTH_OFFSET = 35;
+
+    /** Offset of the entity length in a slot. */
+    private static final int ENTITY_LENGTH_OFFSET = 36;
+
+    /** Offset of the handle in a slot. */
+    private static final int HANDLE_OFFSET = 38;
+
+    /** Offset of the MAC key in a slot. */
+    private static final int KEY_OFFSET = HANDLE_OFFSET + MAX_HANDLE_LENGTH;
+
+    /** Offset of the entity in a slot. */
+    private static final int ENTITY_OFFSET = KEY_OFFSET + MAX_KEY_LENGTH;
+
+    /** Flag set if the association is private. */
+    private static final int FLAG_PRIVATE = 1;
+
+    /** Flag set if the association has an expiration. */
+    private static final int FLAG_EXPIRES = 2;
+
+    /** Flag set if the association has an entity. */
+    private static final int FLAG_ENTITY = 4;
+
+    /** Flag set if the association has a MAC key. */
+    private static final int FLAG_KEY = 8;
+
+    /** Index entry for an empty bucket. */
+    private static final int EMPTY = 0;
+
+    /** Index entry for a bucket whose slot has been removed. */
+    private static final int DELETED = -1;
+
+    /** Association types, by ordinal. */
+    private static final AssociationType[] TYPES = AssociationType.values();
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(OffHeapAssociationStore.class);
+
+    /** Maximum number of associations. */
+    private final int capacity;
+
+    /** Maximum length of an encoded entity. */
+    private final int maxEntityLength;
+
+    /** Size of a slot, in bytes. */
+    private final int slotSize;
+
+    /** Slabs of slots, allocated as needed. */
+    private final ByteBuffer[] slabs;
+
+    /** Hash index of slot numbers plus one, or {@link #EMPTY} or {@link #DELETED}. */
+    private final IntBuffer index;
+
+    /** Index mask. */
+    private final int indexMask;
+
+    /** Heads of the entity chains, as slot numbers plus one, keyed on entity hash. */
+    private final IntBuffer entityChains;
+
+    /** Binary heap of slot numbers, ordered by expiration. */
+    private final IntBuffer expirations;
+
+    /** Position of each slot in the expiration heap. */
+    private final IntBuffer heapPositions;
+
+    /** Number of slots in the expiration heap. */
+    private int heapSize;
+
+    /** Last sequence number assigned to a slot. */
+    private long sequence;
+
+    /** Slots that have been freed and may be reused. */
+    private final int[] freeSlots;
+
+    /** Number of freed slots. */
+    private int freeCount;
+
+    /** Number of slots that have ever been used. */
+    private int usedSlots;
+
+    /** Number of associations in the store. */
+    private int size;
+
+    /** Number of {@link #DELETED} index entries. */
+    private int deleted;
+
+    /** Lock guarding all state. */
+    private final ReadWriteLock lock;
+
+    /** Constructor. */
+    public OffHeapAssociationStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTITY_LENGTH);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param newCapacity maximum number of associations
+     * @param newMaxEntityLength maximum length of an encoded entity, in bytes
+     */
+    public OffHeapAssociationStore(int newCapacity, int newMaxEntityLength) {
+        if (newCapacity < 1 || newCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid capacity: " + newCapacity);
+        }
+        if (newMaxEntityLength < 0 || newMaxEntityLength > 0xffff) {
+            throw new IllegalArgumentException("Invalid maximum entity length: " + newMaxEntityLength);
+        }
+
+        capacity = newCapacity;
+        maxEntityLength = newMaxEntityLength;
+        slotSize = ENTITY_OFFSET + maxEntityLength;
+        slabs = new ByteBuffer[(capacity + SLAB_SLOTS - 1) / SLAB_SLOTS];
+        freeSlots = new int[capacity];
+
+        int buckets = Integer.highestOneBit(capacity) << 2;
+        index = ByteBuffer.allocateDirect(buckets * 4).asIntBuffer();
+        indexMask = buckets - 1;
+        entityChains = ByteBuffer.allocateDirect(buckets * 4).asIntBuffer();
+        expirations = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+        heapPositions = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+
+        lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Get the maximum number of associations.
+     * 
+     * @return maximum number of associations
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of associations in the store, including any that have expired but not yet been removed.
+     * 
+     * @return number of associations
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException if the association cannot be stored in a slot
+     */
+    public void add(Association association) {
+        String handle = association.getHandle();
+        checkHandle(handle);
+        byte[] entity = encode(association.getEntity());
+        if (entity != null && entity.length > maxEntityLength) {
+            throw new IllegalArgumentException("Association entity is longer than " + maxEntityLength + " bytes");
+        }
+        SecretKey macKey = association.getMacKey();
+        byte[] key = macKey == null ? null : macKey.getEncoded();
+        if (key != null && key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Association MAC key is longer than " + MAX_KEY_LENGTH + " bytes");
+        }
+
+        lock.writeLock().lock();
+        try {
+            purge();
+
+            int bucket = find(handle);
+            int slot;
+            if (bucket >= 0) {
+                slot = index.get(bucket) - 1;
+                unlinkEntity(slot);
+                heapRemove(slot);
+            } else {
+                slot = allocateSlot();
+                insert(handle.hashCode(), slot);
+                size++;
+            }
+
+            writeSlot(slot, association, entity, key);
+            linkEntity(slot);
+            heapPush(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Association get(String handle) {
+        if (handle == null) {
+            return null;
+        }
+
+        lock.readLock().lock();
+        try {
+            int bucket = find(handle);
+            if (bucket < 0) {
+                return null;
+            }
+
+            int slot = index.get(bucket) - 1;
+            if (isExpired(slot, System.currentTimeMillis())) {
+                return null;
+            }
+            return readSlot(slot, handle);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Association getByEntity(String entity) {
+        if (entity == null) {
+            return null;
+        }
+
+        byte[] encoded = encode(entity);
+        int entityHash = hash(encoded);
+        long now = System.currentTimeMillis();
+
+        lock.readLock().lock();
+        try {
+            int best = -1;
+            long bestExpiration = Long.MIN_VALUE;
+            int slot = entityChains.get(spread(entityHash) & indexMask) - 1;
+            while (slot >= 0) {
+                if (hasEntity(slot, encoded, entityHash) && !isExpired(slot, now)) {
+                    long expiration = getExpiration(slot);
+                    if (best < 0 || expiration > bestExpiration) {
+                        best = slot;
+                        bestExpiration = expiration;
+                    }
+                }
+                slot = slab(slot).getInt(offset(slot) + ENTITY_NEXT_OFFSET) - 1;
+            }
+
+            return best < 0 ? null : readSlot(best, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void invalidate(String handle) {
+        remove(handle);
+    }
+
+    /** {@inheritDoc} */
+    public void remove(String handle) {
+        if (handle == null) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            int bucket = find(handle);
+            if (bucket >= 0) {
+                removeBucket(bucket);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all expired associations from the store.
+     * 
+     * @return number of associations removed
+     */
+    public int purgeExpired() {
+        lock.writeLock().lock();
+        try {
+            return purge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all expired associations. The write lock must be held.
+     * 
+     * @return number of associations removed
+     */
+    private int purge() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        while (heapSize > 0 && isExpired(expirations.get(0), now)) {
+            removeBucket(findBucket(expirations.get(0)));
+            count++;
+        }
+
+        if (count > 0) {
+            log.debug("removed {} expired associations", count);
+        }
+        return count;
+    }
+
+    /**
+     * Allocate a slot for a new association, making room if the store is full. The write lock must be held.
+     * 
+     * @return slot number
+     */
+    private int allocateSlot() {
+        if (size >= capacity) {
+            log.debug("store is full, evicting association");
+            removeBucket(findBucket(expirations.get(0)));
+        }
+
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+
+        int slot = usedSlots++;
+        if (slabs[slot / SLAB_SLOTS] == null) {
+            slabs[slot / SLAB_SLOTS] = ByteBuffer.allocateDirect(SLAB_SLOTS * slotSize);
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the association in an index bucket. The write lock must be held.
+     * 
+     * @param bucket index bucket
+     */
+    private void removeBucket(int bucket) {
+        int slot = index.get(bucket) - 1;
+        index.put(bucket, DELETED);
+        deleted++;
+        size--;
+        unlinkEntity(slot);
+        heapRemove(slot);
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Find the index bucket of a slot in the store.
+     * 
+     * @param slot slot number
+     * @return index bucket
+     */
+    private int findBucket(int slot) {
+        int bucket = spread(slab(slot).getInt(offset(slot) + HASH_OFFSET)) & indexMask;
+        while (index.get(bucket) != slot + 1) {
+            bucket = (bucket + 1) & indexMask;
+        }
+        return bucket;
+    }
+
+    /**
+     * Add a slot to the chain of its entity, if it has one. The write lock must be held.
+     * 
+     * @param slot slot number
+     */
+    private void linkEntity(int slot) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        if ((slab.get(offset + FLAGS_OFFSET) & FLAG_ENTITY) == 0) {
+            return;
+        }
+
+        int chain = spread(slab.getInt(offset + ENTITY_HASH_OFFSET)) & indexMask;
+        int head = entityChains.get(chain);
+        slab.putInt(offset + ENTITY_NEXT_OFFSET, head);
+        slab.putInt(offset + ENTITY_PREVIOUS_OFFSET, 0);
+        if (head > 0) {
+            slab(head - 1).putInt(offset(head - 1) + ENTITY_PREVIOUS_OFFSET, slot + 1);
+        }
+        entityChains.put(chain, slot + 1);
+    }
+
+    /**
+     * Remove a slot from the chain of its entity, if it has one. The write lock must be held.
+     * 
+     * @param slot slot number
+     */
+    private void unlinkEntity(int slot) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        if ((slab.get(offset + FLAGS_OFFSET) & FLAG_ENTITY) == 0) {
+            return;
+        }
+
+        int next = slab.getInt(offset + ENTITY_NEXT_OFFSET);
+        int previous = slab.getInt(offset + ENTITY_PREVIOUS_OFFSET);
+        if (previous > 0) {
+            slab(previous - 1).putInt(offset(previous - 1) + ENTITY_NEXT_OFFSET, next);
+        } else {
+            entityChains.put(spread(slab.getInt(offset + ENTITY_HASH_OFFSET)) & indexMask, next);
+        }
+        if (next > 0) {
+            slab(next - 1).putInt(offset(next - 1) + ENTITY_PREVIOUS_OFFSET, previous);
+        }
+    }
+
+    /**
+     * Add a slot to the expiration heap. The write lock must be held.
+     * 
+     * @param slot slot number
+     */
+    private void heapPush(int slot) {
+        heapPlace(slot, heapSize++);
+        heapSiftUp(heapPositions.get(slot));
+    }
+
+    /**
+     * Remove a slot from the expiration heap. The write lock must be held.
+     * 
+     * @param slot slot number
+     */
+    private void heapRemove(int slot) {
+        int position = heapPositions.get(slot);
+        int last = expirations.get(--heapSize);
+        if (position < heapSize) {
+            heapPlace(last, position);
+            heapSiftDown(position);
+            heapSiftUp(heapPositions.get(last));
+        }
+    }
+
+    /**
+     * Move a heap entry up until its parent precedes it.
+     * 
+     * @param position position of the entry
+     */
+    private void heapSiftUp(int position) {
+        int slot = expirations.get(position);
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            int parentSlot = expirations.get(parent);
+            if (!precedes(slot, parentSlot)) {
+                break;
+            }
+            heapPlace(parentSlot, position);
+            position = parent;
+        }
+        heapPlace(slot, position);
+    }
+
+    /**
+     * Move a heap entry down until it precedes its children.
+     * 
+     * @param position position of the entry
+     */
+    private void heapSiftDown(int position) {
+        int slot = expirations.get(position);
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            int childSlot = expirations.get(child);
+            if (child + 1 < heapSize && precedes(expirations.get(child + 1), childSlot)) {
+                child++;
+                childSlot = expirations.get(child);
+            }
+            if (!precedes(childSlot, slot)) {
+                break;
+            }
+            heapPlace(childSlot, position);
+            position = child;
+        }
+        heapPlace(slot, position);
+    }
+
+    /**
+     * Store a slot at a position of the expiration heap.
+     * 
+     * @param slot slot number
+     * @param position heap position
+     */
+    private void heapPlace(int slot, int position) {
+        expirations.put(position, slot);
+        heapPositions.put(slot, position);
+    }
+
+    /**
+     * Check if a slot precedes another in the expiration heap.
+     * 
+     * @param a first slot
+     * @param b second slot
+     * @return true if the first slot expires before the second, or at the same time but was written first
+     */
+    private boolean precedes(int a, int b) {
+        long expirationA = getExpiration(a);
+        long expirationB = getExpiration(b);
+        if (expirationA != expirationB) {
+            return expirationA < expirationB;
+        }
+        return slab(a).getLong(offset(a) + SEQUENCE_OFFSET) < slab(b).getLong(offset(b) + SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Add a slot to the index. The write lock must be held.
+     * 
+     * @param hash hash of the slot's handle
+     * @param slot slot number
+     */
+    private void insert(int hash, int slot) {
+        if (size + deleted + 1 > (indexMask + 1) / 2) {
+            rebuildIndex();
+        }
+
+        int bucket = spread(hash) & indexMask;
+        while (true) {
+            int entry = index.get(bucket);
+            if (entry == EMPTY || entry == DELETED) {
+                if (entry == DELETED) {
+                    deleted--;
+                }
+                index.put(bucket, slot + 1);
+                return;
+            }
+            bucket = (bucket + 1) & indexMask;
+        }
+    }
+
+    /** Rebuild the index without deleted entries. The write lock must be held. */
+    private void rebuildIndex() {
+        int[] slots = new int[size];
+        int count = 0;
+        for (int bucket = 0; bucket <= indexMask; bucket++) {
+            int entry = index.get(bucket);
+            if (entry > 0) {
+                slots[count++] = entry - 1;
+            }
+            index.put(bucket, EMPTY);
+        }
+        deleted = 0;
+
+        for (int i = 0; i < count; i++) {
+            int bucket = spread(slab(slots[i]).getInt(offset(slots[i]) + HASH_OFFSET)) & indexMask;
+            while (index.get(bucket) != EMPTY) {
+                bucket = (bucket + 1) & indexMask;
+            }
+            index.put(bucket, slots[i] + 1);
+        }
+    }
+
+    /**
+     * Find the index bucket of a handle.
+     * 
+     * @param handle handle to find
+     * @return index bucket, or -1 if the handle is not in the store
+     */
+    private int find(String handle) {
+        int hash = handle.hashCode();
+        int bucket = spread(hash) & indexMask;
+        while (true) {
+            int entry = index.get(bucket);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != DELETED && hasHandle(entry - 1, handle, hash)) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & indexMask;
+        }
+    }
+
+    /**
+     * Check if a slot holds the specified handle.
+     * 
+     * @param slot slot number
+     * @param handle handle to check
+     * @param hash hash of the handle
+     * @return true if the slot holds the handle
+     */
+    private boolean hasHandle(int slot, String handle, int hash) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        if (slab.getInt(offset + HASH_OFFSET) != hash) {
+            return false;
+        }
+
+        int length = slab.get(offset + HANDLE_LENGTH_OFFSET) & 0xff;
+        if (length != handle.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (slab.get(offset + HANDLE_OFFSET + i) != handle.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a slot holds the specified entity.
+     * 
+     * @param slot slot number
+     * @param entity UTF-8 encoded entity
+     * @param hash hash of the encoded entity
+     * @return true if the slot holds the entity
+     */
+    private boolean hasEntity(int slot, byte[] entity, int hash) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        if ((slab.get(offset + FLAGS_OFFSET) & FLAG_ENTITY) == 0 || slab.getInt(offset + ENTITY_HASH_OFFSET) != hash
+                || slab.getShort(offset + ENTITY_LENGTH_OFFSET) != (short) entity.length) {
+            return false;
+        }
+
+        for (int i = 0; i < entity.length; i++) {
+            if (slab.get(offset + ENTITY_OFFSET + i) != entity[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the expiration of the association in a slot.
+     * 
+     * @param slot slot number
+     * @return expiration time, or {@link Long#MAX_VALUE} if the association does not expire
+     */
+    private long getExpiration(int slot) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        if ((slab.get(offset + FLAGS_OFFSET) & FLAG_EXPIRES) == 0) {
+            return Long.MAX_VALUE;
+        }
+        return slab.getLong(offset + EXPIRATION_OFFSET);
+    }
+
+    /**
+     * Check if the association in a slot has expired.
+     * 
+     * @param slot slot number
+     * @param now current time
+     * @return true if the association has expired
+     */
+    private boolean isExpired(int slot, long now) {
+        return getExpiration(slot) <= now;
+    }
+
+    /**
+     * Write an association to a slot. The write lock must be held.
+     * 
+     * @param slot slot number
+     * @param association association to write
+     * @param entity UTF-8 encoded entity, or null
+     * @param key raw MAC key, or null
+     */
+    private void writeSlot(int slot, Association association, byte[] entity, byte[] key) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        String handle = association.getHandle();
+
+        int flags = 0;
+        if (association.isPrivate()) {
+            flags |= FLAG_PRIVATE;
+        }
+        if (association.getExpiration() != null) {
+            flags |= FLAG_EXPIRES;
+            slab.putLong(offset + EXPIRATION_OFFSET, association.getExpiration().getTime());
+        }
+        if (entity != null) {
+            flags |= FLAG_ENTITY;
+        }
+        if (key != null) {
+            flags |= FLAG_KEY;
+        }
+
+        AssociationType type = association.getAssociationType();
+        slab.putLong(offset + SEQUENCE_OFFSET, ++sequence);
+        slab.putInt(offset + HASH_OFFSET, handle.hashCode());
+        slab.putInt(offset + ENTITY_HASH_OFFSET, entity == null ? 0 : hash(entity));
+        slab.put(offset + TYPE_OFFSET, (byte) (type == null ? 0 : type.ordinal() + 1));
+        slab.put(offset + FLAGS_OFFSET, (byte) flags);
+        slab.put(offset + HANDLE_LENGTH_OFFSET, (byte) handle.length());
+        slab.put(offset + KEY_LENGTH_OFFSET, (byte) (key == null ? 0 : key.length));
+        slab.putShort(offset + ENTITY_LENGTH_OFFSET, (short) (entity == null ? 0 : entity.length));
+
+        for (int i = 0; i < handle.length(); i++) {
+            slab.put(offset + HANDLE_OFFSET + i, (byte) handle.charAt(i));
+        }
+        if (key != null) {
+            for (int i = 0; i < key.length; i++) {
+                slab.put(offset + KEY_OFFSET + i, key[i]);
+            }
+        }
+        if (entity != null) {
+            for (int i = 0; i < entity.length; i++) {
+                slab.put(offset + ENTITY_OFFSET + i, entity[i]);
+            }
+        }
+    }
+
+    /**
+     * Materialize the association in a slot.
+     * 
+     * @param slot slot number
+     * @param handle handle of the association if already known, or null to read it from the slot
+     * @return association
+     */
+    private Association readSlot(int slot, String handle) {
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        int flags = slab.get(offset + FLAGS_OFFSET);
+
+        if (handle == null) {
+            char[] chars = new char[slab.get(offset + HANDLE_LENGTH_OFFSET) & 0xff];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) slab.get(offset + HANDLE_OFFSET + i);
+            }
+            handle = new String(chars);
+        }
+
+        BasicAssociation association = new BasicAssociation();
+        association.setHandle(handle);
+        association.setPrivate((flags & FLAG_PRIVATE) != 0);
+
+        int type = slab.get(offset + TYPE_OFFSET);
+        if (type > 0) {
+            association.setAssociationType(TYPES[type - 1]);
+        }
+
+        if ((flags & FLAG_EXPIRES) != 0) {
+            association.setExpiration(new Date(slab.getLong(offset + EXPIRATION_OFFSET)));
+        }
+
+        if ((flags & FLAG_ENTITY) != 0) {
+            byte[] entity = new byte[slab.getShort(offset + ENTITY_LENGTH_OFFSET) & 0xffff];
+            for (int i = 0; i < entity.length; i++) {
+                entity[i] = slab.get(offset + ENTITY_OFFSET + i);
+            }
+            association.setEntity(decode(entity));
+        }
+
+        if ((flags & FLAG_KEY) != 0 && type > 0) {
+            byte[] key = new byte[slab.get(offset + KEY_LENGTH_OFFSET) & 0xff];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = slab.get(offset + KEY_OFFSET + i);
+            }
+            association.setMacKey(new SecretKeySpec(key, TYPES[type - 1].getAlgorithm()));
+        }
+
+        return association;
+    }
+
+    /**
+     * Get the slab holding a slot.
+     * 
+     * @param slot slot number
+     * @return slab
+     */
+    private ByteBuffer slab(int slot) {
+        return slabs[slot / SLAB_SLOTS];
+    }
+
+    /**
+     * Get the offset of a slot within its slab.
+     * 
+     * @param slot slot number
+     * @return offset in bytes
+     */
+    private int offset(int slot) {
+        return (slot % SLAB_SLOTS) * slotSize;
+    }
+
+    /**
+     * Check that a handle can be stored.
+     * 
+     * @param handle handle to check
+     * @throws IllegalArgumentException if the handle cannot be stored
+     */
+    private void checkHandle(String handle) {
+        if (handle == null || handle.length() == 0 || handle.length() > MAX_HANDLE_LENGTH) {
+            throw new IllegalArgumentException("Association handle must be 1 to 255 characters long");
+        }
+        for (int i = 0; i < handle.length(); i++) {
+            char c = handle.charAt(i);
+            if (c < 33 || c > 126) {
+                throw new IllegalArgumentException("Association handle contains an invalid character: " + handle);
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of a hash code, so that hash codes differing only in their high bits use different buckets.
+     * 
+     * @param hash hash code
+     * @return spread hash
+     */
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hash a byte array.
+     * 
+     * @param bytes bytes to hash
+     * @return hash code
+     */
+    private static int hash(byte[] bytes) {
+        int h = 1;
+        for (byte b : bytes) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     * 
+     * @param s string to encode, may be null
+     * @return encoded string, or null
+     */
+    private static byte[] encode(String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Decode a UTF-8 string.
+     * 
+     * @param bytes bytes to decode
+     * @return decoded string
+     */
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+}
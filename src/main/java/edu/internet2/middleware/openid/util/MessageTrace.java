@@ -0,0 +1,219 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.util;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+
+/**
+ * Sampled tracing of the messages passing through the encoding pipeline. When tracing is enabled, a fraction of the
+ * messages that are encoded or decoded are written as a single structured log line, containing every parameter of the
+ * message, to the {@value #LOGGER_NAME} logger at debug level.
+ * 
+ * Tracing is disabled by default, and costs a single volatile read per message when disabled. Call sites should
+ * guard calls with {@link #isEnabled()}, so that no arguments are evaluated unless tracing is on:
+ * 
+ * <pre>
+ * if (MessageTrace.isEnabled()) {
+ *     MessageTrace.trace(&quot;decode&quot;, parameters);
+ * }
+ * </pre>
+ * 
+ * Tracing can be enabled at runtime with {@link #setSampleInterval(int)}, or at startup by setting the
+ * {@value #SAMPLE_INTERVAL_PROPERTY} system property. MAC keys are never written to the trace.
+ */
+public final class MessageTrace {
+
+    /** Name of the logger trace records are written to. */
+    public static final String LOGGER_NAME = "edu.internet2.middleware.openid.trace";
+
+    /** System property used to set the initial sample interval. */
+    public static final String SAMPLE_INTERVAL_PROPERTY = LOGGER_NAME + ".sampleInterval";
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(LOGGER_NAME);
+
+    /** Number of messages seen while tracing is enabled. */
+    private static final AtomicLong MESSAGE_COUNT = new AtomicLong();
+
+    /** Whether tracing is enabled. */
+    private static volatile boolean enabled;
+
+    /** One in this many messages is traced. */
+    private static volatile int sampleInterval;
+
+    static {
+        int interval = 0;
+        String property = System.getProperty(SAMPLE_INTERVAL_PROPERTY);
+        if (property != null) {
+            try {
+                interval = Integer.parseInt(property.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid value for {}: {}", SAMPLE_INTERVAL_PROPERTY, property);
+            }
+        }
+        setSampleInterval(interval);
+    }
+
+    /** Constructor. */
+    private MessageTrace() {
+    }
+
+    /**
+     * Check if tracing is enabled. This is the fast path that should guard every call to the trace methods.
+     * 
+     * @return whether tracing is enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the sample interval.
+     * 
+     * @return the sample interval, or 0 if tracing is disabled
+     */
+    public static int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Set the sample interval. One in every <code>interval</code> messages is traced; an interval of 1 traces every
+     * message, and an interval of 0 or less disables tracing.
+     * 
+     * @param interval sample interval
+     */
+    public static void setSampleInterval(int interval) {
+        sampleInterval = Math.max(interval, 0);
+        enabled = interval > 0;
+    }
+
+    /**
+     * Trace a parameter map, if it is selected by sampling.
+     * 
+     * @param stage pipeline stage the message is passing through, such as "url-decode"
+     * @param parameters message parameters
+     */
+    public static void trace(String stage, ParameterMap parameters) {
+        if (sample()) {
+            log.debug(buildRecord(stage, parameters));
+        }
+    }
+
+    /**
+     * Trace a map of encoded message parameters, if it is selected by sampling.
+     * 
+     * @param stage pipeline stage the message is passing through, such as "kvf-encode"
+     * @param parameters message parameters, keyed on encoded parameter name
+     */
+    public static void trace(String stage, Map<String, String> parameters) {
+        if (sample()) {
+            log.debug(buildRecord(stage, parameters));
+        }
+    }
+
+    /**
+     * Decide whether the current message should be traced.
+     * 
+     * @return true if tracing is enabled, the message is selected by sampling, and the trace logger is enabled
+     */
+    static boolean sample() {
+        int interval = sampleInterval;
+        if (!enabled || interval <= 0) {
+            return false;
+        }
+
+        return MESSAGE_COUNT.getAndIncrement() % interval == 0 && log.isDebugEnabled();
+    }
+
+    /**
+     * Build the trace record for a parameter map.
+     * 
+     * @param stage pipeline stage
+     * @param parameters message parameters
+     * @return trace record
+     */
+    static String buildRecord(String stage, ParameterMap parameters) {
+        StringBuilder record = startRecord(stage, parameters.size());
+        for (Map.Entry<QName, String> parameter : parameters.entrySet()) {
+            QName qname = parameter.getKey();
+            appendParameter(record, qname.toString(), qname.getLocalPart(), parameter.getValue());
+        }
+
+        return record.toString();
+    }
+
+    /**
+     * Build the trace record for a map of encoded message parameters.
+     * 
+     * @param stage pipeline stage
+     * @param parameters message parameters, keyed on encoded parameter name
+     * @return trace record
+     */
+    static String buildRecord(String stage, Map<String, String> parameters) {
+        StringBuilder record = startRecord(stage, parameters.size());
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            appendParameter(record, parameter.getKey(), parameter.getKey(), parameter.getValue());
+        }
+
+        return record.toString();
+    }
+
+    /**
+     * Start a trace record.
+     * 
+     * @param stage pipeline stage
+     * @param count number of message parameters
+     * @return buffer containing the start of the record
+     */
+    private static StringBuilder startRecord(String stage, int count) {
+        StringBuilder record = new StringBuilder(64 + count * 48);
+        record.append("stage=").append(stage);
+        record.append(" thread=").append(Thread.currentThread().getName());
+        record.append(" parameters=").append(count);
+        return record;
+    }
+
+    /**
+     * Append a single parameter to a trace record.
+     * 
+     * @param record trace record
+     * @param name parameter name as written to the record
+     * @param localName local name of the parameter, used to recognize secrets
+     * @param value parameter value
+     */
+    private static void appendParameter(StringBuilder record, String name, String localName, String value) {
+        record.append(" [").append(name).append('=');
+
+        if (Parameter.mac_key.toString().equals(localName) || Parameter.enc_mac_key.toString().equals(localName)) {
+            record.append("(redacted)");
+        } else {
+            record.append(value);
+        }
+
+        record.append(']');
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.common;
+
+import java.util.Iterator;
+
+import javax.xml.XMLConstants;
+
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the namespace map.
+ */
+public class NamespaceMapTest extends TestCase {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(NamespaceMapTest.class);
+
+    /** Number of namespaces to register in the scale test. */
+    private static final int NAMESPACE_COUNT = 500;
+
+    /**
+     * Test that lookups work in both directions and follow removals.
+     */
+    public void testBidirectionalLookup() {
+        NamespaceMap namespaces = new NamespaceMap();
+
+        assertEquals(XMLConstants.DEFAULT_NS_PREFIX, namespaces.add(OpenIDConstants.OPENID_20_NS, null));
+        assertEquals("sreg", namespaces.add("http://openid.net/extensions/sreg/1.1", "sreg"));
+        assertEquals("n0", namespaces.add("http://example.com/other", "sreg"));
+        assertEquals("n1", namespaces.add("http://example.com/generated"));
+
+        assertEquals(OpenIDConstants.OPENID_20_NS, namespaces.getURI(XMLConstants.DEFAULT_NS_PREFIX));
+        assertEquals("http://example.com/other", namespaces.getURI("n0"));
+        assertTrue(namespaces.containsAlias("sreg"));
+
+        namespaces.remove("http://openid.net/extensions/sreg/1.1");
+        assertFalse(namespaces.containsAlias("sreg"));
+        assertNull(namespaces.getURI("sreg"));
+
+        assertEquals("sreg", namespaces.add("http://example.com/new", "sreg"));
+        assertEquals("http://example.com/new", namespaces.getURI("sreg"));
+    }
+
+    /**
+     * Test that namespaces are returned in insertion order.
+     */
+    public void testInsertionOrder() {
+        NamespaceMap namespaces = new NamespaceMap();
+        for (int i = NAMESPACE_COUNT; i > 0; i--) {
+            namespaces.add("http://example.com/" + i, "a" + i);
+        }
+
+        Iterator<String> uris = namespaces.getURIs().iterator();
+        Iterator<String> aliases = namespaces.getAliases().iterator();
+        for (int i = NAMESPACE_COUNT; i > 0; i--) {
+            assertEquals("http://example.com/" + i, uris.next());
+            assertEquals("a" + i, aliases.next());
+        }
+    }
+
+    /**
+     * Register a large number of namespaces with colliding aliases, as happens with Attribute Exchange type aliases,
+     * and resolve each of them in both directions.
+     */
+    public void testManyNamespaces() {
+        long start = System.nanoTime();
+
+        NamespaceMap namespaces = new NamespaceMap();
+        for (int i = 0; i < NAMESPACE_COUNT; i++) {
+            // every namespace asks for the same alias, forcing alias generation
+            assertEquals("n" + i, namespaces.add("http://example.com/" + i, "n0"));
+        }
+
+        for (int i = 0; i < NAMESPACE_COUNT; i++) {
+            String uri = "http://example.com/" + i;
+            String alias = namespaces.getAlias(uri);
+            assertTrue(namespaces.containsAlias(alias));
+            assertEquals(uri, namespaces.getURI(alias));
+        }
+
+        log.debug("registered and resolved {} namespaces in {} microseconds", NAMESPACE_COUNT,
+                (System.nanoTime() - start) / 1000);
+    }
+
+}
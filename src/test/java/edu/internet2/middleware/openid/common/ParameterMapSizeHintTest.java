@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.common;
+
+import junit.framework.TestCase;
+
+/**
+ * Test parameter map sizing.
+ */
+public class ParameterMapSizeHintTest extends TestCase {
+
+    /**
+     * Test how the hint adapts to observed sizes.
+     */
+    public void testAdaptiveSizing() {
+        ParameterMapSizeHint hint = new ParameterMapSizeHint(8);
+        assertEquals(8, hint.getExpectedSize());
+
+        hint.recordSize(40);
+        assertEquals(40, hint.getExpectedSize());
+
+        // smaller messages lower the hint gradually
+        hint.recordSize(8);
+        assertEquals(36, hint.getExpectedSize());
+        for (int i = 0; i < 100; i++) {
+            hint.recordSize(8);
+        }
+        assertEquals(8, hint.getExpectedSize());
+
+        hint.recordSize(10 * ParameterMapSizeHint.MAX_HINT);
+        assertEquals(ParameterMapSizeHint.MAX_HINT, hint.getExpectedSize());
+        assertEquals(0, new ParameterMapSizeHint(-1).getExpectedSize());
+    }
+
+}
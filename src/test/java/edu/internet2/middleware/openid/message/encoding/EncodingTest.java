@@ -16,15 +16,40 @@
 
 package edu.internet2.middleware.openid.message.encoding;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.SecretKey;
 import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
+import javax.servlet.ServletRequest;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +58,11 @@ import edu.internet2.middleware.openid.BaseTestCase;
 import edu.internet2.middleware.openid.common.OpenIDConstants;
 import edu.internet2.middleware.openid.common.ParameterMap;
 import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.message.encoding.impl.AbstractMessageDecoder;
 import edu.internet2.middleware.openid.message.encoding.impl.KeyValueFormCodec;
+import edu.internet2.middleware.openid.message.encoding.impl.KeyValueFormStreamCodec;
+import edu.internet2.middleware.openid.message.encoding.impl.PercentEncoder;
+import edu.internet2.middleware.openid.message.encoding.impl.ServletRequestParameterMapDecoder;
 import edu.internet2.middleware.openid.message.encoding.impl.URLFormCodec;
 
 /**
@@ -67,6 +96,162 @@ public class EncodingTest extends BaseTestCase {
         assertEquals(encoded, URLFormCodec.getInstance().encode(parameters));
     }
 
+    /**
+     * Test that the single-pass URLFormCodec decoder produces the same results as decoding each parameter with
+     * {@link URLDecoder}.
+     * 
+     * @throws Exception if unable to decode string
+     */
+    public void testUrlFormDecodingEquivalence() throws Exception {
+        AbstractMessageDecoder<String> reference = new AbstractMessageDecoder<String>() {
+            public Map<String, String> decodeMessage(String encoded) throws EncodingException {
+                Map<String, String> parameters = new HashMap<String, String>();
+                try {
+                    for (String pair : encoded.split("&")) {
+                        String[] parts = pair.split("=", 2);
+                        if (parts.length == 2) {
+                            String key = URLDecoder.decode(parts[0], "UTF-8");
+                            if (key.startsWith("openid.")) {
+                                parameters.put(key.substring(7), URLDecoder.decode(parts[1], "UTF-8"));
+                            }
+                        }
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    throw new EncodingException(e);
+                }
+                return parameters;
+            }
+        };
+
+        String[] messages = {
+            "openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.mode=error&openid.error=Some+error",
+            "foo=bar&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.mode=id_res&baz&&openid.empty=",
+            "openid%2Ens=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid%2Emode=id_res&openid+mode=ignored",
+            "openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.ns.sreg=http%3A%2F%2Fopenid.net%2F"
+                    + "extensions%2Fsreg%2F1.1&openid.sreg.fullname=J%C3%BCrgen+%E2%82%AC%F0%9F%98%80&openid.sreg.nick"
+                    + "name=%C3%28bad%FF&openid.mode=id_res&",
+            "openid.mode=a=b=c&openid.ns=http://specs.openid.net/auth/2.0&openid.identity=http://example.com/?x=1",
+            "", "&", "=", "openid.=", };
+
+        for (String message : messages) {
+            ParameterMap expected = reference.decode(message);
+            ParameterMap actual = URLFormCodec.getInstance().decode(message);
+            assertEquals("Decoded parameters differ for: " + message, expected, actual);
+            assertEquals("Decoded namespaces differ for: " + message, expected.getNamespaces().getURIs(), actual
+                    .getNamespaces().getURIs());
+            assertEquals(reference.decodeMessage(message), URLFormCodec.getInstance().decodeMessage(message));
+        }
+
+        try {
+            URLFormCodec.getInstance().decode("openid.mode=%2");
+            fail("URLFormCodec failed to catch an incomplete escape sequence");
+        } catch (EncodingException e) {
+            // do nothing
+        }
+
+        try {
+            URLFormCodec.getInstance().decode("openid.mode=%zz");
+            fail("URLFormCodec failed to catch an illegal escape sequence");
+        } catch (EncodingException e) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Test decoding of the parameter map of a servlet request.
+     * 
+     * @throws EncodingException if unable to decode the parameters
+     */
+    public void testServletRequestDecoding() throws EncodingException {
+        final Map<String, String[]> requestParameters = new LinkedHashMap<String, String[]>();
+        requestParameters.put("openid.mode", new String[] { "checkid_setup" });
+        requestParameters.put("openid.sreg.email", new String[] { "user@example.com", "ignored" });
+        requestParameters.put("openid.ns.sreg", new String[] { "http://openid.net/extensions/sreg/1.1" });
+        requestParameters.put("openid.nsfoo", new String[] { "not a declaration" });
+        requestParameters.put("openid.empty", new String[0]);
+        requestParameters.put("foo", new String[] { "bar" });
+        requestParameters.put("openid.ns", new String[] { OpenIDConstants.OPENID_20_NS });
+
+        ServletRequest request = (ServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { ServletRequest.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getParameterMap".equals(method.getName())) {
+                            return requestParameters;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        AbstractMessageDecoder<Map<String, String[]>> reference = new AbstractMessageDecoder<Map<String, String[]>>() {
+            public Map<String, String> decodeMessage(Map<String, String[]> encoded) {
+                return ServletRequestParameterMapDecoder.getInstance().decodeMessage(encoded);
+            }
+        };
+
+        ParameterMap parameters = ServletRequestParameterMapDecoder.getInstance().decode(request.getParameterMap());
+        assertEquals(reference.decode(requestParameters), parameters);
+        assertEquals(3, parameters.size());
+        assertEquals("checkid_setup", parameters.get(buildQName("mode")));
+        assertEquals("not a declaration", parameters.get(buildQName("nsfoo")));
+        assertEquals("user@example.com", parameters.get(new QName("http://openid.net/extensions/sreg/1.1", "email")));
+        assertEquals("sreg", parameters.getNamespaces().getAlias("http://openid.net/extensions/sreg/1.1"));
+        assertEquals(OpenIDConstants.OPENID_20_NS, parameters.getNamespaces().getURI(XMLConstants.DEFAULT_NS_PREFIX));
+    }
+
+    /**
+     * Test that the percent encoder produces the same results as {@link URLEncoder}, including for unpaired
+     * surrogates, and that the URLFormCodec output is unchanged.
+     * 
+     * @throws Exception if unable to encode strings
+     */
+    public void testPercentEncoderEquivalence() throws Exception {
+        String[] strings = { "", "simple", "openid.ns", "a b+c&d=e", "http://example.com/?x=1&y=~*'()!",
+            "J\u00fcrgen \u20ac\ud83d\ude00", "lone \ud83d high", "lone \ude00 low", "end \ud83d", "\u0000\u007f\u0080",
+            "\u07ff\u0800\uffff", };
+
+        for (String string : strings) {
+            assertEquals(URLEncoder.encode(string, "UTF-8"), PercentEncoder.FORM.encode(string));
+            assertEquals(URLEncoder.encode(string, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E",
+                    "~"), PercentEncoder.RFC3986.encode(string));
+        }
+
+        Random random = new Random(42);
+        char[] chars = new char[32];
+        int iterations = 2000;
+        String[] randomStrings = new String[iterations];
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < chars.length; j++) {
+                // bias towards ASCII, but include the full range of UTF-16 code units
+                chars[j] = (char) (random.nextBoolean() ? random.nextInt(128) : random.nextInt(0x10000));
+            }
+            randomStrings[i] = new String(chars);
+            assertEquals(URLEncoder.encode(randomStrings[i], "UTF-8"), PercentEncoder.FORM.encode(randomStrings[i]));
+        }
+
+        long start = System.nanoTime();
+        for (String string : randomStrings) {
+            URLEncoder.encode(string, "UTF-8");
+        }
+        long urlEncoderTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        StringBuilder buffer = new StringBuilder();
+        for (String string : randomStrings) {
+            buffer.setLength(0);
+            PercentEncoder.FORM.encode(string, buffer);
+        }
+        long percentEncoderTime = System.nanoTime() - start;
+        log.debug("URLEncoder: {} microseconds, PercentEncoder: {} microseconds", urlEncoderTime / 1000,
+                percentEncoderTime / 1000);
+
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("ns", OpenIDConstants.OPENID_20_NS);
+        parameters.put("sreg.fullname", "J\u00fcrgen \u20ac");
+        parameters.put("return_to", "http://example.com/?x=1&y=*~");
+        assertEquals("openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.sreg.fullname=J%C3%BCrgen+%E2%82%AC&"
+                + "openid.return_to=http%3A%2F%2Fexample.com%2F%3Fx%3D1%26y%3D*%7E", URLFormCodec.getInstance().encode(
+                parameters));
+    }
     /**
      * Test encoding and decoding using the KeyValueFormCodec.
      * 
@@ -84,6 +269,111 @@ public class EncodingTest extends BaseTestCase {
         assertEquals(encoded, KeyValueFormCodec.getInstance().encode(parameters));
     }
 
+    /**
+     * Test encoding and decoding streams using the KeyValueFormStreamCodec.
+     * 
+     * @throws Exception if unable to encode or decode the message
+     */
+    public void testKeyValueStreamEncoding() throws Exception {
+        String encoded = "ns:http://specs.openid.net/auth/2.0\nns.sreg:http://openid.net/extensions/sreg/1.1\n"
+                + "mode:id_res\nsreg.fullname:J\u00fcrgen \u20ac\ud83d\ude00\nerror:a:b\n\ninvalid line";
+        byte[] bytes = encoded.getBytes("UTF-8");
+        KeyValueFormStreamCodec codec = new KeyValueFormStreamCodec();
+
+        ParameterMap expected = KeyValueFormCodec.getInstance().decode(encoded);
+        ParameterMap parameters = codec.decode(new ByteArrayInputStream(bytes));
+        assertEquals(expected, parameters);
+        assertEquals("a:b", parameters.get(buildQName("error")));
+        assertEquals(expected, codec.decode(Channels.newChannel(new ByteArrayInputStream(bytes))));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        codec.encode(parameters, output);
+        assertEquals(KeyValueFormCodec.getInstance().encode(parameters), new String(output.toByteArray(), "UTF-8"));
+
+        try {
+            codec.decode(new ByteArrayInputStream(new byte[] { 'm', 'o', 'd', 'e', ':', (byte) 0xC3, (byte) 0x28 }));
+            fail("KeyValueFormStreamCodec failed to catch invalid UTF-8");
+        } catch (EncodingException e) {
+            // do nothing
+        }
+
+        try {
+            new KeyValueFormStreamCodec(bytes.length - 1).decode(new ByteArrayInputStream(bytes));
+            fail("KeyValueFormStreamCodec failed to enforce the maximum message size");
+        } catch (EncodingException e) {
+            // do nothing
+        }
+
+        try {
+            ParameterMap invalid = new ParameterMap();
+            invalid.put(buildQName("claimed_id"), "http://example.\ncom/");
+            codec.encode(invalid, new ByteArrayOutputStream());
+            fail("KeyValueFormStreamCodec failed to catch invalid parameter value containing a newline");
+        } catch (EncodingException e) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Encode and decode messages with the codec singletons from many threads at once, checking that no thread sees
+     * another thread's data.
+     * 
+     * @throws Exception if a codec fails
+     */
+    public void testConcurrentCodecUse() throws Exception {
+        final int threads = 8;
+        final int iterations = 500;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    startSignal.await();
+                    KeyValueFormStreamCodec streamCodec = new KeyValueFormStreamCodec();
+                    StringBuilder padding = new StringBuilder();
+
+                    for (int i = 0; i < iterations; i++) {
+                        // vary the message size so that scratch buffers are regularly grown
+                        padding.append((char) ('a' + i % 26));
+                        if (padding.length() > 5000) {
+                            padding.setLength(0);
+                        }
+
+                        ParameterMap parameters = new ParameterMap();
+                        parameters.getNamespaces().add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+                        parameters.put(buildQName("mode"), "error");
+                        parameters.put(buildQName("error"), "thread " + thread + " iteration " + i + " \u20ac "
+                                + padding);
+
+                        assertEquals(parameters, URLFormCodec.getInstance().decode(
+                                URLFormCodec.getInstance().encode(parameters)));
+                        assertEquals(parameters, KeyValueFormCodec.getInstance().decode(
+                                KeyValueFormCodec.getInstance().encode(parameters)));
+
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        streamCodec.encode(parameters, output);
+                        assertEquals(parameters, streamCodec.decode(new ByteArrayInputStream(output.toByteArray())));
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        startSignal.countDown();
+        try {
+            for (Future<Object> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Test encoding invalid values using the KeyValueFormCodec.
      */
@@ -127,6 +417,44 @@ public class EncodingTest extends BaseTestCase {
         String message = "openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.error=Error+message";
         assertEquals("http://example.com/path?foo=bar&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&"
                 + "openid.error=Error+message#frag", EncodingUtils.appendMessageParameters(url, message).toString());
+
+        assertEquals("http://example.com/path?openid.error=Error+message", EncodingUtils.appendMessageParameters(
+                "http://example.com/path", "openid.error=Error+message"));
+        assertEquals("http://example.com/path?openid.error=Error+message#frag", EncodingUtils
+                .appendMessageParameters("http://example.com/path?#frag", "openid.error=Error+message"));
+        assertEquals("http://example.com/path?foo=bar&openid.error=Error+message", EncodingUtils
+                .appendMessageParameters("http://example.com/path?foo=bar&", "openid.error=Error+message"));
+        assertEquals("http://example.com/path?openid.error=Error+message#frag?a", EncodingUtils
+                .appendMessageParameters("http://example.com/path#frag?a", "openid.error=Error+message"));
+
+        // a '?' inside the query string does not start a new one
+        assertEquals("http://example.com/path?x=1?&openid.error=Error+message", EncodingUtils
+                .appendMessageParameters("http://example.com/path?x=1?", "openid.error=Error+message"));
+        assertEquals("http://example.com/path?x=1?&openid.error=Error+message#f", EncodingUtils
+                .appendMessageParameters("http://example.com/path?x=1?#f", "openid.error=Error+message"));
+    }
+
+    /**
+     * Test writing a message directly into a redirect URL.
+     * 
+     * @throws Exception if unable to encode the message
+     */
+    public void testRedirectEncoding() throws Exception {
+        ParameterMap parameters = new ParameterMap();
+        parameters.getNamespaces().add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+        parameters.put(buildQName("mode"), "error");
+        parameters.put(buildQName("error"), "Error message");
+
+        String url = "http://example.com/path?foo=bar#frag";
+        String expected = "http://example.com/path?foo=bar&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&"
+                + "openid.mode=error&openid.error=Error+message#frag";
+
+        assertEquals(expected, EncodingUtils.encodeMessageParameters(url, parameters));
+        assertEquals(expected, EncodingUtils.encodeMessageParameters(new URL(url), parameters).toString());
+
+        StringWriter writer = new StringWriter();
+        EncodingUtils.appendMessageParameters(url, parameters, writer);
+        assertEquals(expected, writer.toString());
     }
 
     /**
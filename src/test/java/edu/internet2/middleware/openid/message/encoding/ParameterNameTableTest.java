@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.message.encoding;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import edu.internet2.middleware.openid.BaseTestCase;
+import edu.internet2.middleware.openid.Configuration;
+import edu.internet2.middleware.openid.common.NamespaceMap;
+import edu.internet2.middleware.openid.common.NamespaceQName;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+import edu.internet2.middleware.openid.extensions.ax.AttributeExchange;
+import edu.internet2.middleware.openid.extensions.sreg.SimpleRegistration;
+
+/**
+ * Test the table of well-known parameter names.
+ */
+public class ParameterNameTableTest extends BaseTestCase {
+
+    /** Namespaces declared with their registered aliases. */
+    private NamespaceMap namespaces;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        namespaces = new NamespaceMap();
+        namespaces.add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+        namespaces.add(SimpleRegistration.SREG_11_NS, SimpleRegistration.SREG_NS_ALIAS);
+        namespaces.add(AttributeExchange.AX_10_NS, AttributeExchange.AX_NS_ALIAS);
+    }
+
+    /**
+     * Test that registered parameter names decode to their canonical QName instances.
+     */
+    public void testCanonicalDecoding() {
+        assertSame(Parameter.mode.QNAME, EncodingUtils.decodeParameterName("mode", namespaces));
+        assertSame(Parameter.assoc_handle.QNAME, EncodingUtils.decodeParameterName("assoc_handle", namespaces));
+        assertSame(SimpleRegistration.Field.email.QNAME, EncodingUtils.decodeParameterName("sreg.email", namespaces));
+        assertSame(AttributeExchange.Parameter.mode.QNAME, EncodingUtils.decodeParameterName("ax.mode", namespaces));
+
+        QName declaration = EncodingUtils.decodeParameterName("ns.sreg", namespaces);
+        assertSame(declaration, EncodingUtils.decodeParameterName("ns.sreg", namespaces));
+        assertTrue(declaration instanceof NamespaceQName);
+        assertEquals(SimpleRegistration.SREG_11_NS, declaration.getNamespaceURI());
+        assertEquals(SimpleRegistration.SREG_NS_ALIAS, declaration.getPrefix());
+    }
+
+    /**
+     * Test that registered QNames encode to the same parameter name instance.
+     */
+    public void testCanonicalEncoding() {
+        String name = EncodingUtils.encodeParameterName(SimpleRegistration.Field.email.QNAME, namespaces);
+        assertEquals("sreg.email", name);
+        assertSame(name, EncodingUtils.encodeParameterName(SimpleRegistration.Field.email.QNAME, namespaces));
+
+        QName declaration = new NamespaceQName(AttributeExchange.AX_10_NS, AttributeExchange.AX_NS_ALIAS);
+        assertEquals("ns.ax", EncodingUtils.encodeParameterName(declaration, namespaces));
+        assertEquals("mode", EncodingUtils.encodeParameterName(Parameter.mode.QNAME, namespaces));
+    }
+
+    /**
+     * Test parameters whose namespaces are declared with aliases other than the registered ones.
+     */
+    public void testOtherAliases() {
+        NamespaceMap other = new NamespaceMap();
+        other.add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+        other.add(SimpleRegistration.SREG_11_NS, "ext1");
+        other.add(AttributeExchange.AX_10_NS, SimpleRegistration.SREG_NS_ALIAS);
+
+        QName qname = EncodingUtils.decodeParameterName("ext1.email", other);
+        assertEquals(SimpleRegistration.Field.email.QNAME, qname);
+        assertEquals("ext1", qname.getPrefix());
+
+        qname = EncodingUtils.decodeParameterName("sreg.email", other);
+        assertEquals(new QName(AttributeExchange.AX_10_NS, "email"), qname);
+        assertEquals(SimpleRegistration.SREG_NS_ALIAS, qname.getPrefix());
+
+        qname = EncodingUtils.decodeParameterName("ns.sreg", other);
+        assertTrue(qname instanceof NamespaceQName);
+        assertEquals(AttributeExchange.AX_10_NS, qname.getNamespaceURI());
+
+        assertEquals("ext1.email", EncodingUtils.encodeParameterName(SimpleRegistration.Field.email.QNAME, other));
+        assertEquals("ns.ext1", EncodingUtils.encodeParameterName(new NamespaceQName(SimpleRegistration.SREG_11_NS,
+                "ext1"), other));
+    }
+
+    /**
+     * Test parameter names that are not registered in the table.
+     */
+    public void testUnregisteredNames() {
+        assertNull(Configuration.getParameterNames().decode("ax.type.email", namespaces));
+
+        QName qname = EncodingUtils.decodeParameterName("ax.type.email", namespaces);
+        assertEquals(new QName(AttributeExchange.AX_10_NS, "type.email"), qname);
+        assertEquals("ax.type.email", EncodingUtils.encodeParameterName(qname, namespaces));
+
+        qname = EncodingUtils.decodeParameterName("ns", namespaces);
+        assertTrue(qname instanceof NamespaceQName);
+        assertEquals(OpenIDConstants.OPENID_20_NS, qname.getNamespaceURI());
+        assertEquals("ns", EncodingUtils.encodeParameterName(qname, namespaces));
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyPair;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import javax.crypto.SecretKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.xml.namespace.QName;
+
+import edu.internet2.middleware.openid.BaseTestCase;
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.common.OpenIDConstants.SessionType;
+import edu.internet2.middleware.openid.message.AssociationRequest;
+import edu.internet2.middleware.openid.message.AssociationResponse;
+import edu.internet2.middleware.openid.security.impl.BasicAssociationBuilder;
+import edu.internet2.middleware.openid.security.impl.InMemoryAssociationStore;
+
+/**
+ * Tests for {@link AssociationService}.
+ */
+public class AssociationServiceTest extends BaseTestCase {
+
+    /** Association manager. */
+    private AssociationManager manager;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        manager = new AssociationManager();
+        manager.setStore(new InMemoryAssociationStore());
+        manager.setBuilder(new BasicAssociationBuilder());
+        manager.setDefaultLifetime(3600);
+    }
+
+    /**
+     * Test establishing a Diffie-Hellman association.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testDiffieHellmanAssociation() throws Exception {
+        KeyPair consumer = AssociationUtils.generateKeyPair();
+        AssociationRequest request = buildRequest(SessionType.DH_SHA256);
+        request.setDHConsumerPublic((DHPublicKey) consumer.getPublic());
+
+        AssociationService service = new AssociationService(manager, 1, 4);
+        try {
+            AssociationResponse response = service.associate(request).get();
+            Association association = manager.getAssociation(response.getAssociationHandle());
+            assertNotNull(association);
+            assertEquals(AssociationType.HMAC_SHA256, response.getAssociationType());
+            assertEquals(SessionType.DH_SHA256, response.getSessionType());
+            assertEquals(Integer.valueOf(3600), response.getLifetime());
+
+            SecretKey sharedSecret = AssociationUtils.generateSharedSecret(consumer.getPrivate(), response
+                    .getDHServerPublic(), SessionType.DH_SHA256.getAlgorithm());
+            SecretKey macKey = AssociationUtils.decryptMacKey(response.getMacKey(), sharedSecret);
+            assertEquals(association.getMacKey(), macKey);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Test establishing an association without MAC key encryption.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testUnencryptedAssociation() throws Exception {
+        AssociationService service = new AssociationService(manager, 1, 4);
+        try {
+            AssociationResponse response = service.associate(buildRequest(SessionType.no_encryption)).get();
+            Association association = manager.getAssociation(response.getAssociationHandle());
+            assertEquals(association.getMacKey(), response.getMacKey());
+            assertNull(response.getDHServerPublic());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Test that requests are rejected once the queue is full.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testBackpressure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AssociationService service = new AssociationService(manager, 1, 1) {
+            protected AssociationResponse buildResponse(AssociationRequest request) throws AssociationException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssociationException(e);
+                }
+                return super.buildResponse(request);
+            }
+        };
+
+        try {
+            AssociationRequest request = buildRequest(SessionType.no_encryption);
+            Future<AssociationResponse> running = service.associate(request);
+            started.await();
+            Future<AssociationResponse> queued = service.associate(request);
+            assertEquals(1, service.getQueueSize());
+
+            try {
+                service.associate(request);
+                fail("request should be rejected when the queue is full");
+            } catch (AssociationException e) {
+                // expected
+            }
+
+            release.countDown();
+            assertNotNull(running.get().getAssociationHandle());
+            assertNotNull(queued.get().getAssociationHandle());
+        } finally {
+            release.countDown();
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Build an association request.
+     * 
+     * @param sessionType session type of the request
+     * @return association request
+     */
+    private AssociationRequest buildRequest(SessionType sessionType) {
+        QName qname = new QName(OpenIDConstants.OPENID_20_NS, AssociationRequest.MODE);
+        AssociationRequest request = (AssociationRequest) buildMessage(qname);
+        request.setAssociationType(AssociationType.HMAC_SHA256);
+        request.setSessionType(sessionType);
+        return request;
+    }
+
+}
@@ -17,8 +17,11 @@
 package edu.internet2.middleware.openid.security;
 
 import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Random;
 
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,4 +90,60 @@ public class AssociationTest extends BaseTestCase {
         assertEquals("Decrypted key doesn't match the original mac key", macKey, decryptedKey);
     }
 
-}
\ No newline at end of file
+    /**
+     * Test that MAC key encryption round trips for many random keys, including keys with leading zero bytes and with
+     * the high bit set.
+     */
+    public void testRandomMacKeyEncryption() {
+        Random random = new Random(42);
+
+        for (SessionType sessionType : new SessionType[] { SessionType.DH_SHA1, SessionType.DH_SHA256, }) {
+            AssociationType associationType = sessionType == SessionType.DH_SHA1 ? AssociationType.HMAC_SHA1
+                    : AssociationType.HMAC_SHA256;
+            int keyLength = associationType.getKeySize() / 8;
+
+            for (int i = 0; i < 2000; i++) {
+                byte[] rawKey = new byte[keyLength];
+                random.nextBytes(rawKey);
+                if (i % 4 == 0) {
+                    rawKey[0] = 0;
+                } else if (i % 4 == 1) {
+                    rawKey[0] |= 0x80;
+                }
+
+                byte[] rawSecret = new byte[128];
+                random.nextBytes(rawSecret);
+
+                SecretKey macKey = new SecretKeySpec(rawKey, associationType.getAlgorithm());
+                SecretKey sharedSecret = new SecretKeySpec(rawSecret, sessionType.getAlgorithm());
+
+                SecretKey encryptedKey = AssociationUtils.encryptMacKey(macKey, sharedSecret);
+                assertEquals(keyLength, encryptedKey.getEncoded().length);
+
+                SecretKey decryptedKey = AssociationUtils.decryptMacKey(encryptedKey, sharedSecret);
+                assertTrue("round trip failed for key " + i, Arrays.equals(rawKey, decryptedKey.getEncoded()));
+            }
+        }
+    }
+
+    /**
+     * Test XOR of byte arrays.
+     */
+    public void testXor() {
+        byte[] a = { 0, (byte) 0x80, (byte) 0xff, 0x0f, };
+        byte[] b = { 0, (byte) 0x80, 0x0f, (byte) 0xff, };
+        byte[] expected = { 0, 0, (byte) 0xf0, (byte) 0xf0, };
+        assertTrue(Arrays.equals(expected, AssociationUtils.xor(a, b)));
+
+        AssociationUtils.xor(a, b, a);
+        assertTrue(Arrays.equals(expected, a));
+
+        try {
+            AssociationUtils.xor(a, new byte[3]);
+            fail("arrays of different lengths should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+import edu.internet2.middleware.openid.security.impl.BasicAssociation;
+import edu.internet2.middleware.openid.security.impl.InMemoryAssociationStore;
+
+/**
+ * Tests for {@link BatchSignatureVerifier}.
+ */
+public class BatchSignatureVerifierTest extends TestCase {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(BatchSignatureVerifierTest.class);
+
+    /** Association manager. */
+    private AssociationManager manager;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        manager = new AssociationManager();
+        manager.setStore(new InMemoryAssociationStore());
+        manager.getStore().add(buildAssociation("sha1", AssociationType.HMAC_SHA1, 60000));
+        manager.getStore().add(buildAssociation("sha256", AssociationType.HMAC_SHA256, 60000));
+        manager.getStore().add(buildAssociation("expired", AssociationType.HMAC_SHA256, -60000));
+    }
+
+    /**
+     * Test that batch results match verifying each message individually.
+     * 
+     * @throws SecurityException if unable to verify signatures
+     */
+    public void testVerify() throws SecurityException {
+        List<ParameterMap> messages = buildMessages(200);
+        boolean[] expected = new boolean[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            Association association = manager.getAssociation(messages.get(i).get(Parameter.assoc_handle.QNAME));
+            expected[i] = manager.isValid(association) && SecurityUtils.signatureIsValid(messages.get(i), association);
+        }
+
+        assertResults(expected, new BatchSignatureVerifier(manager).verify(messages));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BatchSignatureVerifier verifier = new BatchSignatureVerifier(manager, executor);
+            verifier.setChunkSize(7);
+            assertResults(expected, verifier.verify(messages));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that messages whose signature cannot be calculated fail verification without affecting the rest of the
+     * batch.
+     * 
+     * @throws SecurityException if unable to verify signatures
+     */
+    public void testInvalidMessages() throws SecurityException {
+        List<ParameterMap> messages = buildMessages(20);
+        boolean[] expected = new boolean[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            Association association = manager.getAssociation(messages.get(i).get(Parameter.assoc_handle.QNAME));
+            expected[i] = manager.isValid(association) && SecurityUtils.signatureIsValid(messages.get(i), association);
+        }
+
+        assertTrue(expected[5] && expected[7]);
+
+        // a signed field that is missing, and a malformed list of signed fields
+        messages.get(5).remove(Parameter.identity.QNAME);
+        messages.get(7).put(Parameter.signed.QNAME, "mode,");
+        expected[5] = false;
+        expected[7] = false;
+
+        assertResults(expected, new BatchSignatureVerifier(manager).verify(messages));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BatchSignatureVerifier verifier = new BatchSignatureVerifier(manager, executor);
+            verifier.setChunkSize(2);
+            assertResults(expected, verifier.verify(messages));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Log throughput of batch verification compared to verifying each message individually.
+     * 
+     * @throws SecurityException if unable to verify signatures
+     */
+    public void testThroughput() throws SecurityException {
+        List<ParameterMap> messages = buildMessages(2000);
+        int processors = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(processors);
+
+        try {
+            BatchSignatureVerifier sequential = new BatchSignatureVerifier(manager);
+            BatchSignatureVerifier concurrent = new BatchSignatureVerifier(manager, executor);
+
+            long individual = 0;
+            long batch = 0;
+            long parallel = 0;
+            // the first round warms up the JIT and is discarded
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (ParameterMap message : messages) {
+                    Association association = manager.getAssociation(message.get(Parameter.assoc_handle.QNAME));
+                    if (manager.isValid(association)) {
+                        SecurityUtils.signatureIsValid(message, association);
+                    }
+                }
+                individual = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                sequential.verify(messages);
+                batch = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                concurrent.verify(messages);
+                parallel = System.nanoTime() - start;
+            }
+
+            log.info("{} messages: individual {} ms, batch {} ms, batch on {} threads {} ms", new Object[] {
+                    messages.size(), individual / 1000000, batch / 1000000, processors, parallel / 1000000, });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Assert that batch results match the expected results.
+     * 
+     * @param expected expected results
+     * @param actual actual results
+     */
+    private void assertResults(boolean[] expected, boolean[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("message " + i, expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * Build signed messages. Messages are signed with a mix of associations, and every fifth message is tampered with.
+     * 
+     * @param count number of messages to build
+     * @return signed message parameters
+     * @throws SecurityException if unable to sign the messages
+     */
+    private List<ParameterMap> buildMessages(int count) throws SecurityException {
+        String[] handles = { "sha1", "sha256", "sha256", "expired", "unknown", };
+        List<ParameterMap> messages = new ArrayList<ParameterMap>();
+
+        for (int i = 0; i < count; i++) {
+            String handle = handles[i % handles.length];
+            ParameterMap parameters = new ParameterMap();
+            parameters.getNamespaces().add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+            parameters.put(Parameter.mode.QNAME, "id_res");
+            parameters.put(Parameter.assoc_handle.QNAME, handle);
+            parameters.put(Parameter.identity.QNAME, "http://example.com/user" + i);
+            parameters.put(Parameter.return_to.QNAME, "http://rp.example.com/consumer");
+            parameters.put(Parameter.response_nonce.QNAME, "2009-01-01T00:00:00Z" + i);
+
+            List<QName> signedFields = SecurityUtils.buildSignedParameters(parameters);
+            Association association = manager.getAssociation(handle);
+            if (association == null) {
+                association = buildAssociation(handle, AssociationType.HMAC_SHA1, 60000);
+            }
+            String signature = SecurityUtils.calculateSignature(association, parameters, signedFields);
+            parameters.put(Parameter.signed.QNAME, EncodingUtils.encodeFieldList(signedFields, parameters
+                    .getNamespaces()));
+            parameters.put(Parameter.sig.QNAME, signature);
+
+            if (i % 5 == 1) {
+                parameters.put(Parameter.identity.QNAME, "http://example.com/someone-else");
+            }
+
+            messages.add(parameters);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Build an association.
+     * 
+     * @param handle association handle
+     * @param type association type
+     * @param lifetime milliseconds until the association expires
+     * @return association
+     */
+    private Association buildAssociation(String handle, AssociationType type, long lifetime) {
+        BasicAssociation association = new BasicAssociation();
+        association.setHandle(handle);
+        association.setAssociationType(type);
+        association.setMacKey(new SecretKeySpec((handle + "-key").getBytes(), type.getAlgorithm()));
+        association.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        return association;
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+import javax.crypto.interfaces.DHPublicKey;
+
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.common.OpenIDConstants.SessionType;
+import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
+
+/**
+ * Tests for {@link CryptoPrimitives}.
+ */
+public class CryptoPrimitivesTest extends TestCase {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(CryptoPrimitivesTest.class);
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        CryptoPrimitives.setProvider((Provider) null);
+        super.tearDown();
+    }
+
+    /**
+     * Test that engines are cached per thread.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testPerThreadCaching() throws Exception {
+        final KeyFactory keyFactory = CryptoPrimitives.getKeyFactory("DH");
+        assertSame(keyFactory, CryptoPrimitives.getKeyFactory("DH"));
+        assertSame(CryptoPrimitives.getKeyAgreement("DH"), CryptoPrimitives.getKeyAgreement("DH"));
+        assertSame(CryptoPrimitives.getMessageDigest("SHA-1"), CryptoPrimitives.getMessageDigest("SHA-1"));
+        assertNotSame(CryptoPrimitives.getMessageDigest("SHA-1"), CryptoPrimitives.getMessageDigest("SHA-256"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<KeyFactory> other = executor.submit(new Callable<KeyFactory>() {
+                public KeyFactory call() throws Exception {
+                    return CryptoPrimitives.getKeyFactory("DH");
+                }
+            });
+            assertNotSame(keyFactory, other.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test pinning a provider.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testProviderPinning() throws Exception {
+        MessageDigest digest = CryptoPrimitives.getMessageDigest("SHA-256");
+        Provider provider = digest.getProvider();
+
+        CryptoPrimitives.setProvider(provider.getName());
+        assertSame(provider, CryptoPrimitives.getProvider());
+        MessageDigest pinned = CryptoPrimitives.getMessageDigest("SHA-256");
+        assertNotSame(digest, pinned);
+        assertSame(provider, pinned.getProvider());
+
+        try {
+            CryptoPrimitives.setProvider("NoSuchProvider");
+            fail("unknown provider should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Log association establishment latency at 1, 8 and 32 threads.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testEstablishmentLatency() throws Exception {
+        KeyPair consumer = AssociationUtils.generateKeyPair();
+        final String consumerPublic = EncodingUtils.encodePublicKey((DHPublicKey) consumer.getPublic());
+
+        for (int threads : new int[] { 1, 8, 32, }) {
+            final AtomicLong elapsed = new AtomicLong();
+            final int iterations = 4;
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            for (int i = 0; i < iterations; i++) {
+                                long start = System.nanoTime();
+                                establish(consumerPublic);
+                                elapsed.addAndGet(System.nanoTime() - start);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> result : results) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            log.info("{} threads: {} us per association", threads, elapsed.get() / (threads * iterations) / 1000);
+        }
+    }
+
+    /**
+     * Perform the provider side of establishing a DH-SHA256 association.
+     * 
+     * @param consumerPublic encoded public key of the consumer
+     * @throws Exception if an error occurs
+     */
+    private void establish(String consumerPublic) throws Exception {
+        SessionType sessionType = SessionType.DH_SHA256;
+        AssociationType associationType = AssociationType.HMAC_SHA256;
+
+        DHPublicKey publicKey = EncodingUtils.decodePublicKey(consumerPublic, OpenIDConstants.DEFAULT_PARAMETER_SPEC);
+        KeyPair keyPair = AssociationUtils.generateKeyPair();
+        SecretKey sharedSecret = AssociationUtils.generateSharedSecret(keyPair.getPrivate(), publicKey, sessionType
+                .getAlgorithm());
+        SecretKey macKey = AssociationUtils.generateMacKey(associationType.getAlgorithm(), associationType
+                .getKeySize());
+        assertNotNull(AssociationUtils.encryptMacKey(macKey, sharedSecret));
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.security.KeyPair;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+
+/**
+ * Tests for {@link KeyPairPool}.
+ */
+public class KeyPairPoolTest extends TestCase {
+
+    /**
+     * Test that a stopped, empty pool falls back to synchronous generation.
+     */
+    public void testMiss() {
+        KeyPairPool pool = new KeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC, 1, 2);
+
+        assertNotNull(pool.getKeyPair());
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    /**
+     * Test that the pool is filled in the background, refilled below the low watermark, and never hands out the same
+     * key pair twice.
+     * 
+     * @throws InterruptedException if interrupted while waiting for the pool to fill
+     */
+    public void testRefill() throws InterruptedException {
+        KeyPairPool pool = new KeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC, 2, 4);
+        pool.start();
+        try {
+            waitForSize(pool, 4);
+
+            Set<KeyPair> keyPairs = new HashSet<KeyPair>();
+            for (int i = 0; i < 4; i++) {
+                assertTrue("key pair handed out twice", keyPairs.add(pool.getKeyPair()));
+            }
+            assertEquals(4, pool.getHits());
+
+            waitForSize(pool, 4);
+            for (int i = 0; i < 12; i++) {
+                assertTrue("key pair handed out twice", keyPairs.add(pool.getKeyPair()));
+            }
+            assertEquals(16, pool.getHits() + pool.getMisses());
+        } finally {
+            pool.stop();
+        }
+
+        assertFalse(pool.isRunning());
+    }
+
+    /**
+     * Test that registered pools are used by {@link AssociationUtils#generateKeyPair()}.
+     */
+    public void testRegistration() {
+        KeyPairPool pool = new KeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC, 1, 2);
+        AssociationUtils.registerKeyPairPool(pool);
+        try {
+            assertSame(pool, AssociationUtils.getKeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC));
+            assertNotNull(AssociationUtils.generateKeyPair());
+            assertEquals(1, pool.getMisses());
+        } finally {
+            assertSame(pool, AssociationUtils.unregisterKeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC));
+        }
+
+        assertNotNull(AssociationUtils.generateKeyPair());
+        assertEquals(1, pool.getMisses());
+    }
+
+    /**
+     * Test that invalid watermarks are rejected.
+     */
+    public void testInvalidWatermarks() {
+        try {
+            new KeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC, 5, 4);
+            fail("low watermark above high watermark should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            new KeyPairPool(OpenIDConstants.DEFAULT_PARAMETER_SPEC, 0, 4);
+            fail("low watermark of 0 should be rejected, since the pool would never refill");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Wait for the pool to reach a size.
+     * 
+     * @param pool pool to wait for
+     * @param size size to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForSize(KeyPairPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.size() < size) {
+            assertTrue("pool was not filled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.impl.BasicAssociation;
+
+/**
+ * Tests for {@link MacCache}.
+ */
+public class MacCacheTest extends TestCase {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(MacCacheTest.class);
+
+    /**
+     * Test that pooled MAC instances are reused and produce the same results as freshly initialized ones.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testReuse() throws Exception {
+        MacCache cache = new MacCache();
+        BasicAssociation association = buildAssociation("handle", AssociationType.HMAC_SHA256, "key", 60000);
+        byte[] expected = uncachedMac(association, "foo");
+
+        Mac mac = cache.acquire(association);
+        mac.update("partial".getBytes());
+        cache.release(association, mac);
+        assertEquals(1, cache.size());
+
+        Mac reused = cache.acquire(association);
+        assertSame(mac, reused);
+        assertTrue(Arrays.equals(expected, reused.doFinal("foo".getBytes())));
+        cache.release(association, reused);
+
+        // stores may materialize a new association and key instance on every lookup
+        BasicAssociation copy = buildAssociation("handle", AssociationType.HMAC_SHA256, "key", 60000);
+        assertSame(mac, cache.acquire(copy));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Test that MAC instances are not pooled for associations without a handle or that have expired.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testUncached() throws Exception {
+        MacCache cache = new MacCache();
+
+        BasicAssociation association = buildAssociation(null, AssociationType.HMAC_SHA1, "key", 60000);
+        cache.release(association, cache.acquire(association));
+        assertEquals(0, cache.size());
+
+        association = buildAssociation("expired", AssociationType.HMAC_SHA1, "key", -1000);
+        cache.release(association, cache.acquire(association));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test invalidation, key changes, and the bound on the number of associations.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testEviction() throws Exception {
+        MacCache cache = new MacCache(2, 1);
+
+        BasicAssociation association = buildAssociation("a", AssociationType.HMAC_SHA1, "key", 60000);
+        Mac mac = cache.acquire(association);
+        cache.release(association, mac);
+        cache.invalidate("a");
+        assertEquals(0, cache.size());
+        assertNotSame(mac, cache.acquire(association));
+
+        // same handle, different key
+        BasicAssociation rekeyed = buildAssociation("a", AssociationType.HMAC_SHA1, "other", 60000);
+        mac = cache.acquire(association);
+        cache.release(association, mac);
+        Mac other = cache.acquire(rekeyed);
+        assertNotSame(mac, other);
+        assertTrue(Arrays.equals(uncachedMac(rekeyed, "foo"), other.doFinal("foo".getBytes())));
+        cache.release(rekeyed, other);
+
+        for (int i = 0; i < 10; i++) {
+            BasicAssociation a = buildAssociation("handle" + i, AssociationType.HMAC_SHA1, "key", 60000);
+            cache.release(a, cache.acquire(a));
+        }
+        assertTrue(cache.size() <= 2);
+    }
+
+    /**
+     * Log signature throughput with and without pooled MAC instances.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testThroughput() throws Exception {
+        MacCache cache = new MacCache();
+        byte[] data = "mode:id_res\nidentity:http://example.com/username\nreturn_to:http://example.org/\n".getBytes();
+        int iterations = 20000;
+
+        for (AssociationType type : AssociationType.values()) {
+            BasicAssociation association = buildAssociation("throughput", type, "key", 60000);
+
+            long uncached = 0;
+            long pooled = 0;
+            // the first round warms up the JIT and is discarded
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Mac mac = Mac.getInstance(association.getMacKey().getAlgorithm());
+                    mac.init(association.getMacKey());
+                    mac.doFinal(data);
+                }
+                uncached = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Mac mac = cache.acquire(association);
+                    mac.doFinal(data);
+                    cache.release(association, mac);
+                }
+                pooled = System.nanoTime() - start;
+            }
+
+            log.info("{}: {} signatures/sec uncached, {} signatures/sec pooled", new Object[] { type,
+                    iterations * 1000000000L / uncached, iterations * 1000000000L / pooled, });
+        }
+    }
+
+    /**
+     * Build an association.
+     * 
+     * @param handle association handle
+     * @param type association type
+     * @param key raw MAC key
+     * @param lifetime milliseconds until the association expires
+     * @return association
+     */
+    private BasicAssociation buildAssociation(String handle, AssociationType type, String key, long lifetime) {
+        SecretKey macKey = new SecretKeySpec(key.getBytes(), type.getAlgorithm());
+
+        BasicAssociation association = new BasicAssociation();
+        association.setHandle(handle);
+        association.setAssociationType(type);
+        association.setMacKey(macKey);
+        association.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        return association;
+    }
+
+    /**
+     * Calculate a MAC using a freshly initialized instance.
+     * 
+     * @param association association to calculate MAC with
+     * @param data data to calculate MAC over
+     * @return raw MAC
+     * @throws Exception if an error occurs
+     */
+    private byte[] uncachedMac(Association association, String data) throws Exception {
+        Mac mac = Mac.getInstance(association.getMacKey().getAlgorithm());
+        mac.init(association.getMacKey());
+        return mac.doFinal(data.getBytes());
+    }
+
+}
@@ -17,16 +17,21 @@
 package edu.internet2.middleware.openid.security;
 
 import java.net.MalformedURLException;
+import java.util.List;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 
+import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.openid.BaseTestCase;
 import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
 import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
 import edu.internet2.middleware.openid.message.PositiveAssertion;
 import edu.internet2.middleware.openid.message.encoding.EncodingUtils;
@@ -82,6 +87,30 @@ public class SecurityUtilsTest extends BaseTestCase {
         assertEquals("WAoVZqkihLcIRdaEssIBpkYUOdWHZ1N7/SaMom+43xw=", response.getSignature());
     }
 
+    /**
+     * Test that the signed fields built for a message exclude the mode and signature parameters.
+     * 
+     * @throws SecurityException if unable to sign the message
+     */
+    public void testSignedFieldList() throws SecurityException {
+        QName qname = new QName(OpenIDConstants.OPENID_20_NS, PositiveAssertion.MODE);
+        PositiveAssertion response = (PositiveAssertion) buildMessage(qname);
+        response.setAssociationHandle("new-handle");
+        response.setIdentity("http://example.com/username");
+        response.setReturnTo("http://rp.example.com/consumer");
+        SecurityUtils.signMessage(response, getAssociation());
+
+        List<QName> signedFields = response.getSignedFields();
+        assertTrue(signedFields.contains(Parameter.identity.QNAME));
+        assertFalse(signedFields.contains(Parameter.mode.QNAME));
+        assertFalse(signedFields.contains(Parameter.sig.QNAME));
+        assertFalse(signedFields.contains(Parameter.signed.QNAME));
+
+        ParameterMap parameters = new ParameterMap();
+        parameters.getNamespaces().add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+        assertFalse(EncodingUtils.encodeFieldList(signedFields, parameters.getNamespaces()).contains("mode"));
+    }
+
     /**
      * Test message signature verification.
      * 
@@ -95,6 +124,142 @@ public class SecurityUtilsTest extends BaseTestCase {
         assertTrue(SecurityUtils.signatureIsValid(response, association));
     }
 
+    /**
+     * Test signature verification against the received message parameters.
+     * 
+     * @throws SecurityException if unable to validate the signature
+     */
+    public void testReceivedSignatureVerification() throws SecurityException {
+        String messageFile = "/data/edu/internet2/middleware/openid/security/signed-message-1.txt";
+        PositiveAssertion response = (PositiveAssertion) unmarshallMessage(messageFile);
+        Association association = getAssociation();
+
+        ParameterMap received = response.getReceivedParameters();
+        assertNotNull(received);
+        assertTrue(SecurityUtils.signatureIsValid(received, association));
+
+        received.put(Parameter.identity.QNAME, "http://example.com/someone-else");
+        assertFalse(SecurityUtils.signatureIsValid(received, association));
+        assertFalse(SecurityUtils.signatureIsValid(response, association));
+
+        // a signed field that was not received must not be signed as "null"
+        String identity = received.remove(Parameter.identity.QNAME);
+        try {
+            SecurityUtils.signatureIsValid(received, association);
+            fail("signed field missing from the received parameters should be rejected");
+        } catch (SecurityException e) {
+            // expected
+        }
+        received.put(Parameter.identity.QNAME, identity);
+
+        // malformed lists of signed fields fail verification
+        String signed = received.get(Parameter.signed.QNAME);
+        received.put(Parameter.signed.QNAME, "");
+        assertFalse(SecurityUtils.signatureIsValid(received, association));
+        received.put(Parameter.signed.QNAME, "mode,");
+        assertFalse(SecurityUtils.signatureIsValid(received, association));
+        received.put(Parameter.signed.QNAME, signed.replaceFirst(",", ",,"));
+        assertFalse(SecurityUtils.signatureIsValid(received, association));
+        received.put(Parameter.signed.QNAME, signed);
+
+        received.remove(Parameter.sig.QNAME);
+        assertFalse(SecurityUtils.signatureIsValid(received, association));
+
+        // signing replaces the received parameters
+        SecurityUtils.signMessage(response, association);
+        assertNull(response.getReceivedParameters());
+        assertTrue(SecurityUtils.signatureIsValid(response, association));
+    }
+
+    /**
+     * Test that signatures calculated directly over message parameters match those calculated over the Key-Value Form
+     * encoded signature data.
+     * 
+     * @throws SecurityException if unable to calculate the signature
+     */
+    public void testStreamedSignature() throws SecurityException {
+        Association association = getAssociation();
+
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longValue.append("caf\u00e9 \ud834\udd1e ");
+        }
+
+        ParameterMap parameters = new ParameterMap();
+        parameters.getNamespaces().add(OpenIDConstants.OPENID_20_NS, XMLConstants.DEFAULT_NS_PREFIX);
+        parameters.put(Parameter.mode.QNAME, "id_res");
+        parameters.put(Parameter.identity.QNAME, "http://example.com/\u00fcser");
+        parameters.put(Parameter.return_to.QNAME, longValue.toString());
+
+        List<QName> signedFields = SecurityUtils.buildSignedParameters(parameters);
+        String expected = SecurityUtils.calculateSignature(association, SecurityUtils.buildSignatureData(parameters,
+                signedFields));
+        assertEquals(expected, SecurityUtils.calculateSignature(association, parameters, signedFields));
+
+        parameters.put(Parameter.identity.QNAME, "bad\nvalue");
+        try {
+            SecurityUtils.calculateSignature(association, parameters, signedFields);
+            fail("newline in signed value should be rejected");
+        } catch (SecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test decoding and comparison of received signatures.
+     * 
+     * @throws SecurityException if unable to validate the signature
+     */
+    public void testSignatureComparison() throws SecurityException {
+        String signature = "WAoVZqkihLcIRdaEssIBpkYUOdWHZ1N7/SaMom+43xw=";
+        byte[] expected = Base64.decodeBase64(signature.getBytes());
+        byte[] decoded = new byte[SignatureDataWriter.MAX_MAC_LENGTH];
+
+        assertEquals(expected.length, SignatureDataWriter.decodeBase64(signature, decoded));
+        assertTrue(SignatureDataWriter.isEqual(expected, expected.length, decoded, expected.length));
+        assertEquals(-1, SignatureDataWriter.decodeBase64("WAoV!", decoded));
+        assertEquals(-1, SignatureDataWriter.decodeBase64("WA=oV", decoded));
+        assertEquals(-1, SignatureDataWriter.decodeBase64(signature + signature + signature, decoded));
+
+        assertFalse(SignatureDataWriter.isEqual(expected, expected.length, decoded, expected.length - 1));
+        decoded[0] ^= 1;
+        assertFalse(SignatureDataWriter.isEqual(expected, expected.length, decoded, expected.length));
+        decoded[0] ^= 1;
+        decoded[expected.length - 1] ^= 1;
+        assertFalse(SignatureDataWriter.isEqual(expected, expected.length, decoded, expected.length));
+
+        String messageFile = "/data/edu/internet2/middleware/openid/security/signed-message-1.txt";
+        PositiveAssertion response = (PositiveAssertion) unmarshallMessage(messageFile);
+        ParameterMap received = response.getReceivedParameters();
+        Association association = getAssociation();
+        String sig = received.get(Parameter.sig.QNAME);
+
+        String[] variants = { sig, flip(sig, 0), flip(sig, sig.length() - 2), sig.substring(0, sig.length() - 4), };
+        int iterations = 2000;
+        for (int v = 0; v < variants.length; v++) {
+            received.put(Parameter.sig.QNAME, variants[v]);
+            assertEquals(v == 0, SecurityUtils.signatureIsValid(received, association));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                SecurityUtils.signatureIsValid(received, association);
+            }
+            log.debug("signature variant {}: {} ns/verification", v, (System.nanoTime() - start) / iterations);
+        }
+    }
+
+    /**
+     * Change a single character of a Base64 string to a different Base64 character.
+     * 
+     * @param s Base64 string
+     * @param index index of the character to change
+     * @return changed string
+     */
+    private String flip(String s, int index) {
+        char c = s.charAt(index) == 'A' ? 'B' : 'A';
+        return s.substring(0, index) + c + s.substring(index + 1);
+    }
+
     /**
      * Get an association used for testing.
      * 
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.util.Date;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+
+/**
+ * Base class for association store tests.
+ */
+abstract class BaseAssociationStoreTestCase extends TestCase {
+
+    /**
+     * Build an association.
+     * 
+     * @param handle association handle
+     * @param entity association entity
+     * @param lifetime milliseconds until the association expires, or 0 if the association does not expire
+     * @return association
+     */
+    protected static BasicAssociation buildAssociation(String handle, String entity, long lifetime) {
+        BasicAssociation association = new BasicAssociation();
+        association.setHandle(handle);
+        association.setEntity(entity);
+        association.setAssociationType(AssociationType.HMAC_SHA256);
+        association.setMacKey(new SecretKeySpec(new byte[32], "HmacSHA256"));
+        if (lifetime != 0) {
+            association.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        }
+        return association;
+    }
+
+}
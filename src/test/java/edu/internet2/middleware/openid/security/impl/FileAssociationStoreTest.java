@@ -0,0 +1,429 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+
+/**
+ * Tests for {@link FileAssociationStore}.
+ */
+public class FileAssociationStoreTest extends BaseAssociationStoreTestCase {
+
+    /** Length of the log header. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Log file used by the test. */
+    private File file;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("associations", ".log");
+        file.delete();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+        new File(file.getPath() + ".old").delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that associations survive reopening the store.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testPersistence() throws Exception {
+        FileAssociationStore store = openStore();
+        BasicAssociation association = buildAssociation("a", "http://example.com/", 60000);
+        association.setPrivate(true);
+        store.add(association);
+        store.add(buildAssociation("b", null, 0));
+        store.add(buildAssociation("c", null, 60000));
+        store.add(buildAssociation("expired", null, -1000));
+        store.invalidate("c");
+        store.close();
+
+        store = openStore();
+        Association stored = store.get("a");
+        assertEquals("a", stored.getHandle());
+        assertEquals(AssociationType.HMAC_SHA256, stored.getAssociationType());
+        assertEquals(association.getExpiration(), stored.getExpiration());
+        assertEquals("http://example.com/", stored.getEntity());
+        assertTrue(stored.isPrivate());
+        assertEquals("HmacSHA256", stored.getMacKey().getAlgorithm());
+        assertTrue(Arrays.equals(association.getMacKey().getEncoded(), stored.getMacKey().getEncoded()));
+        assertEquals("a", store.getByEntity("http://example.com/").getHandle());
+
+        assertNull(store.get("b").getExpiration());
+        assertNull(store.get("c"));
+        assertNull(store.get("expired"));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    /**
+     * Test recovery from a log whose last record was only partly written, truncated at every possible offset.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testTornRecord() throws Exception {
+        FileAssociationStore store = openStore();
+        store.add(buildAssociation("a", null, 60000));
+        store.close();
+        long complete = file.length();
+
+        store = openStore();
+        store.add(buildAssociation("b", null, 60000));
+        store.close();
+        long end = file.length();
+
+        byte[] log = readFile();
+        for (long length = complete; length < end; length++) {
+            writeFile(log, length);
+
+            store = openStore();
+            assertNotNull(store.get("a"));
+            assertNull(store.get("b"));
+            assertEquals(complete, file.length());
+
+            // the store remains usable after recovery
+            store.add(buildAssociation("c", null, 60000));
+            store.close();
+            store = openStore();
+            assertNotNull(store.get("c"));
+            store.close();
+        }
+    }
+
+    /**
+     * Test that replay stops at a corrupt record.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testCorruptRecord() throws Exception {
+        FileAssociationStore store = openStore();
+        store.add(buildAssociation("a", null, 60000));
+        store.close();
+        long complete = file.length();
+
+        store = openStore();
+        store.add(buildAssociation("b", null, 60000));
+        store.add(buildAssociation("c", null, 60000));
+        store.close();
+
+        byte[] log = readFile();
+        log[(int) complete + 12] ^= 0x40;
+        writeFile(log, log.length);
+
+        store = openStore();
+        assertNotNull(store.get("a"));
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+        assertEquals(complete, file.length());
+        store.close();
+    }
+
+    /**
+     * Test that a file which is not an association log is rejected.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testInvalidLog() throws Exception {
+        writeFile("not an association log".getBytes("UTF-8"), 22);
+        try {
+            openStore();
+            fail("invalid log was opened");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test compaction of obsolete records, and recovery from an interrupted compaction.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testCompaction() throws Exception {
+        FileAssociationStore store = openStore();
+        store.setCompactionThreshold(10);
+        for (int i = 0; i < 20; i++) {
+            store.add(buildAssociation("h" + (i % 5), null, 60000));
+        }
+        store.add(buildAssociation("expired", null, -1000));
+        store.invalidate("h4");
+        assertEquals(22, store.getRecordCount());
+        long before = file.length();
+
+        assertTrue(store.compactIfNeeded());
+        assertEquals(4, store.getRecordCount());
+        assertTrue(file.length() < before);
+        assertFalse(store.compactIfNeeded());
+
+        store.add(buildAssociation("h5", null, 60000));
+        store.close();
+
+        store = openStore();
+        assertEquals(5, store.size());
+        assertEquals(5, store.getRecordCount());
+        assertNotNull(store.get("h0"));
+        assertNull(store.get("h4"));
+        assertNotNull(store.get("h5"));
+        store.close();
+
+        File compacted = new File(file.getPath() + ".compact");
+        File backup = new File(file.getPath() + ".old");
+        byte[] log = readFile();
+
+        // a crash after the log was moved to the backup leaves the complete compacted log to move into place
+        writeFile(log, log.length, compacted);
+        writeFile(new byte[HEADER_LENGTH], HEADER_LENGTH, backup);
+        assertTrue(file.delete());
+        store = openStore();
+        assertEquals(5, store.size());
+        assertFalse(compacted.exists());
+        assertFalse(backup.exists());
+        store.close();
+
+        // a crash before the backup was deleted leaves the new log in place
+        writeFile(new byte[HEADER_LENGTH], HEADER_LENGTH, backup);
+        store = openStore();
+        assertEquals(5, store.size());
+        assertFalse(backup.exists());
+        store.close();
+
+        // a crash while writing the compacted file leaves both, and the compacted file is discarded
+        writeFile(new byte[3], 3, compacted);
+        store = openStore();
+        assertEquals(5, store.size());
+        assertFalse(compacted.exists());
+        store.close();
+
+        // a log left only as a backup is restored
+        assertTrue(file.renameTo(backup));
+        store = openStore();
+        assertEquals(5, store.size());
+        assertFalse(backup.exists());
+        store.close();
+    }
+
+    /**
+     * Test that updates made while the log is being compacted are kept.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testConcurrentCompaction() throws Exception {
+        final FileAssociationStore store = openStore();
+        store.setCompactionThreshold(0);
+        final int count = 2000;
+
+        Thread writer = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    store.add(buildAssociation("h" + i, null, 60000));
+                    if (i % 3 == 0) {
+                        store.remove("h" + i);
+                    }
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            store.compact();
+        }
+        writer.join();
+        store.compact();
+        assertEquals(store.size(), store.getRecordCount());
+        store.close();
+
+        FileAssociationStore reopened = openStore();
+        for (int i = 0; i < count; i++) {
+            if (i % 3 == 0) {
+                assertNull(reopened.get("h" + i));
+            } else {
+                assertNotNull("missing association " + i, reopened.get("h" + i));
+            }
+        }
+        reopened.close();
+    }
+
+    /**
+     * Test that closing the store waits for a compaction in progress, and that later compactions do nothing.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testCloseDuringCompaction() throws Exception {
+        FileAssociationStore closed = openStore();
+        closed.setCompactionThreshold(0);
+        for (int i = 0; i < 2000; i++) {
+            closed.add(buildAssociation("h" + i, null, 60000));
+            closed.remove("h" + (i - 1000));
+        }
+        closed.close();
+        int records = closed.getRecordCount();
+        closed.compact();
+        assertEquals(records, closed.getRecordCount());
+
+        final FileAssociationStore store = openStore();
+        store.setCompactionThreshold(0);
+        final List<Exception> errors = new ArrayList<Exception>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread compactor = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        store.compact();
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        compactor.start();
+        Thread.sleep(50);
+        store.close();
+        done.set(true);
+        compactor.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        FileAssociationStore reopened = openStore();
+        assertEquals(1000, reopened.size());
+        reopened.close();
+    }
+
+    /**
+     * Test recovery after the process writing the log is killed.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testKilledWriter() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                FileAssociationStoreTest.class.getName(), file.getPath());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line = reader.readLine();
+            while (line != null && !line.equals("started")) {
+                line = reader.readLine();
+            }
+            assertNotNull("writer exited before it started", line);
+            Thread.sleep(200);
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+
+        FileAssociationStore store = openStore();
+        int count = store.size();
+        assertTrue("expected at least 100 associations, found " + count, count >= 100);
+        for (int i = 0; i < count; i++) {
+            Association association = store.get("handle" + i);
+            assertNotNull("missing association " + i + " of " + count, association);
+            assertEquals("http://rp" + i + ".example.com/", association.getEntity());
+        }
+        store.close();
+    }
+
+    /**
+     * Write associations to a log until the process is killed. Used by {@link #testKilledWriter()}.
+     * 
+     * @param args path of the log file
+     * @throws Exception if an error occurs
+     */
+    public static void main(String[] args) throws Exception {
+        FileAssociationStore store = new FileAssociationStore(new File(args[0]), 16, 0, 0);
+        for (int i = 0; true; i++) {
+            store.add(buildAssociation("handle" + i, "http://rp" + i + ".example.com/", 3600000));
+            if (i == 100) {
+                System.out.println("started");
+                System.out.flush();
+            }
+        }
+    }
+
+    /**
+     * Open the store without background tasks.
+     * 
+     * @return store
+     * @throws IOException if the store cannot be opened
+     */
+    private FileAssociationStore openStore() throws IOException {
+        return new FileAssociationStore(file, 4, 0, 0);
+    }
+
+    /**
+     * Read the log file.
+     * 
+     * @return file contents
+     * @throws IOException if the file cannot be read
+     */
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replace the contents of the log file.
+     * 
+     * @param bytes new contents
+     * @param length number of bytes to write
+     * @throws IOException if the file cannot be written
+     */
+    private void writeFile(byte[] bytes, long length) throws IOException {
+        writeFile(bytes, length, file);
+    }
+
+    /**
+     * Replace the contents of a file.
+     * 
+     * @param bytes new contents
+     * @param length number of bytes to write
+     * @param target file to write
+     * @throws IOException if the file cannot be written
+     */
+    private void writeFile(byte[] bytes, long length, File target) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes, 0, (int) length);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
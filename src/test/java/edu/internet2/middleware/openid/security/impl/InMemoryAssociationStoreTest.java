@@ -0,0 +1,221 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.internet2.middleware.openid.security.Association;
+
+/**
+ * Tests for {@link InMemoryAssociationStore}.
+ */
+public class InMemoryAssociationStoreTest extends BaseAssociationStoreTestCase {
+
+    /**
+     * Test basic storage and retrieval.
+     */
+    public void testStorage() {
+        InMemoryAssociationStore store = new InMemoryAssociationStore();
+        Association association = buildAssociation("a", "http://example.com/", 60000);
+
+        store.add(association);
+        assertSame(association, store.get("a"));
+        assertSame(association, store.getByEntity("http://example.com/"));
+
+        store.invalidate(association);
+        assertNull(store.get("a"));
+        assertNull(store.getByEntity("http://example.com/"));
+    }
+
+    /**
+     * Test that entity lookups return the association with the longest remaining lifetime.
+     */
+    public void testEntityIndex() {
+        InMemoryAssociationStore store = new InMemoryAssociationStore();
+        String entity = "http://op.example.com/server";
+        store.add(buildAssociation("short", entity, 60000));
+        store.add(buildAssociation("long", entity, 300000));
+        store.add(buildAssociation("expired", entity, -1000));
+        store.add(buildAssociation("other", "http://other.example.com/", 600000));
+
+        assertEquals("long", store.getByEntity(entity).getHandle());
+
+        store.invalidate("long");
+        assertEquals("short", store.getByEntity(entity).getHandle());
+
+        // replacing an association moves it to its new entity
+        store.add(buildAssociation("short", "http://other.example.com/", 60000));
+        assertNull(store.getByEntity(entity));
+        assertEquals("other", store.getByEntity("http://other.example.com/").getHandle());
+
+        store.add(buildAssociation("forever", entity, 0));
+        store.add(buildAssociation("later", entity, 900000));
+        assertEquals("forever", store.getByEntity(entity).getHandle());
+        assertNull(store.getByEntity(null));
+    }
+
+    /**
+     * Test that expired associations are not returned and are removed from the store.
+     */
+    public void testExpiration() {
+        InMemoryAssociationStore store = new InMemoryAssociationStore();
+        store.add(buildAssociation("expired", "http://example.com/", -1000));
+        store.add(buildAssociation("valid", null, 60000));
+        store.add(buildAssociation("forever", null, 0));
+
+        assertNull(store.get("expired"));
+        assertNull(store.getByEntity("http://example.com/"));
+        assertNotNull(store.get("valid"));
+        assertNotNull(store.get("forever"));
+
+        store.add(buildAssociation("expired2", null, -1000));
+        assertEquals(1, store.purgeExpired());
+        assertEquals(2, store.size());
+    }
+
+    /**
+     * Test that the association that expires soonest is evicted when the store is full.
+     */
+    public void testEviction() {
+        InMemoryAssociationStore store = new InMemoryAssociationStore(3);
+        store.add(buildAssociation("late", null, 300000));
+        store.add(buildAssociation("soon", null, 60000));
+        store.add(buildAssociation("middle", null, 120000));
+        store.add(buildAssociation("new", null, 180000));
+
+        assertEquals(3, store.size());
+        assertNull(store.get("soon"));
+        assertNotNull(store.get("late"));
+        assertNotNull(store.get("middle"));
+        assertNotNull(store.get("new"));
+
+        // replacing an association requeues it at its new expiration
+        store.add(buildAssociation("middle", null, 240000));
+        store.add(buildAssociation("newer", null, 200000));
+        assertEquals(3, store.size());
+        assertNotNull(store.get("middle"));
+        assertNull(store.get("new"));
+    }
+
+    /**
+     * Test that associations without an expiration are evicted in the order they were added, after any that expire.
+     */
+    public void testNonExpiringEviction() {
+        InMemoryAssociationStore store = new InMemoryAssociationStore(3);
+        store.add(buildAssociation("first", null, 0));
+        store.add(buildAssociation("second", null, 0));
+        store.add(buildAssociation("expiring", null, 600000));
+        store.add(buildAssociation("third", null, 0));
+
+        assertEquals(3, store.size());
+        assertNull(store.get("expiring"));
+
+        store.add(buildAssociation("fourth", null, 0));
+        assertEquals(3, store.size());
+        assertNull(store.get("first"));
+        assertNotNull(store.get("second"));
+        assertNotNull(store.get("third"));
+        assertNotNull(store.get("fourth"));
+    }
+
+    /**
+     * Test that removed associations are not retained by the expiration queue.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testRemovedAssociationsReleased() throws Exception {
+        InMemoryAssociationStore store = new InMemoryAssociationStore();
+        Association association = buildAssociation("a", "http://example.com/", 600000);
+        WeakReference<Association> reference = new WeakReference<Association>(association);
+        store.add(association);
+        store.add(buildAssociation("b", null, 600000));
+        store.invalidate("a");
+        association = null;
+
+        for (int i = 0; i < 10 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("removed association is still referenced", reference.get());
+        assertNotNull(store.get("b"));
+    }
+
+    /**
+     * Stress the store with concurrent adds, lookups, and removals.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testConcurrentAccess() throws Exception {
+        final InMemoryAssociationStore store = new InMemoryAssociationStore(500);
+        final int operations = 20000;
+        int threads = 8;
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < operations; i++) {
+                            String handle = "handle" + random.nextInt(2000);
+                            int operation = random.nextInt(10);
+                            if (operation < 4) {
+                                long lifetime = random.nextBoolean() ? -1000 : 60000;
+                                store.add(buildAssociation(handle, "entity" + random.nextInt(50), lifetime));
+                            } else if (operation < 8) {
+                                Association association = store.get(handle);
+                                if (association != null) {
+                                    assertEquals(handle, association.getHandle());
+                                    assertTrue(association.getExpiration().getTime() > System.currentTimeMillis()
+                                            - 1000);
+                                }
+                            } else if (operation < 9) {
+                                store.getByEntity("entity" + random.nextInt(50));
+                            } else {
+                                store.invalidate(handle);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue("store exceeded its maximum size: " + store.size(), store.size() <= 500);
+        store.purgeExpired();
+        for (int i = 0; i < 2000; i++) {
+            Association association = store.get("handle" + i);
+            assertTrue(association == null || association.getExpiration().getTime() > System.currentTimeMillis());
+        }
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+import edu.internet2.middleware.openid.security.AssociationInvalidationNotifier;
+
+/**
+ * Tests for {@link JDBCAssociationStore}, using an in-memory H2 database.
+ */
+public class JDBCAssociationStoreTest extends BaseAssociationStoreTestCase {
+
+    /** Number of databases created, used to give each test its own database. */
+    private static int databases;
+
+    /** Data source for the test database. */
+    private JdbcDataSource dataSource;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:associations" + (databases++) + ";DB_CLOSE_DELAY=-1");
+        new JDBCAssociationStore(dataSource, JDBCAssociationStore.DEFAULT_TABLE_NAME, 0, 0).createTable();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.createStatement().execute("SHUTDOWN");
+        } finally {
+            connection.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test that associations added on one node can be read on another.
+     */
+    public void testSharedStorage() {
+        JDBCAssociationStore node1 = openStore(0);
+        JDBCAssociationStore node2 = openStore(0);
+
+        BasicAssociation association = buildAssociation("a", "http://example.com/", 60000);
+        association.setPrivate(true);
+        node1.add(association);
+        assertSame(association, node1.get("a"));
+
+        Association stored = node2.get("a");
+        assertEquals("a", stored.getHandle());
+        assertEquals(AssociationType.HMAC_SHA256, stored.getAssociationType());
+        assertEquals(association.getExpiration(), stored.getExpiration());
+        assertEquals("http://example.com/", stored.getEntity());
+        assertTrue(stored.isPrivate());
+        assertEquals("HmacSHA256", stored.getMacKey().getAlgorithm());
+        assertTrue(Arrays.equals(association.getMacKey().getEncoded(), stored.getMacKey().getEncoded()));
+
+        // replacing an association overwrites its row
+        node1.add(buildAssociation("a", "http://other.example.com/", 60000));
+        node2.evictCached("a");
+        assertEquals("http://other.example.com/", node2.get("a").getEntity());
+        assertEquals(1, countRows());
+
+        BasicAssociation bare = new BasicAssociation();
+        bare.setHandle("bare");
+        node1.add(bare);
+        stored = node2.get("bare");
+        assertNull(stored.getAssociationType());
+        assertNull(stored.getExpiration());
+        assertNull(stored.getEntity());
+        assertNull(stored.getMacKey());
+        assertNull(node2.get("missing"));
+
+        node1.close();
+        node2.close();
+    }
+
+    /**
+     * Test that associations are written in batches.
+     */
+    public void testBatchedWrites() {
+        JDBCAssociationStore store = openStore(60000);
+        store.setBatchSize(5);
+
+        for (int i = 0; i < 4; i++) {
+            store.add(buildAssociation("h" + i, "http://example.com/", 60000 + i));
+        }
+        assertEquals(0, countRows());
+
+        // queued associations are visible to the node that added them
+        store.setCacheTTL(0);
+        assertNotNull(store.get("h0"));
+        assertEquals("h3", store.getByEntity("http://example.com/").getHandle());
+
+        store.add(buildAssociation("h4", null, 60000));
+        assertEquals(5, countRows());
+
+        store.add(buildAssociation("h5", null, 60000));
+        assertEquals(5, countRows());
+        store.close();
+        assertEquals(6, countRows());
+    }
+
+    /**
+     * Test that an association removed while it is being loaded is not put back in the cache.
+     */
+    public void testRemoveDuringLoad() {
+        JDBCAssociationStore writer = openStore(0);
+        writer.add(buildAssociation("a", "http://example.com/", 60000));
+        writer.close();
+
+        final Runnable[] afterLoad = new Runnable[1];
+        DataSource intercepted = (DataSource) intercept(dataSource, DataSource.class, afterLoad);
+        final JDBCAssociationStore node = new JDBCAssociationStore(intercepted,
+                JDBCAssociationStore.DEFAULT_TABLE_NAME, 0, 0);
+        afterLoad[0] = new Runnable() {
+            public void run() {
+                node.remove("a");
+            }
+        };
+
+        // the row is read before it is removed
+        assertNotNull(node.get("a"));
+        assertNull(afterLoad[0]);
+        assertEquals(0, countRows());
+        assertNull(node.get("a"));
+        node.close();
+    }
+
+    /**
+     * Test that associations are written as they are added by default, and that failed writes are retried.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testFailedWrites() throws Exception {
+        JDBCAssociationStore store = new JDBCAssociationStore(dataSource);
+        store.add(buildAssociation("a", "http://example.com/", 60000));
+        assertEquals(1, countRows());
+
+        executeUpdate("DROP TABLE " + JDBCAssociationStore.DEFAULT_TABLE_NAME);
+        store.add(buildAssociation("b", "http://example.com/", 60000));
+        store.add(buildAssociation("b", "http://other.example.com/", 60000));
+        assertEquals("http://other.example.com/", store.get("b").getEntity());
+
+        // the failed writes are retried in the background once the table is back
+        store.createTable();
+        for (int i = 0; i < 50 && countRows() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, countRows());
+
+        JDBCAssociationStore other = openStore(0);
+        assertEquals("http://other.example.com/", other.get("b").getEntity());
+        other.close();
+        store.close();
+    }
+
+    /**
+     * Test that an association the database rejects does not hold back the associations written with it, and is
+     * discarded after repeated failures.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testRejectedWrites() throws Exception {
+        executeUpdate("CREATE TABLE narrow_association (handle VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "assoc_type VARCHAR(32), expiration BIGINT, entity VARCHAR(20), private_assoc SMALLINT NOT NULL, "
+                + "key_algorithm VARCHAR(32), mac_key VARCHAR(128))");
+        JDBCAssociationStore store = new JDBCAssociationStore(dataSource, "narrow_association", 60000, 0);
+        store.setBatchSize(5);
+        store.setMaxWriteAttempts(3);
+
+        store.add(buildAssociation("h0", "http://example.com/", 60000));
+        store.add(buildAssociation("h1", "http://example.com/", 60000));
+        store.add(buildAssociation("bad", "http://too-long.example.com/", 60000));
+        store.add(buildAssociation("h3", "http://example.com/", 60000));
+        store.add(buildAssociation("h4", "http://example.com/", 60000));
+        assertEquals(4, countRows("narrow_association"));
+
+        JDBCAssociationStore other = new JDBCAssociationStore(dataSource, "narrow_association", 0, 0);
+        assertNotNull(other.get("h0"));
+        assertNull(other.get("bad"));
+        other.close();
+
+        // the rejected association is retried until it is discarded, without blocking later writes
+        store.setCacheTTL(0);
+        store.add(buildAssociation("h5", "http://example.com/", 60000));
+        store.flush();
+        assertEquals(5, countRows("narrow_association"));
+        assertNotNull(store.get("bad"));
+        store.flush();
+        assertNull(store.get("bad"));
+        store.add(buildAssociation("h6", "http://example.com/", 60000));
+        store.flush();
+        assertEquals(6, countRows("narrow_association"));
+
+        // associations that cannot fit in the default table are rejected up front
+        StringBuilder entity = new StringBuilder("http://example.com/");
+        while (entity.length() <= JDBCAssociationStore.ENTITY_LENGTH) {
+            entity.append('x');
+        }
+        try {
+            store.add(buildAssociation("long", entity.toString(), 60000));
+            fail("entity longer than its column should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNull(store.get("long"));
+        store.close();
+    }
+
+    /**
+     * Test that the oldest queued associations are discarded once the queue is full.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testQueueLimit() throws Exception {
+        JDBCAssociationStore store = new JDBCAssociationStore(dataSource);
+        store.setMaxQueueSize(2);
+
+        executeUpdate("DROP TABLE " + JDBCAssociationStore.DEFAULT_TABLE_NAME);
+        store.add(buildAssociation("q0", null, 60000));
+        store.add(buildAssociation("q1", null, 60000));
+        store.add(buildAssociation("q2", null, 60000));
+
+        store.createTable();
+        store.flush();
+        assertEquals(2, countRows());
+        store.setCacheTTL(0);
+        assertNull(store.get("q0"));
+        assertNotNull(store.get("q2"));
+        store.close();
+    }
+
+    /**
+     * Test the read-through cache and invalidation across nodes.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testCacheInvalidation() throws Exception {
+        JDBCAssociationStore node1 = openStore(0);
+        final JDBCAssociationStore node2 = openStore(0);
+        node2.setCacheTTL(200);
+
+        node1.add(buildAssociation("a", null, 60000));
+        node1.add(buildAssociation("b", null, 60000));
+        assertNotNull(node2.get("a"));
+        assertNotNull(node2.get("b"));
+
+        // without a notifier, node 2 serves its cached copy until it expires
+        node1.invalidate("a");
+        assertNull(node1.get("a"));
+        assertNotNull(node2.get("a"));
+        Thread.sleep(300);
+        assertNull(node2.get("a"));
+
+        node1.setInvalidationNotifier(new AssociationInvalidationNotifier() {
+            public void associationInvalidated(String handle) {
+                node2.evictCached(handle);
+            }
+        });
+        node1.invalidate("b");
+        assertNull(node2.get("b"));
+
+        node1.close();
+        node2.close();
+    }
+
+    /**
+     * Test entity lookups.
+     */
+    public void testGetByEntity() {
+        JDBCAssociationStore store = openStore(0);
+        String entity = "http://op.example.com/server";
+        store.add(buildAssociation("short", entity, 60000));
+        store.add(buildAssociation("long", entity, 300000));
+        store.add(buildAssociation("expired", entity, -1000));
+        store.add(buildAssociation("other", "http://other.example.com/", 600000));
+
+        assertEquals("long", store.getByEntity(entity).getHandle());
+        store.invalidate("long");
+        assertEquals("short", store.getByEntity(entity).getHandle());
+        store.add(buildAssociation("forever", entity, 0));
+        assertEquals("forever", store.getByEntity(entity).getHandle());
+        assertNull(store.getByEntity("http://nobody.example.com/"));
+        assertNull(store.getByEntity(null));
+        store.close();
+    }
+
+    /**
+     * Test that expired associations are not returned and are deleted by the sweeper.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testSweeper() throws Exception {
+        JDBCAssociationStore store = openStore(0);
+        store.add(buildAssociation("expired", null, -1000));
+        store.add(buildAssociation("valid", null, 60000));
+        store.add(buildAssociation("forever", null, 0));
+        assertNull(store.get("expired"));
+
+        assertEquals(1, store.deleteExpired());
+        assertEquals(2, countRows());
+        store.close();
+
+        // the background sweeper deletes expired rows on its own
+        JDBCAssociationStore swept = new JDBCAssociationStore(dataSource, JDBCAssociationStore.DEFAULT_TABLE_NAME, 0,
+                50);
+        swept.add(buildAssociation("expiring", null, 20));
+        assertEquals(3, countRows());
+        Thread.sleep(300);
+        assertEquals(2, countRows());
+        swept.close();
+    }
+
+    /**
+     * Open a store on the test database.
+     * 
+     * @param flushInterval interval between writes of queued associations, or 0 to write immediately
+     * @return store
+     */
+    private JDBCAssociationStore openStore(long flushInterval) {
+        return new JDBCAssociationStore(dataSource, JDBCAssociationStore.DEFAULT_TABLE_NAME, flushInterval, 0);
+    }
+
+    /**
+     * Wrap a JDBC object so that a hook runs once a query selecting an association by handle has been executed.
+     * Connections and statements obtained from the wrapped object are wrapped in turn.
+     * 
+     * @param target object to wrap
+     * @param type interface to expose
+     * @param afterLoad holder of the hook to run once, which is cleared before it runs
+     * @return wrapped object
+     */
+    private Object intercept(final Object target, Class<?> type, final Runnable[] afterLoad) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Object result;
+                try {
+                    result = method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+
+                if (result instanceof Connection) {
+                    return intercept(result, Connection.class, afterLoad);
+                } else if (result instanceof PreparedStatement && args[0].toString().startsWith("SELECT")
+                        && args[0].toString().contains("handle = ?")) {
+                    return intercept(result, PreparedStatement.class, afterLoad);
+                } else if (result instanceof ResultSet && afterLoad[0] != null) {
+                    Runnable hook = afterLoad[0];
+                    afterLoad[0] = null;
+                    hook.run();
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Execute an update against the test database.
+     * 
+     * @param sql update statement
+     * @throws Exception if the update fails
+     */
+    private void executeUpdate(String sql) throws Exception {
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.createStatement().executeUpdate(sql);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Count the rows of the association table.
+     * 
+     * @return number of rows
+     */
+    private int countRows() {
+        return countRows(JDBCAssociationStore.DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * Count the rows of a table.
+     * 
+     * @param table table name
+     * @return number of rows
+     */
+    private int countRows(String table) {
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                Statement statement = connection.createStatement();
+                ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+                results.next();
+                return results.getInt(1);
+            } finally {
+                connection.close();
+            }
+        } catch (Exception e) {
+            fail("unable to count rows: " + e);
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.security.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants.AssociationType;
+import edu.internet2.middleware.openid.security.Association;
+import edu.internet2.middleware.openid.security.AssociationStore;
+
+/**
+ * Tests for {@link OffHeapAssociationStore}.
+ */
+public class OffHeapAssociationStoreTest extends BaseAssociationStoreTestCase {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(OffHeapAssociationStoreTest.class);
+
+    /**
+     * Test that stored associations are materialized with all of their properties.
+     */
+    public void testStorage() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(16, 64);
+        BasicAssociation association = buildAssociation("a", "http://example.com/é", 60000);
+        association.setPrivate(true);
+        store.add(association);
+
+        Association stored = store.get("a");
+        assertNotSame(association, stored);
+        assertEquals("a", stored.getHandle());
+        assertEquals(AssociationType.HMAC_SHA256, stored.getAssociationType());
+        assertEquals(association.getExpiration(), stored.getExpiration());
+        assertEquals("http://example.com/é", stored.getEntity());
+        assertTrue(stored.isPrivate());
+        assertEquals("HmacSHA256", stored.getMacKey().getAlgorithm());
+        assertTrue(Arrays.equals(association.getMacKey().getEncoded(), stored.getMacKey().getEncoded()));
+
+        assertEquals("a", store.getByEntity("http://example.com/é").getHandle());
+        assertNull(store.get("b"));
+        assertNull(store.get(null));
+
+        // associations without optional properties
+        BasicAssociation bare = new BasicAssociation();
+        bare.setHandle("bare");
+        store.add(bare);
+        stored = store.get("bare");
+        assertNull(stored.getAssociationType());
+        assertNull(stored.getExpiration());
+        assertNull(stored.getEntity());
+        assertNull(stored.getMacKey());
+        assertFalse(stored.isPrivate());
+
+        store.invalidate(association);
+        assertNull(store.get("a"));
+        assertNull(store.getByEntity("http://example.com/é"));
+        assertEquals(1, store.size());
+    }
+
+    /**
+     * Test replacing an association and reusing freed slots.
+     */
+    public void testReplacement() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(4, 64);
+        store.add(buildAssociation("a", "http://one.example.com/", 60000));
+        store.add(buildAssociation("a", "http://two.example.com/", 120000));
+        assertEquals(1, store.size());
+        assertEquals("http://two.example.com/", store.get("a").getEntity());
+        assertNull(store.getByEntity("http://one.example.com/"));
+
+        // repeated adds and removals leave deleted index entries behind, which must not break lookups
+        for (int i = 0; i < 1000; i++) {
+            store.add(buildAssociation("h" + i, null, 60000));
+            assertNotNull(store.get("h" + i));
+            store.remove("h" + i);
+        }
+        assertEquals(1, store.size());
+        assertNotNull(store.get("a"));
+    }
+
+    /**
+     * Test that associations which cannot be stored are rejected.
+     */
+    public void testInvalidAssociations() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(4, 8);
+
+        try {
+            store.add(buildAssociation("bad handle", null, 60000));
+            fail("handle with a space was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            store.add(buildAssociation("a", "http://example.com/", 60000));
+            fail("entity longer than the maximum was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        char[] handle = new char[256];
+        Arrays.fill(handle, 'x');
+        try {
+            store.add(buildAssociation(new String(handle), null, 60000));
+            fail("handle longer than 255 characters was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Test expiration and eviction when the store is full.
+     */
+    public void testExpirationAndEviction() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(3, 64);
+        store.add(buildAssociation("expired", "http://example.com/", -1000));
+        store.add(buildAssociation("late", null, 300000));
+        store.add(buildAssociation("soon", null, 60000));
+
+        assertNull(store.get("expired"));
+        assertNull(store.getByEntity("http://example.com/"));
+
+        // the expired association is purged to make room
+        store.add(buildAssociation("forever", null, 0));
+        assertEquals(3, store.size());
+        assertNotNull(store.get("soon"));
+
+        // then the association that expires soonest is evicted
+        store.add(buildAssociation("new", null, 180000));
+        assertEquals(3, store.size());
+        assertNull(store.get("soon"));
+        assertNotNull(store.get("late"));
+        assertNotNull(store.get("forever"));
+        assertNotNull(store.get("new"));
+
+        store.add(buildAssociation("expired2", null, -1000));
+        assertEquals(1, store.purgeExpired());
+    }
+
+    /**
+     * Test that associations without an expiration are evicted in the order they were added, after any that expire.
+     */
+    public void testNonExpiringEviction() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(3, 64);
+        store.add(buildAssociation("first", null, 0));
+        store.add(buildAssociation("second", null, 0));
+        store.add(buildAssociation("expiring", null, 600000));
+        store.add(buildAssociation("third", null, 0));
+
+        assertEquals(3, store.size());
+        assertNull(store.get("expiring"));
+
+        // replacing an association moves it to the back of the queue
+        store.add(buildAssociation("first", null, 0));
+        store.add(buildAssociation("fourth", null, 0));
+        assertEquals(3, store.size());
+        assertNull(store.get("second"));
+        assertNotNull(store.get("first"));
+        assertNotNull(store.get("third"));
+        assertNotNull(store.get("fourth"));
+    }
+
+    /**
+     * Test that capacities whose index would not fit in a direct buffer are rejected.
+     */
+    public void testCapacityLimits() {
+        try {
+            new OffHeapAssociationStore(OffHeapAssociationStore.MAX_CAPACITY + 1, 64);
+            fail("capacity above the maximum was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            new OffHeapAssociationStore(0, 64);
+            fail("capacity of 0 was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Apply the same random operations to this store and to {@link InMemoryAssociationStore}, checking that lookups by
+     * handle and by entity agree.
+     */
+    public void testConsistencyWithInMemoryStore() {
+        OffHeapAssociationStore store = new OffHeapAssociationStore(4096, 64);
+        InMemoryAssociationStore reference = new InMemoryAssociationStore(4096);
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            String handle = "handle" + random.nextInt(1000);
+            String entity = "http://rp" + random.nextInt(40) + ".example.com/";
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                // distinct lifetimes, so that entity lookups have a single answer
+                long lifetime = random.nextInt(8) == 0 ? -1000 - i : 60000 + i;
+                Association association = buildAssociation(handle, random.nextInt(4) == 0 ? null : entity, lifetime);
+                store.add(association);
+                reference.add(association);
+            } else if (operation < 7) {
+                store.remove(handle);
+                reference.remove(handle);
+            } else if (operation < 9) {
+                Association expected = reference.get(handle);
+                Association actual = store.get(handle);
+                assertEquals(expected == null, actual == null);
+                if (expected != null) {
+                    assertEquals(expected.getEntity(), actual.getEntity());
+                    assertEquals(expected.getExpiration(), actual.getExpiration());
+                }
+            } else {
+                Association expected = reference.getByEntity(entity);
+                Association actual = store.getByEntity(entity);
+                assertEquals(expected == null ? null : expected.getHandle(), actual == null ? null : actual
+                        .getHandle());
+            }
+        }
+
+        reference.purgeExpired();
+        store.purgeExpired();
+        assertEquals(reference.size(), store.size());
+    }
+
+    /**
+     * Stress the store with concurrent adds, lookups, and removals.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testConcurrentAccess() throws Exception {
+        final OffHeapAssociationStore store = new OffHeapAssociationStore(500, 64);
+        final int operations = 20000;
+        int threads = 8;
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < operations; i++) {
+                            String handle = "handle" + random.nextInt(2000);
+                            int operation = random.nextInt(10);
+                            if (operation < 4) {
+                                long lifetime = random.nextBoolean() ? -1000 : 60000;
+                                store.add(buildAssociation(handle, "entity" + random.nextInt(50), lifetime));
+                            } else if (operation < 8) {
+                                Association association = store.get(handle);
+                                if (association != null) {
+                                    assertEquals(handle, association.getHandle());
+                                }
+                            } else if (operation < 9) {
+                                store.getByEntity("entity" + random.nextInt(50));
+                            } else {
+                                store.invalidate(handle);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue("store exceeded its capacity: " + store.size(), store.size() <= 500);
+    }
+
+    /**
+     * Compare the heap used by this store and by {@link InMemoryAssociationStore} when holding the same associations.
+     * Heap usage is measured from {@link Runtime} after requesting a garbage collection, so the figures are only
+     * indicative and are logged rather than asserted.
+     */
+    public void testHeapUsage() {
+        int count = 50000;
+        List<Association> associations = new ArrayList<Association>(count);
+        for (int i = 0; i < count; i++) {
+            associations.add(buildAssociation("{HMAC-SHA256}{" + Long.toHexString(i) + "}{a1b2c3d4e5f6}",
+                    "http://rp" + (i % 1000) + ".example.com/return", 3600000));
+        }
+
+        long inMemory = measureHeap(new InMemoryAssociationStore(count), associations);
+        long offHeap = measureHeap(new OffHeapAssociationStore(count, 64), associations);
+        log.info("heap used by {} associations: in-memory store {} KB, off-heap store {} KB", new Object[] {count,
+                inMemory / 1024, offHeap / 1024,});
+    }
+
+    /**
+     * Measure the heap retained by an association store after adding associations to it.
+     * 
+     * @param store store to measure
+     * @param associations associations to add
+     * @return heap retained by the store, in bytes
+     */
+    private long measureHeap(AssociationStore store, List<Association> associations) {
+        long before = usedHeap();
+        for (Association association : associations) {
+            // copy the association, so that the store holds the only reference to it
+            store.add(buildAssociation(association.getHandle(), association.getEntity(), 3600000));
+        }
+        long after = usedHeap();
+
+        // keep the store reachable until it has been measured
+        assertNotNull(store.get(associations.get(0).getHandle()));
+        return after - before;
+    }
+
+    /**
+     * Get the used heap after requesting a garbage collection.
+     * 
+     * @return used heap, in bytes
+     */
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.openid.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.openid.common.OpenIDConstants;
+import edu.internet2.middleware.openid.common.ParameterMap;
+import edu.internet2.middleware.openid.common.OpenIDConstants.Parameter;
+
+/**
+ * Test message tracing.
+ */
+public class MessageTraceTest extends TestCase {
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        MessageTrace.setSampleInterval(0);
+        super.tearDown();
+    }
+
+    /**
+     * Test enabling tracing and sampling of messages.
+     */
+    public void testSampling() {
+        MessageTrace.setSampleInterval(0);
+        assertFalse(MessageTrace.isEnabled());
+        assertFalse(MessageTrace.sample());
+
+        MessageTrace.setSampleInterval(4);
+        assertTrue(MessageTrace.isEnabled());
+        assertEquals(4, MessageTrace.getSampleInterval());
+
+        int sampled = 0;
+        for (int i = 0; i < 400; i++) {
+            if (MessageTrace.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(100, sampled);
+
+        MessageTrace.setSampleInterval(-1);
+        assertFalse(MessageTrace.isEnabled());
+        assertEquals(0, MessageTrace.getSampleInterval());
+    }
+
+    /**
+     * Test the contents of trace records.
+     */
+    public void testRecords() {
+        ParameterMap parameters = new ParameterMap();
+        parameters.put(Parameter.mode.QNAME, "associate");
+        parameters.put(Parameter.mac_key.QNAME, "secret");
+        String record = MessageTrace.buildRecord("test", parameters);
+        assertTrue(record, record.startsWith("stage=test "));
+        assertTrue(record, record.contains(" parameters=2 "));
+        assertTrue(record, record.contains("[{" + OpenIDConstants.OPENID_20_NS + "}mode=associate]"));
+        assertFalse(record, record.contains("secret"));
+
+        Map<String, String> encoded = new LinkedHashMap<String, String>();
+        encoded.put("mode", "associate");
+        encoded.put("enc_mac_key", "secret");
+        record = MessageTrace.buildRecord("test", encoded);
+        assertTrue(record, record.contains("[mode=associate]"));
+        assertTrue(record, record.contains("[enc_mac_key=(redacted)]"));
+
+        // tracing every message must not disturb the codecs
+        MessageTrace.setSampleInterval(1);
+        MessageTrace.trace("test", parameters);
+        MessageTrace.trace("test", encoded);
+    }
+
+}